@@ -0,0 +1,53 @@
+package company.tothepoint.blog.elasticsearchpercolator.config;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+
+/**
+ * The {@code elasticsearch} part of the actuator health: down when the client lost all nodes, when the cluster is
+ * red or when the percolator index is missing. Replaces the health indicator Spring Boot configures for the client.
+ */
+@Component("elasticsearchHealthIndicator")
+public class ElasticsearchClusterHealthIndicator extends AbstractHealthIndicator {
+
+    private final TransportClient elasticsearchClient;
+
+    private final TimeValue timeout;
+
+    public ElasticsearchClusterHealthIndicator(TransportClient elasticsearchClient,
+                                               @Value("${company.tothepoint.blog.elastic.health.timeout-millis:1000}") long timeoutMillis) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.timeout = TimeValue.timeValueMillis(timeoutMillis);
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        int connectedNodes = elasticsearchClient.connectedNodes().size();
+        builder.withDetail("connectedNodes", connectedNodes);
+        if (connectedNodes == 0) {
+            builder.down();
+            return;
+        }
+
+        ClusterHealthResponse health = elasticsearchClient.admin().cluster().prepareHealth().get(timeout);
+        boolean percolatorIndexExists = elasticsearchClient.admin().indices().prepareExists(PERCOLATOR_INDEX).get(timeout).isExists();
+        builder.withDetail("clusterName", health.getClusterName())
+                .withDetail("status", health.getStatus().name())
+                .withDetail("numberOfNodes", health.getNumberOfNodes())
+                .withDetail("numberOfDataNodes", health.getNumberOfDataNodes())
+                .withDetail("percolatorIndex", percolatorIndexExists);
+        if (health.getStatus() == ClusterHealthStatus.RED || !percolatorIndexExists) {
+            builder.down();
+        } else {
+            builder.up();
+        }
+    }
+}
@@ -1,10 +1,11 @@
 package company.tothepoint.blog.elasticsearchpercolator.config;
 
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
-import org.elasticsearch.client.Client;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
@@ -12,77 +13,191 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import javax.annotation.PostConstruct;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 
 @Slf4j
 @Configuration
 public class ElasticsearchConfig {
 
+    /**
+     * Alias of the percolator index, the service reads and writes through it. The index behind it is versioned, so
+     * it can be rebuilt next to the current one and swapped in.
+     */
     public static final String PERCOLATOR_INDEX = "percolator_index";
     public static final String PERCOLATOR_INDEX_MAPPING_TYPE = "docs";
+    /**
+     * Key in the {@code _meta} of the percolator index mapping, {@code true} when its queries are routed by language
+     */
+    public static final String PERCOLATOR_INDEX_ROUTED_META = "routed";
+
+    /**
+     * Optional index of the percolated documents of the books, so books can be percolated by reference to their id
+     */
+    public static final String BOOKS_INDEX = "books_index";
+    public static final String BOOKS_INDEX_MAPPING_TYPE = "docs";
+    /**
+     * Keyword copy of the id of a book in the books index, to sort and page searches of the index on
+     */
+    public static final String BOOKS_INDEX_ID_FIELD = "bookId";
 
 
     @Value("${company.tothepoint.blog.elastic.cluster.name}")
     private String clusterName;
-    @Value("${company.tothepoint.blog.elastic.host.url}")
-    private String elasticHostUrl;
-    @Value("${company.tothepoint.blog.elastic.host.port}")
-    private int elasticHostPort;
-
-    @Bean
-    public Client elasticsearchClient() throws Exception {
-        Settings settings = Settings.builder()
+    /**
+     * Comma separated host:port seed nodes, defaulting to the single host of the older configuration
+     */
+    @Value("${company.tothepoint.blog.elastic.nodes:${company.tothepoint.blog.elastic.host.url}:${company.tothepoint.blog.elastic.host.port}}")
+    private String[] nodes;
+    @Value("${company.tothepoint.blog.elastic.client.sniff:false}")
+    private boolean sniff;
+    @Value("${company.tothepoint.blog.elastic.client.ping-timeout:5s}")
+    private String pingTimeout;
+    @Value("${company.tothepoint.blog.elastic.client.nodes-sampler-interval:5s}")
+    private String nodesSamplerInterval;
+    @Value("${company.tothepoint.blog.elastic.client.worker-count:0}")
+    private int workerCount;
+    @Value("${company.tothepoint.blog.elastic.client.connections-per-node:0}")
+    private int connectionsPerNode;
+    @Value("${company.tothepoint.blog.elastic.client.startup-timeout:30s}")
+    private String startupTimeout;
+
+    /**
+     * The one transport client of the application, closed with the context. Requests are spread round robin over
+     * the seed nodes, or over all data nodes of the cluster when sniffing. Startup fails when no node can be reached,
+     * or when the cluster does not get to a yellow status within the startup timeout.
+     */
+    @Bean(destroyMethod = "close")
+    public TransportClient elasticsearchClient() throws Exception {
+        Settings.Builder settings = Settings.builder()
                 .put("cluster.name", clusterName)
-                .build();
-        Client transportClient = new PreBuiltTransportClient(settings)
-                .addTransportAddress(new TransportAddress(InetAddress.getByName(elasticHostUrl), elasticHostPort));
+                .put("client.transport.sniff", sniff)
+                .put("client.transport.ping_timeout", pingTimeout)
+                .put("client.transport.nodes_sampler_interval", nodesSamplerInterval);
+        if (workerCount > 0) {
+            settings.put("transport.netty.worker_count", workerCount);
+        }
+        if (connectionsPerNode > 0) {
+            settings.put("transport.connections_per_node.reg", connectionsPerNode);
+        }
+
+        TransportClient transportClient = new PreBuiltTransportClient(settings.build());
+        try {
+            for (String node : nodes) {
+                transportClient.addTransportAddress(transportAddress(node));
+            }
+            if (transportClient.connectedNodes().isEmpty()) {
+                throw new IllegalStateException(String.format("None of the Elasticsearch nodes %s of cluster %s can be reached",
+                        Arrays.toString(nodes), clusterName));
+            }
+
+            ClusterHealthResponse health = transportClient.admin().cluster().prepareHealth()
+                    .setWaitForYellowStatus()
+                    .setTimeout(TimeValue.parseTimeValue(startupTimeout, "client.startup-timeout"))
+                    .get();
+            if (health.isTimedOut()) {
+                throw new IllegalStateException(String.format("Elasticsearch cluster %s is %s after waiting %s for it to become yellow",
+                        clusterName, health.getStatus(), startupTimeout));
+            }
+            log.info("Connected to {} of the {} nodes of Elasticsearch cluster {}, status {}",
+                    transportClient.connectedNodes().size(), health.getNumberOfNodes(), clusterName, health.getStatus());
+        } catch (Exception e) {
+            transportClient.close();
+            throw e;
+        }
         return transportClient;
     }
 
+    private static TransportAddress transportAddress(String node) throws UnknownHostException {
+        String[] hostAndPort = node.trim().split(":");
+        if (hostAndPort.length != 2) {
+            throw new IllegalArgumentException(String.format("Expected host:port for Elasticsearch node, got %s", node));
+        }
+        return new TransportAddress(InetAddress.getByName(hostAndPort[0]), Integer.parseInt(hostAndPort[1]));
+    }
+
     /**
-     * Create the index for the percolator data if it does not exist
+     * @return the name of a new version of the percolator index
      */
-    @PostConstruct
-    public void initializePercolatorIndex() {
-        try {
-            Client client = elasticsearchClient();
-
-            IndicesExistsResponse indicesExistsResponse = client.admin().indices().prepareExists(PERCOLATOR_INDEX).get();
-
-            if (indicesExistsResponse == null || !indicesExistsResponse.isExists()) {
-                XContentBuilder percolatorQueriesMapping = XContentFactory.jsonBuilder()
-                        .startObject()
-                        .startObject("properties");
-
-                Arrays.stream(PercolatorIndexFields.values())
-                        .forEach(field -> {
-                            try {
-                                percolatorQueriesMapping
-                                        .startObject(field.getFieldName())
-                                        .field("type", field.getFieldType())
-                                        .endObject();
-                            } catch (IOException e) {
-                                log.error(String.format("Error while adding field %s to mapping", field.name()), e);
-                                throw new RuntimeException(
-                                        String.format("Something went wrong while adding field %s to mapping", field.name()), e);
-                            }
-                        });
-
-                percolatorQueriesMapping
-                        .endObject()
-                        .endObject();
+    public static String newPercolatorIndexName() {
+        return PERCOLATOR_INDEX + "_v" + System.currentTimeMillis();
+    }
 
-                client.admin().indices().prepareCreate(PERCOLATOR_INDEX)
-                        .addMapping(PERCOLATOR_INDEX_MAPPING_TYPE, percolatorQueriesMapping)
-                        .execute()
-                        .actionGet();
+    public static Settings percolatorIndexSettings(int numberOfShards, int numberOfReplicas, String refreshInterval) {
+        return Settings.builder()
+                .put("index.number_of_shards", numberOfShards)
+                .put("index.number_of_replicas", numberOfReplicas)
+                .put("index.refresh_interval", refreshInterval)
+                .build();
+    }
+
+    /**
+     * The mapping of the percolator index, with a field per {@link PercolatorIndexFields}
+     */
+    public static XContentBuilder percolatorIndexMapping() throws IOException {
+        return percolatorIndexMapping(null);
+    }
+
+    /**
+     * The mapping of a new percolator index, also recording in its {@code _meta} whether its queries are routed
+     */
+    public static XContentBuilder percolatorIndexMapping(boolean routed) throws IOException {
+        return percolatorIndexMapping(Collections.singletonMap(PERCOLATOR_INDEX_ROUTED_META, routed));
+    }
+
+    private static XContentBuilder percolatorIndexMapping(Map<String, Object> meta) throws IOException {
+        XContentBuilder percolatorQueriesMapping = XContentFactory.jsonBuilder()
+                .startObject();
+        if (meta != null) {
+            percolatorQueriesMapping.field("_meta", meta);
+        }
+        percolatorQueriesMapping.startObject("properties");
+
+        Arrays.stream(PercolatorIndexFields.values())
+                .forEach(field -> {
+                    try {
+                        percolatorQueriesMapping
+                                .startObject(field.getFieldName())
+                                .field("type", field.getFieldType());
+                        if (!field.isIndexed()) {
+                            percolatorQueriesMapping.field("enabled", false);
+                        }
+                        percolatorQueriesMapping.endObject();
+                    } catch (IOException e) {
+                        log.error(String.format("Error while adding field %s to mapping", field.name()), e);
+                        throw new RuntimeException(
+                                String.format("Something went wrong while adding field %s to mapping", field.name()), e);
+                    }
+                });
+
+        return percolatorQueriesMapping
+                .endObject()
+                .endObject();
+    }
+
+    /**
+     * The mapping of the books index, with the {@link PercolatorIndexFields} a book document is percolated with
+     */
+    public static XContentBuilder booksIndexMapping() throws IOException {
+        XContentBuilder booksMapping = XContentFactory.jsonBuilder()
+                .startObject()
+                .startObject("properties");
+        for (PercolatorIndexFields field : PercolatorIndexFields.values()) {
+            if (field.isDocumentField()) {
+                booksMapping.startObject(field.getFieldName())
+                        .field("type", field.getFieldType())
+                        .endObject();
             }
-        } catch (Exception e) {
-            log.error("Error while creating percolator index", e);
-            throw new RuntimeException("Something went wrong during the creation of the percolator index", e);
         }
+        booksMapping.startObject(BOOKS_INDEX_ID_FIELD)
+                .field("type", "keyword")
+                .endObject();
+        return booksMapping
+                .endObject()
+                .endObject();
     }
-}
\ No newline at end of file
+}
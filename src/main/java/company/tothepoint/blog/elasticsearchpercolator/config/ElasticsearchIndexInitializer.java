@@ -0,0 +1,123 @@
+package company.tothepoint.blog.elasticsearchpercolator.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_MAPPING_TYPE;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+
+/**
+ * Creates the indices of the service on startup, through the shared client, when they do not exist yet
+ */
+@Slf4j
+@Component
+public class ElasticsearchIndexInitializer {
+
+    private final Client elasticsearchClient;
+
+    private final int numberOfShards;
+
+    private final int numberOfReplicas;
+
+    private final String refreshInterval;
+
+    private final boolean booksIndexEnabled;
+
+    private final boolean routingEnabled;
+
+    public ElasticsearchIndexInitializer(Client elasticsearchClient,
+                                         @Value("${company.tothepoint.blog.percolator.index.number-of-shards:5}") int numberOfShards,
+                                         @Value("${company.tothepoint.blog.percolator.index.number-of-replicas:1}") int numberOfReplicas,
+                                         @Value("${company.tothepoint.blog.percolator.index.refresh-interval:1s}") String refreshInterval,
+                                         @Value("${company.tothepoint.blog.percolator.books-index.enabled:false}") boolean booksIndexEnabled,
+                                         @Value("${company.tothepoint.blog.percolator.routing.enabled:false}") boolean routingEnabled) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.numberOfShards = numberOfShards;
+        this.numberOfReplicas = numberOfReplicas;
+        this.refreshInterval = refreshInterval;
+        this.booksIndexEnabled = booksIndexEnabled;
+        this.routingEnabled = routingEnabled;
+    }
+
+    /**
+     * Create the index for the percolator data, and its alias, if it does not exist
+     */
+    @PostConstruct
+    public void initializePercolatorIndex() {
+        try {
+            IndicesExistsResponse indicesExistsResponse = elasticsearchClient.admin().indices().prepareExists(PERCOLATOR_INDEX).get();
+
+            if (indicesExistsResponse == null || !indicesExistsResponse.isExists()) {
+                elasticsearchClient.admin().indices().prepareCreate(ElasticsearchConfig.newPercolatorIndexName())
+                        .setSettings(ElasticsearchConfig.percolatorIndexSettings(numberOfShards, numberOfReplicas, refreshInterval))
+                        .addMapping(PERCOLATOR_INDEX_MAPPING_TYPE, ElasticsearchConfig.percolatorIndexMapping(routingEnabled))
+                        .addAlias(new Alias(PERCOLATOR_INDEX))
+                        .execute()
+                        .actionGet();
+            } else {
+                // Add the fields that were added to the mapping since the index was created, keeping its routing _meta
+                elasticsearchClient.admin().indices().preparePutMapping(PERCOLATOR_INDEX)
+                        .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                        .setSource(ElasticsearchConfig.percolatorIndexMapping())
+                        .get();
+            }
+        } catch (Exception e) {
+            log.error("Error while creating percolator index", e);
+            throw new RuntimeException("Something went wrong during the creation of the percolator index", e);
+        }
+    }
+
+    /**
+     * Create the index of the percolated book documents if it is enabled and does not exist
+     */
+    @PostConstruct
+    public void initializeBooksIndex() {
+        if (!booksIndexEnabled) {
+            return;
+        }
+
+        try {
+            IndicesExistsResponse indicesExistsResponse = elasticsearchClient.admin().indices().prepareExists(BOOKS_INDEX).get();
+
+            if (indicesExistsResponse == null || !indicesExistsResponse.isExists()) {
+                elasticsearchClient.admin().indices().prepareCreate(BOOKS_INDEX)
+                        .setSettings(Settings.builder()
+                                .put("index.number_of_shards", numberOfShards)
+                                .put("index.number_of_replicas", numberOfReplicas)
+                                .build())
+                        .addMapping(BOOKS_INDEX_MAPPING_TYPE, ElasticsearchConfig.booksIndexMapping())
+                        .execute()
+                        .actionGet();
+            } else {
+                updateBooksIndexMapping();
+            }
+        } catch (Exception e) {
+            log.error("Error while creating books index", e);
+            throw new RuntimeException("Something went wrong during the creation of the books index", e);
+        }
+    }
+
+    /**
+     * Add the fields that were added to the mapping since the books index was created
+     */
+    private void updateBooksIndexMapping() throws IOException {
+        try {
+            elasticsearchClient.admin().indices().preparePutMapping(BOOKS_INDEX)
+                    .setType(BOOKS_INDEX_MAPPING_TYPE)
+                    .setSource(ElasticsearchConfig.booksIndexMapping())
+                    .get();
+        } catch (IllegalArgumentException e) {
+            log.warn("The mapping of the books index could not be updated, recreate the index to page on book ids", e);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package company.tothepoint.blog.elasticsearchpercolator.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+@Configuration
+public class ExecutorConfig {
+
+    public static final String PERCOLATION_EXECUTOR = "percolationExecutor";
+
+    @Value("${company.tothepoint.blog.percolator.async.pool-size:16}")
+    private int poolSize;
+    @Value("${company.tothepoint.blog.percolator.async.queue-capacity:1000}")
+    private int queueCapacity;
+
+    /**
+     * Bounded executor for the non-blocking percolation path. It runs the Mongo calls and the hydration of
+     * percolator hits, so servlet and transport threads never wait for them. Work beyond the queue capacity is rejected.
+     */
+    @Bean(name = PERCOLATION_EXECUTOR)
+    public ThreadPoolTaskExecutor percolationExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("percolation-");
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+}
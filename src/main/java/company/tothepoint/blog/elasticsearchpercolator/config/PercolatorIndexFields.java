@@ -5,18 +5,45 @@ import lombok.Getter;
 @Getter
 public enum PercolatorIndexFields {
 
-    PERCOLATOR_QUERY("query", "percolator"),
+    PERCOLATOR_QUERY("query", "percolator", true, false),
     AUTHOR("author", "keyword"),
     PRICE("sellingPrice", "double"),
     TYPE("bookType", "keyword"),
-    LANGUAGE("bookLanguage", "keyword");
+    LANGUAGE("bookLanguage", "keyword"),
+    // Denormalized copy of the search preference, only kept in the _source for hydrating percolator hits
+    PREFERENCE("preference", "object", false, false),
+    // Metadata of the criteria of a percolator query, to filter out the queries a book can't match before percolating
+    FILTER_LANGUAGE("filterLanguage", "keyword", true, false),
+    FILTER_TYPES("filterTypes", "keyword", true, false),
+    FILTER_MINIMUM_PRICE("filterMinimumPrice", "double", true, false),
+    FILTER_MAXIMUM_PRICE("filterMaximumPrice", "double", true, false);
+
+    /**
+     * Value of the language and types metadata of queries without a language or types criterion
+     */
+    public static final String ANY = "_any";
 
     private final String fieldName;
     private final String fieldType;
+    private final boolean indexed;
+    private final boolean documentField;
 
     PercolatorIndexFields(String fieldName, String fieldType) {
+        this(fieldName, fieldType, true, true);
+    }
+
+    PercolatorIndexFields(String fieldName, String fieldType, boolean indexed, boolean documentField) {
         this.fieldName = fieldName;
         this.fieldType = fieldType;
+        this.indexed = indexed;
+        this.documentField = documentField;
+    }
+
+    /**
+     * @return whether the field is part of the percolated document of a book, rather than of the percolator document
+     */
+    public boolean isDocumentField() {
+        return documentField;
     }
 
 }
@@ -5,14 +5,21 @@ import lombok.Data;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 
 @Data
 @Builder
 @Document
 public class Book {
 
+    /**
+     * Generated when missing. Keyset pagination and catalog ranges are in ObjectId order, other ids are rejected, as
+     * are uppercase ones: Mongo stores ObjectIds, which read back in lowercase.
+     */
     @Id
+    @Pattern(regexp = "[0-9a-f]{24}", message = "must be a lowercase ObjectId")
     private String bookId;
 
     @NotNull
@@ -24,7 +31,11 @@ public class Book {
     @NotNull
     private String author;
 
+    /**
+     * Not negative, criteria without a minimum price and with a minimum price of zero share a percolator query.
+     */
     @NotNull
+    @DecimalMin("0")
     private Double price;
 
     @NotNull
@@ -0,0 +1,53 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Progress of an import of newline delimited books. Every line that could not be imported is counted as failed, the
+ * first ones are reported with their line number.
+ */
+@Value
+@Builder
+public class BookImport {
+
+    private String importId;
+
+    private Status status;
+
+    private long lines;
+
+    private long imported;
+
+    private long failed;
+
+    /**
+     * Imported books of which the matching preferences were published.
+     */
+    private long percolated;
+
+    private List<LineFailure> failures;
+
+    private Date startedAt;
+
+    private Date finishedAt;
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    @Value
+    @Builder
+    public static class LineFailure {
+
+        private long line;
+
+        private String reason;
+    }
+}
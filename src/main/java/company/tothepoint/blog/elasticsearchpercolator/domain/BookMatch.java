@@ -0,0 +1,43 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A preference a book matches, part of the {@link BookMatches} of the book. Stored one per document, a book can match
+ * any number of preferences.
+ */
+@Data
+@Builder
+@Document
+@CompoundIndex(name = "book_preference", def = "{'bookId': 1, 'searchPreferenceId': 1}")
+public class BookMatch {
+
+    /**
+     * The book id and the preference id, so a book matches a preference at most once.
+     */
+    @Id
+    private String matchId;
+
+    private String bookId;
+
+    /**
+     * Indexed to remove a deleted preference from all books.
+     */
+    @Indexed
+    private String searchPreferenceId;
+
+    /**
+     * Added by the materialized match store since the book was percolated, see
+     * {@link BookMatches#getUnpublishedSearchPreferenceIds()}.
+     */
+    private boolean unpublished;
+
+    public static String matchId(String bookId, String searchPreferenceId) {
+        return bookId + ":" + searchPreferenceId;
+    }
+}
@@ -0,0 +1,46 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+/**
+ * The preferences a book matched the last time it was percolated, to tell what changed when it is percolated again.
+ * Also read as the materialized matches of the book, kept up to date with the preferences that are created and deleted
+ * since.
+ * <p>
+ * The matches themselves are stored one {@link BookMatch} per preference, and read into this entry by the
+ * {@code BookMatchesRepository}.
+ */
+@Data
+@Builder
+@Document
+public class BookMatches {
+
+    @Id
+    private String bookId;
+
+    /**
+     * Sorted, without duplicates.
+     */
+    @Transient
+    private List<String> searchPreferenceIds;
+
+    /**
+     * Preferences created since the book was percolated, added to its matches by the materialized match store. They are
+     * no change yet to subscribers, so the next percolation still publishes them as matched.
+     */
+    @Transient
+    private List<String> unpublishedSearchPreferenceIds;
+
+    /**
+     * When the percolated version of the book was saved, so an older version percolated late is not stored over it.
+     */
+    private long savedAt;
+
+    private long matchedAt;
+}
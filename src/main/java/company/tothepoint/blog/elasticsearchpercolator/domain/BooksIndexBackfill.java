@@ -0,0 +1,43 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Progress of a backfill of the books index from Mongo, persisted so an interrupted backfill can be resumed.
+ */
+@Data
+@Builder
+@Document
+public class BooksIndexBackfill {
+
+    @Id
+    private String backfillId;
+
+    private Status status;
+
+    /**
+     * Id of the last book up to which all books have been written to the books index, in id order.
+     */
+    private String checkpoint;
+
+    private long total;
+
+    private long indexed;
+
+    private Date startedAt;
+
+    private Date finishedAt;
+
+    private String error;
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+}
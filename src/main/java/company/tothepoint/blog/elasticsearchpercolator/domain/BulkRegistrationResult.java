@@ -0,0 +1,33 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Outcome of registering a batch of search preferences. Every preference that could not be saved or indexed is
+ * reported by its position in the request.
+ */
+@Value
+@Builder
+public class BulkRegistrationResult {
+
+    private int registered;
+
+    private List<ItemFailure> failures;
+
+    @Value
+    @Builder
+    public static class ItemFailure {
+
+        private int position;
+
+        /**
+         * The id the preference was saved with, when it failed to be indexed. It is deleted again.
+         */
+        private String searchPreferenceId;
+
+        private String reason;
+    }
+}
@@ -0,0 +1,29 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A preference created or deleted while the percolator index is rebuilt, replayed on the target index before it is
+ * swapped in. Stored one per document, a rebuild can capture any number of writes.
+ */
+@Data
+@Builder
+@Document
+public class CapturedWrite {
+
+    @Id
+    private String captureId;
+
+    @Indexed
+    private String rebuildId;
+
+    private String searchPreferenceId;
+
+    private String percolatorId;
+
+    private String routing;
+}
@@ -0,0 +1,80 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Progress of a re-percolation of all books in the catalog, persisted per range of book ids so an interrupted rescan
+ * can be resumed.
+ */
+@Data
+@Builder
+@Document
+public class CatalogRescan {
+
+    @Id
+    private String rescanId;
+
+    private Status status;
+
+    /**
+     * Consecutive ranges of book ids covering the whole catalog, each scanned in id order on its own.
+     */
+    private List<Range> ranges;
+
+    /**
+     * The number of books when the rescan started, books added since are scanned as well.
+     */
+    private long total;
+
+    private long scanned;
+
+    private Date startedAt;
+
+    private Date finishedAt;
+
+    private String error;
+
+    /**
+     * When the rescan is expected to finish at the rate since it was (re)started, only known while it runs.
+     */
+    @Transient
+    private Date estimatedFinishAt;
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    @Data
+    @Builder
+    public static class Range {
+
+        /**
+         * The id after which the range starts, {@code null} for the first range.
+         */
+        private String from;
+
+        /**
+         * The last id of the range, {@code null} for the last range.
+         */
+        private String to;
+
+        /**
+         * The id up to which all books of the range are percolated.
+         */
+        private String checkpoint;
+
+        private long scanned;
+
+        private boolean completed;
+    }
+}
@@ -0,0 +1,31 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * One page of a keyset paginated result. Pass {@code nextCursor} back to fetch the following page, it is
+ * {@code null} when there are no more results.
+ */
+@Value
+@Builder
+public class CursorPage<T> {
+
+    private List<T> items;
+
+    private String nextCursor;
+
+    /**
+     * A page of at most {@code size} items in id order. A full page continues after the id of its last item, as
+     * there may be more.
+     */
+    public static <T> CursorPage<T> of(List<T> items, int size, Function<T, String> idOf) {
+        return CursorPage.<T>builder()
+                .items(items)
+                .nextCursor(!items.isEmpty() && items.size() == size ? idOf.apply(items.get(items.size() - 1)) : null)
+                .build();
+    }
+}
@@ -0,0 +1,29 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * Published when a book has been matched against the registered search preferences. When the previous matches of
+ * the book are known, the event only holds what changed since.
+ */
+@Value
+@Builder
+public class MatchEvent {
+
+    private String bookId;
+
+    /**
+     * The preferences the book matches and did not match before, all its matches the first time it is matched.
+     */
+    private List<String> searchPreferenceIds;
+
+    /**
+     * The preferences the book matched before and no longer matches.
+     */
+    private List<String> unmatchedSearchPreferenceIds;
+
+    private long matchedAt;
+}
@@ -0,0 +1,31 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Outcome of verifying a sample of the materialized matches against a live match of their books.
+ */
+@Value
+@Builder
+public class MatchStoreVerification {
+
+    private int sampled;
+
+    private int consistent;
+
+    /**
+     * Books of which the stored matches differed from the live ones, and that were percolated again to repair them.
+     */
+    private List<String> inconsistentBookIds;
+
+    /**
+     * Stored matches of books that are no longer in the catalog, which were removed.
+     */
+    private int orphaned;
+
+    private Date verifiedAt;
+}
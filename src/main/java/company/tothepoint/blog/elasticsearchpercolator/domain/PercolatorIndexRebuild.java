@@ -0,0 +1,50 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Progress of a rebuild of the percolator index from Mongo, persisted so an interrupted rebuild can be resumed.
+ */
+@Data
+@Builder
+@Document
+public class PercolatorIndexRebuild {
+
+    @Id
+    private String rebuildId;
+
+    /**
+     * The versioned index that is filled, and swapped in behind the alias once complete.
+     */
+    private String targetIndex;
+
+    private Status status;
+
+    /**
+     * Id of the last preference up to which all preferences have been indexed, in id order.
+     */
+    private String checkpoint;
+
+    private long total;
+
+    private long indexed;
+
+    private long failed;
+
+    private Date startedAt;
+
+    private Date finishedAt;
+
+    private String error;
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+}
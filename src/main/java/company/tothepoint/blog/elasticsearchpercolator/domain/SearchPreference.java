@@ -8,13 +8,19 @@ import org.springframework.data.mongodb.core.mapping.Document;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
 
 @Data
 @Builder
 @Document
 public class SearchPreference {
 
+    /**
+     * Generated when missing. Preferences are paged and rebuilt in ObjectId order, other ids are rejected, as are
+     * uppercase ones: Mongo stores ObjectIds, which read back in lowercase.
+     */
     @Id
+    @Pattern(regexp = "[0-9a-f]{24}", message = "must be a lowercase ObjectId")
     private String searchPreferenceId;
 
     @NotNull
@@ -0,0 +1,26 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * One percolator query shared by all search preferences with the same canonical criteria. The preferences themselves
+ * are stored as {@link SharedQueryReference}s, the shared query only counts them.
+ */
+@Data
+@Builder
+@Document
+public class SharedQuery {
+
+    /**
+     * The criteria signature, also the id of the query in the percolator index.
+     */
+    @Id
+    private String signature;
+
+    private SearchPreference.Criteria criteria;
+
+    private int referenceCount;
+}
@@ -0,0 +1,32 @@
+package company.tothepoint.blog.elasticsearchpercolator.domain;
+
+import lombok.Builder;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * A search preference served by a {@link SharedQuery}. Stored one per document, a shared query can serve any number of
+ * preferences.
+ */
+@Data
+@Builder
+@Document
+public class SharedQueryReference {
+
+    /**
+     * The signature and the preference id, so a preference is referenced at most once.
+     */
+    @Id
+    private String referenceId;
+
+    @Indexed
+    private String signature;
+
+    private String searchPreferenceId;
+
+    public static String referenceId(String signature, String searchPreferenceId) {
+        return signature + ":" + searchPreferenceId;
+    }
+}
@@ -0,0 +1,7 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import org.springframework.data.repository.CrudRepository;
+
+public interface BookMatchRepository extends CrudRepository<BookMatch, String> {
+}
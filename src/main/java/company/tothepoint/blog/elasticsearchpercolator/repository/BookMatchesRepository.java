@@ -0,0 +1,7 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import org.springframework.data.repository.CrudRepository;
+
+public interface BookMatchesRepository extends CrudRepository<BookMatches, String>, BookMatchesRepositoryCustom {
+}
@@ -0,0 +1,60 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+public interface BookMatchesRepositoryCustom {
+
+    /**
+     * @return the entry of the book with its matches, or {@code null} when the book has no entry
+     */
+    BookMatches findMatches(String bookId);
+
+    /**
+     * @return the entries of the books that have one, with their matches
+     */
+    List<BookMatches> findAllMatches(Collection<String> bookIds);
+
+    /**
+     * Store percolated books: insert or replace their entries, insert their new matches or publish the ones that were
+     * unpublished, and remove the matches they lost. One unordered bulk write per collection, the matches first.
+     *
+     * @param bookMatches       the entries, their matches are not written
+     * @param matched           the matches to insert or publish
+     * @param unmatchedMatchIds the ids of the matches to remove
+     */
+    void saveMatches(Collection<BookMatches> bookMatches, Collection<BookMatch> matched, Collection<String> unmatchedMatchIds);
+
+    /**
+     * Add a preference to the matches of books that have an entry, marked unpublished.
+     */
+    void addSearchPreference(Collection<String> bookIds, String searchPreferenceId);
+
+    /**
+     * Add many preferences to the matches of books that have an entry, marked unpublished, with one bulk write.
+     *
+     * @param bookIdsBySearchPreferenceId the books to add each preference to
+     */
+    void addSearchPreferences(Map<String, ? extends Collection<String>> bookIdsBySearchPreferenceId);
+
+    /**
+     * Remove a preference from the matches of all books.
+     *
+     * @return the number of books that matched it
+     */
+    long removeSearchPreference(String searchPreferenceId);
+
+    /**
+     * Delete the entry of a book and its matches.
+     */
+    void deleteMatches(String bookId);
+
+    /**
+     * @return up to {@code size} consecutive entries in id order with their matches, from a random position
+     */
+    List<BookMatches> findSample(int size);
+}
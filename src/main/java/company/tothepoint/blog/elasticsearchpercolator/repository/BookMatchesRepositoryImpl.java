@@ -0,0 +1,158 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class BookMatchesRepositoryImpl implements BookMatchesRepositoryCustom {
+
+    private static final String ID_FIELD = "_id";
+
+    private static final String BOOK_ID_FIELD = "bookId";
+
+    private static final String SEARCH_PREFERENCE_ID_FIELD = "searchPreferenceId";
+
+    private static final String UNPUBLISHED_FIELD = "unpublished";
+
+    private final MongoTemplate mongoTemplate;
+
+    public BookMatchesRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public BookMatches findMatches(String bookId) {
+        List<BookMatches> matches = findAllMatches(Collections.singletonList(bookId));
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    @Override
+    public List<BookMatches> findAllMatches(Collection<String> bookIds) {
+        if (bookIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return withMatches(mongoTemplate.find(new Query(Criteria.where(ID_FIELD).in(bookIds)), BookMatches.class));
+    }
+
+    @Override
+    public void saveMatches(Collection<BookMatches> bookMatches, Collection<BookMatch> matched, Collection<String> unmatchedMatchIds) {
+        if (!matched.isEmpty() || !unmatchedMatchIds.isEmpty()) {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BookMatch.class);
+            for (BookMatch match : matched) {
+                bulk.upsert(new Query(Criteria.where(ID_FIELD).is(match.getMatchId())), new Update()
+                        .set(BOOK_ID_FIELD, match.getBookId())
+                        .set(SEARCH_PREFERENCE_ID_FIELD, match.getSearchPreferenceId())
+                        .set(UNPUBLISHED_FIELD, false));
+            }
+            if (!unmatchedMatchIds.isEmpty()) {
+                bulk.remove(new Query(Criteria.where(ID_FIELD).in(unmatchedMatchIds)));
+            }
+            bulk.execute();
+        }
+
+        if (!bookMatches.isEmpty()) {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BookMatches.class);
+            for (BookMatches matches : bookMatches) {
+                bulk.upsert(new Query(Criteria.where(ID_FIELD).is(matches.getBookId())), new Update()
+                        .set("savedAt", matches.getSavedAt())
+                        .set("matchedAt", matches.getMatchedAt()));
+            }
+            bulk.execute();
+        }
+    }
+
+    @Override
+    public void addSearchPreference(Collection<String> bookIds, String searchPreferenceId) {
+        addSearchPreferences(Collections.singletonMap(searchPreferenceId, bookIds));
+    }
+
+    @Override
+    public void addSearchPreferences(Map<String, ? extends Collection<String>> bookIdsBySearchPreferenceId) {
+        Set<String> bookIds = new HashSet<>();
+        bookIdsBySearchPreferenceId.values().forEach(bookIds::addAll);
+        if (bookIds.isEmpty()) {
+            return;
+        }
+
+        Query entries = new Query(Criteria.where(ID_FIELD).in(bookIds));
+        entries.fields().include(ID_FIELD);
+        Set<String> withEntry = new HashSet<>();
+        mongoTemplate.find(entries, BookMatches.class).forEach(matches -> withEntry.add(matches.getBookId()));
+        if (withEntry.isEmpty()) {
+            return;
+        }
+
+        // Books that match a preference already keep their match as it is, published or not
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BookMatch.class);
+        bookIdsBySearchPreferenceId.forEach((searchPreferenceId, preferenceBookIds) -> preferenceBookIds.stream()
+                .filter(withEntry::contains)
+                .forEach(bookId -> bulk.upsert(new Query(Criteria.where(ID_FIELD).is(BookMatch.matchId(bookId, searchPreferenceId))), new Update()
+                        .setOnInsert(BOOK_ID_FIELD, bookId)
+                        .setOnInsert(SEARCH_PREFERENCE_ID_FIELD, searchPreferenceId)
+                        .setOnInsert(UNPUBLISHED_FIELD, true))));
+        bulk.execute();
+    }
+
+    @Override
+    public long removeSearchPreference(String searchPreferenceId) {
+        return mongoTemplate.remove(new Query(Criteria.where(SEARCH_PREFERENCE_ID_FIELD).is(searchPreferenceId)), BookMatch.class)
+                .getN();
+    }
+
+    @Override
+    public void deleteMatches(String bookId) {
+        mongoTemplate.remove(new Query(Criteria.where(ID_FIELD).is(bookId)), BookMatches.class);
+        mongoTemplate.remove(new Query(Criteria.where(BOOK_ID_FIELD).is(bookId)), BookMatch.class);
+    }
+
+    @Override
+    public List<BookMatches> findSample(int size) {
+        long count = mongoTemplate.count(new Query(), BookMatches.class);
+        int skip = count > size ? (int) ThreadLocalRandom.current().nextLong(count - size + 1) : 0;
+        return withMatches(mongoTemplate.find(new Query()
+                .with(new Sort(Sort.Direction.ASC, ID_FIELD))
+                .skip(skip)
+                .limit(size), BookMatches.class));
+    }
+
+    /**
+     * Read the matches of the entries with one query, sorted by book and preference as the compound index is.
+     */
+    private List<BookMatches> withMatches(List<BookMatches> entries) {
+        if (entries.isEmpty()) {
+            return entries;
+        }
+
+        Map<String, BookMatches> entriesByBookId = new HashMap<>();
+        for (BookMatches matches : entries) {
+            matches.setSearchPreferenceIds(new ArrayList<>());
+            matches.setUnpublishedSearchPreferenceIds(new ArrayList<>());
+            entriesByBookId.put(matches.getBookId(), matches);
+        }
+        List<BookMatch> bookMatches = mongoTemplate.find(new Query(Criteria.where(BOOK_ID_FIELD).in(entriesByBookId.keySet()))
+                .with(new Sort(Sort.Direction.ASC, BOOK_ID_FIELD, SEARCH_PREFERENCE_ID_FIELD)), BookMatch.class);
+        for (BookMatch match : bookMatches) {
+            BookMatches matches = entriesByBookId.get(match.getBookId());
+            matches.getSearchPreferenceIds().add(match.getSearchPreferenceId());
+            if (match.isUnpublished()) {
+                matches.getUnpublishedSearchPreferenceIds().add(match.getSearchPreferenceId());
+            }
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,38 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+public interface BookRepositoryCustom {
+
+    /**
+     * One page of books in id order. Seeks on the id index instead of skipping, so every page costs the same.
+     *
+     * @param bookId only books with a greater id are returned, {@code null} to start at the first
+     */
+    List<Book> findPageAfter(String bookId, int size);
+
+    /**
+     * Iterate the books in id order with a Mongo cursor, the stream has to be closed after use.
+     *
+     * @param bookId only books with a greater id are returned, {@code null} to start at the first
+     */
+    Stream<Book> streamAllAfter(String bookId);
+
+    /**
+     * Iterate the books of a range of ids in id order with a Mongo cursor, the stream has to be closed after use.
+     *
+     * @param bookId     only books with a greater id are returned, {@code null} to start at the first
+     * @param lastBookId only books with this id or a lower one are returned, {@code null} to go on to the last
+     */
+    Stream<Book> streamRange(String bookId, String lastBookId);
+
+    /**
+     * Split the ids of the books into ranges of about the same number of books.
+     *
+     * @return the last id of every range but the last, in id order. Fewer when there are fewer books than ranges
+     */
+    List<String> findRangeBoundaries(int ranges);
+}
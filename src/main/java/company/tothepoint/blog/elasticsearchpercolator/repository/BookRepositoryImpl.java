@@ -0,0 +1,74 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.StreamUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class BookRepositoryImpl implements BookRepositoryCustom {
+
+    private static final String ID_FIELD = "_id";
+
+    private final MongoTemplate mongoTemplate;
+
+    public BookRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public List<Book> findPageAfter(String bookId, int size) {
+        return mongoTemplate.find(queryAfter(bookId).limit(size), Book.class);
+    }
+
+    @Override
+    public Stream<Book> streamAllAfter(String bookId) {
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(queryAfter(bookId), Book.class));
+    }
+
+    @Override
+    public Stream<Book> streamRange(String bookId, String lastBookId) {
+        Criteria range = Criteria.where(ID_FIELD);
+        if (bookId != null) {
+            range.gt(new ObjectId(bookId));
+        }
+        if (lastBookId != null) {
+            range.lte(new ObjectId(lastBookId));
+        }
+        Query query = bookId == null && lastBookId == null ? new Query() : new Query(range);
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(query.with(new Sort(Sort.Direction.ASC, ID_FIELD)), Book.class));
+    }
+
+    @Override
+    public List<String> findRangeBoundaries(int ranges) {
+        long count = mongoTemplate.count(new Query(), Book.class);
+        List<String> boundaries = new ArrayList<>();
+        for (int range = 1; range < ranges; range++) {
+            long rangeEnd = count * range / ranges;
+            if (rangeEnd == 0) {
+                continue;
+            }
+            // Skipping walks the id index only, once per boundary
+            Query query = queryAfter(null).skip((int) rangeEnd - 1).limit(1);
+            query.fields().include(ID_FIELD);
+            Book last = mongoTemplate.findOne(query, Book.class);
+            if (last != null && (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(last.getBookId()))) {
+                boundaries.add(last.getBookId());
+            }
+        }
+        return boundaries;
+    }
+
+    private static Query queryAfter(String bookId) {
+        Query query = bookId == null
+                ? new Query()
+                : new Query(Criteria.where(ID_FIELD).gt(new ObjectId(bookId)));
+        return query.with(new Sort(Sort.Direction.ASC, ID_FIELD));
+    }
+}
@@ -0,0 +1,9 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+import org.springframework.data.repository.CrudRepository;
+
+public interface BooksIndexBackfillRepository extends CrudRepository<BooksIndexBackfill, String>, BooksIndexBackfillRepositoryCustom {
+
+    BooksIndexBackfill findFirstByOrderByStartedAtDesc();
+}
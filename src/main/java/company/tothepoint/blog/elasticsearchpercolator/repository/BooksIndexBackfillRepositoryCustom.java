@@ -0,0 +1,15 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+
+import java.util.Date;
+
+/**
+ * Partial updates of a backfill, so the progress and the status are written without reading the backfill first.
+ */
+public interface BooksIndexBackfillRepositoryCustom {
+
+    void updateProgress(String backfillId, String checkpoint, long indexed);
+
+    void updateStatus(String backfillId, BooksIndexBackfill.Status status, String error, Date finishedAt);
+}
@@ -0,0 +1,39 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+
+public class BooksIndexBackfillRepositoryImpl implements BooksIndexBackfillRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public BooksIndexBackfillRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void updateProgress(String backfillId, String checkpoint, long indexed) {
+        mongoTemplate.updateFirst(byId(backfillId), new Update()
+                        .set("checkpoint", checkpoint)
+                        .set("indexed", indexed),
+                BooksIndexBackfill.class);
+    }
+
+    @Override
+    public void updateStatus(String backfillId, BooksIndexBackfill.Status status, String error, Date finishedAt) {
+        mongoTemplate.updateFirst(byId(backfillId), new Update()
+                        .set("status", status)
+                        .set("error", error)
+                        .set("finishedAt", finishedAt),
+                BooksIndexBackfill.class);
+    }
+
+    private static Query byId(String backfillId) {
+        return new Query(Criteria.where("_id").is(backfillId));
+    }
+}
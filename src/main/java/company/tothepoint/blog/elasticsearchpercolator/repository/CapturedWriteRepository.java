@@ -0,0 +1,15 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.CapturedWrite;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface CapturedWriteRepository extends CrudRepository<CapturedWrite, String> {
+
+    List<CapturedWrite> findByRebuildId(String rebuildId, Pageable pageable);
+
+    void deleteByCaptureIdIn(Collection<String> captureIds);
+}
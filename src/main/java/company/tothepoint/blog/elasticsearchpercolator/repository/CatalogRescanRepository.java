@@ -0,0 +1,9 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.CatalogRescan;
+import org.springframework.data.repository.CrudRepository;
+
+public interface CatalogRescanRepository extends CrudRepository<CatalogRescan, String>, CatalogRescanRepositoryCustom {
+
+    CatalogRescan findFirstByOrderByStartedAtDesc();
+}
@@ -0,0 +1,14 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+/**
+ * Partial updates of a rescan, so the ranges scanned by concurrent threads do not overwrite each other's progress.
+ */
+public interface CatalogRescanRepositoryCustom {
+
+    /**
+     * Move the checkpoint of a range after a batch of its books was percolated.
+     */
+    void updateRange(String rescanId, int range, String checkpoint, long scanned);
+
+    void completeRange(String rescanId, int range);
+}
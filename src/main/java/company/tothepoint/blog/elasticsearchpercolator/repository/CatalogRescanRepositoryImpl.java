@@ -0,0 +1,35 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.CatalogRescan;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+public class CatalogRescanRepositoryImpl implements CatalogRescanRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public CatalogRescanRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void updateRange(String rescanId, int range, String checkpoint, long scanned) {
+        mongoTemplate.updateFirst(byId(rescanId), new Update()
+                        .set("ranges." + range + ".checkpoint", checkpoint)
+                        .inc("ranges." + range + ".scanned", scanned)
+                        .inc("scanned", scanned),
+                CatalogRescan.class);
+    }
+
+    @Override
+    public void completeRange(String rescanId, int range) {
+        mongoTemplate.updateFirst(byId(rescanId), new Update().set("ranges." + range + ".completed", true),
+                CatalogRescan.class);
+    }
+
+    private static Query byId(String rescanId) {
+        return new Query(Criteria.where("_id").is(rescanId));
+    }
+}
@@ -0,0 +1,9 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+import org.springframework.data.repository.CrudRepository;
+
+public interface PercolatorIndexRebuildRepository extends CrudRepository<PercolatorIndexRebuild, String>, PercolatorIndexRebuildRepositoryCustom {
+
+    PercolatorIndexRebuild findFirstByOrderByStartedAtDesc();
+}
@@ -0,0 +1,15 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+
+import java.util.Date;
+
+/**
+ * Partial updates of a rebuild, so progress reports of concurrent threads do not overwrite each other.
+ */
+public interface PercolatorIndexRebuildRepositoryCustom {
+
+    void updateProgress(String rebuildId, String checkpoint, long indexed, long failed);
+
+    void updateStatus(String rebuildId, PercolatorIndexRebuild.Status status, String error, Date finishedAt);
+}
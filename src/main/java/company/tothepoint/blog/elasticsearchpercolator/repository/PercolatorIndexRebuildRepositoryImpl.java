@@ -0,0 +1,40 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Date;
+
+public class PercolatorIndexRebuildRepositoryImpl implements PercolatorIndexRebuildRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public PercolatorIndexRebuildRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public void updateProgress(String rebuildId, String checkpoint, long indexed, long failed) {
+        mongoTemplate.updateFirst(byId(rebuildId), new Update()
+                        .set("checkpoint", checkpoint)
+                        .set("indexed", indexed)
+                        .set("failed", failed),
+                PercolatorIndexRebuild.class);
+    }
+
+    @Override
+    public void updateStatus(String rebuildId, PercolatorIndexRebuild.Status status, String error, Date finishedAt) {
+        mongoTemplate.updateFirst(byId(rebuildId), new Update()
+                        .set("status", status)
+                        .set("error", error)
+                        .set("finishedAt", finishedAt),
+                PercolatorIndexRebuild.class);
+    }
+
+    private static Query byId(String rebuildId) {
+        return new Query(Criteria.where("_id").is(rebuildId));
+    }
+}
@@ -1,7 +1,16 @@
 package company.tothepoint.blog.elasticsearchpercolator.repository;
 
 import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 
-public interface SearchPreferenceRepository extends CrudRepository<SearchPreference, String> {
+import java.util.stream.Stream;
+
+public interface SearchPreferenceRepository extends CrudRepository<SearchPreference, String>, SearchPreferenceRepositoryCustom {
+
+    /**
+     * Iterate all preferences with a Mongo cursor, the stream has to be closed after use.
+     */
+    @Query("{}")
+    Stream<SearchPreference> streamAll();
 }
@@ -0,0 +1,29 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+public interface SearchPreferenceRepositoryCustom {
+
+    /**
+     * Load the given preferences in a single round-trip, only fetching the fields needed to return them to a client.
+     */
+    List<SearchPreference> findAllForHydration(Collection<String> searchPreferenceIds);
+
+    /**
+     * One page of preferences in id order. Seeks on the id index instead of skipping, so every page costs the same.
+     *
+     * @param searchPreferenceId only preferences with a greater id are returned, {@code null} to start at the first
+     */
+    List<SearchPreference> findPageAfter(String searchPreferenceId, int size);
+
+    /**
+     * Iterate the preferences in id order with a Mongo cursor, the stream has to be closed after use.
+     *
+     * @param searchPreferenceId only preferences with a greater id are returned, {@code null} to start at the first
+     */
+    Stream<SearchPreference> streamAllAfter(String searchPreferenceId);
+}
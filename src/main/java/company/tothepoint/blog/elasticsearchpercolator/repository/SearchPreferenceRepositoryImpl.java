@@ -0,0 +1,55 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.StreamUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class SearchPreferenceRepositoryImpl implements SearchPreferenceRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public SearchPreferenceRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public List<SearchPreference> findAllForHydration(Collection<String> searchPreferenceIds) {
+        if (searchPreferenceIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Query query = new Query(Criteria.where("_id").in(searchPreferenceIds));
+        query.fields()
+                .include("title")
+                .include("email")
+                .include("criteria");
+        return mongoTemplate.find(query, SearchPreference.class);
+    }
+
+    @Override
+    public List<SearchPreference> findPageAfter(String searchPreferenceId, int size) {
+        return mongoTemplate.find(queryAfter(searchPreferenceId).limit(size), SearchPreference.class);
+    }
+
+    @Override
+    public Stream<SearchPreference> streamAllAfter(String searchPreferenceId) {
+        return StreamUtils.createStreamFromIterator(
+                mongoTemplate.stream(queryAfter(searchPreferenceId), SearchPreference.class));
+    }
+
+    private static Query queryAfter(String searchPreferenceId) {
+        Query query = searchPreferenceId == null
+                ? new Query()
+                : new Query(Criteria.where("_id").gt(new ObjectId(searchPreferenceId)));
+        return query.with(new Sort(Sort.Direction.ASC, "_id"));
+    }
+}
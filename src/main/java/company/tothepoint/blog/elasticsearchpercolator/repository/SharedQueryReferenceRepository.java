@@ -0,0 +1,12 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQueryReference;
+import org.springframework.data.repository.CrudRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface SharedQueryReferenceRepository extends CrudRepository<SharedQueryReference, String> {
+
+    List<SharedQueryReference> findBySignatureIn(Collection<String> signatures);
+}
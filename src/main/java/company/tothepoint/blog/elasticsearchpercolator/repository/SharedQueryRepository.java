@@ -0,0 +1,7 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQuery;
+import org.springframework.data.repository.CrudRepository;
+
+public interface SharedQueryRepository extends CrudRepository<SharedQuery, String>, SharedQueryRepositoryCustom {
+}
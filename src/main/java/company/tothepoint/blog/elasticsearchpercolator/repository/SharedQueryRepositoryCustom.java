@@ -0,0 +1,24 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQuery;
+
+public interface SharedQueryRepositoryCustom {
+
+    /**
+     * Add a preference to the shared query of a signature, creating the shared query when needed. The reference is
+     * stored first and the count is updated atomically. Adding a preference that is already referenced does not change
+     * the reference count.
+     *
+     * @return the shared query after the update
+     */
+    SharedQuery addReference(String signature, SearchPreference.Criteria criteria, String searchPreferenceId);
+
+    /**
+     * Remove a preference from the shared query of a signature. The shared query itself is removed once it is no
+     * longer referenced.
+     *
+     * @return the shared query after the update, or {@code null} when it did not reference the preference
+     */
+    SharedQuery removeReference(String signature, String searchPreferenceId);
+}
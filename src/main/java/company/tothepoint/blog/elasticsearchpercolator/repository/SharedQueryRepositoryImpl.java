@@ -0,0 +1,74 @@
+package company.tothepoint.blog.elasticsearchpercolator.repository;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQuery;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQueryReference;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+public class SharedQueryRepositoryImpl implements SharedQueryRepositoryCustom {
+
+    private static final String ID_FIELD = "_id";
+    private static final String REFERENCE_COUNT_FIELD = "referenceCount";
+
+    private final MongoTemplate mongoTemplate;
+
+    public SharedQueryRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public SharedQuery addReference(String signature, SearchPreference.Criteria criteria, String searchPreferenceId) {
+        try {
+            mongoTemplate.insert(SharedQueryReference.builder()
+                    .referenceId(SharedQueryReference.referenceId(signature, searchPreferenceId))
+                    .signature(signature)
+                    .searchPreferenceId(searchPreferenceId)
+                    .build());
+        } catch (DuplicateKeyException e) {
+            // Already referenced, and so already counted
+            return mongoTemplate.findById(signature, SharedQuery.class);
+        }
+
+        Update addReference = new Update()
+                .inc(REFERENCE_COUNT_FIELD, 1)
+                .setOnInsert("criteria", criteria);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return mongoTemplate.findAndModify(new Query(Criteria.where(ID_FIELD).is(signature)), addReference,
+                        FindAndModifyOptions.options().upsert(true).returnNew(true), SharedQuery.class);
+            } catch (DuplicateKeyException e) {
+                // A concurrent upsert created the shared query first, the retry updates it
+                if (attempt > 0) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public SharedQuery removeReference(String signature, String searchPreferenceId) {
+        SharedQueryReference reference = mongoTemplate.findAndRemove(
+                new Query(Criteria.where(ID_FIELD).is(SharedQueryReference.referenceId(signature, searchPreferenceId))),
+                SharedQueryReference.class);
+        if (reference == null) {
+            return null;
+        }
+
+        SharedQuery sharedQuery = mongoTemplate.findAndModify(
+                new Query(Criteria.where(ID_FIELD).is(signature)),
+                new Update().inc(REFERENCE_COUNT_FIELD, -1),
+                FindAndModifyOptions.options().returnNew(true),
+                SharedQuery.class);
+
+        if (sharedQuery != null && sharedQuery.getReferenceCount() <= 0) {
+            mongoTemplate.remove(new Query(Criteria.where(ID_FIELD).is(signature)
+                    .and(REFERENCE_COUNT_FIELD).lte(0)), SharedQuery.class);
+        }
+        return sharedQuery;
+    }
+}
@@ -0,0 +1,292 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import com.mongodb.DBObject;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_ID_FIELD;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_MAPPING_TYPE;
+
+/**
+ * Keeps the optional books index in sync with the books saved in and deleted from Mongo, by their id. The percolated
+ * document of every saved book is written through a {@link BulkProcessor}, so a book can be percolated by reference
+ * once its bulk is flushed. Until then, and for removals by anything else than the id, the index lags behind Mongo.
+ * Books saved before the index was enabled are written by the {@link BooksIndexBackfiller}.
+ * <p>
+ * The index is also searched with the queries of preferences, to find the books that already match a preference.
+ */
+@Slf4j
+@Component
+public class BooksIndex extends AbstractMongoEventListener<Book> {
+
+    private static final String ID_FIELD = "_id";
+
+    private final Client elasticsearchClient;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final boolean enabled;
+
+    private final int bulkActions;
+
+    private final TimeValue flushInterval;
+
+    private final int searchPageSize;
+
+    private BulkProcessor bulkProcessor;
+
+    public BooksIndex(Client elasticsearchClient,
+                      PercolatorQueries percolatorQueries,
+                      @Value("${company.tothepoint.blog.percolator.books-index.enabled:false}") boolean enabled,
+                      @Value("${company.tothepoint.blog.percolator.books-index.bulk-actions:1000}") int bulkActions,
+                      @Value("${company.tothepoint.blog.percolator.books-index.flush-interval:1s}") String flushInterval,
+                      @Value("${company.tothepoint.blog.percolator.books-index.search-page-size:1000}") int searchPageSize) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.percolatorQueries = percolatorQueries;
+        this.enabled = enabled;
+        this.bulkActions = bulkActions;
+        this.flushInterval = TimeValue.parseTimeValue(flushInterval, "books-index.flush-interval");
+        this.searchPageSize = searchPageSize;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        bulkProcessor = BulkProcessor.builder(elasticsearchClient, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (item.isFailed()) {
+                            log.warn("Could not write book {} to the books index: {}", item.getId(), item.getFailureMessage());
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                log.error("Error while writing {} books to the books index", request.numberOfActions(), failure);
+            }
+        })
+                .setBulkActions(bulkActions)
+                .setFlushInterval(flushInterval)
+                .build();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (bulkProcessor != null) {
+            bulkProcessor.awaitClose(30, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return when the books index was created, in epoch milliseconds
+     */
+    public long getCreationDate() {
+        return elasticsearchClient.admin().indices().prepareGetSettings(BOOKS_INDEX).get()
+                .getIndexToSettings().get(BOOKS_INDEX)
+                .getAsLong("index.creation_date", 0L);
+    }
+
+    /**
+     * Send the pending writes to Elasticsearch now. They are not visible to percolation before this returns, or
+     * before the flush interval elapsed.
+     */
+    public void flush() {
+        if (bulkProcessor != null) {
+            bulkProcessor.flush();
+        }
+    }
+
+    /**
+     * Walk the ids of all books in the index matching a query, in id order, handing them over page by page. Pages
+     * follow each other with {@code search_after} on the id, so no search context is kept open and every page costs
+     * the same. Books written before their id was indexed are left out until they are saved again or backfilled.
+     */
+    public void streamMatchingBookIds(QueryBuilder query, IOConsumer<List<String>> pageConsumer) throws IOException {
+        QueryBuilder pagedQuery = pagedQuery(query);
+        Object[] searchAfter = null;
+        while (true) {
+            SearchHit[] hits = pageSearch(pagedQuery, searchAfter).get().getHits().getHits();
+            if (hits.length == 0) {
+                return;
+            }
+            pageConsumer.accept(bookIds(hits));
+            if (hits.length < searchPageSize) {
+                return;
+            }
+            searchAfter = hits[hits.length - 1].getSortValues();
+        }
+    }
+
+    /**
+     * Walk the ids of all books in the index matching each of many queries, like
+     * {@link #streamMatchingBookIds(QueryBuilder, IOConsumer)}, with one multi search per round instead of one search
+     * per query: the first pages of all queries, then the next pages of the queries that filled theirs.
+     *
+     * @param pagesConsumer takes the pages of a round, by the position of their query
+     */
+    public void streamMatchingBookIds(List<QueryBuilder> queries, IOConsumer<Map<Integer, List<String>>> pagesConsumer) throws IOException {
+        Map<Integer, QueryBuilder> pagedQueries = new LinkedHashMap<>();
+        Map<Integer, Object[]> searchAfters = new HashMap<>();
+        for (int i = 0; i < queries.size(); i++) {
+            pagedQueries.put(i, pagedQuery(queries.get(i)));
+        }
+        while (!pagedQueries.isEmpty()) {
+            MultiSearchRequestBuilder multiSearch = elasticsearchClient.prepareMultiSearch();
+            List<Integer> positions = new ArrayList<>(pagedQueries.keySet());
+            positions.forEach(position -> multiSearch.add(pageSearch(pagedQueries.get(position), searchAfters.get(position))));
+            MultiSearchResponse.Item[] responses = multiSearch.get().getResponses();
+
+            Map<Integer, List<String>> pages = new HashMap<>();
+            for (int i = 0; i < positions.size(); i++) {
+                Integer position = positions.get(i);
+                if (responses[i].isFailure()) {
+                    throw new IOException("Searching the books index failed", responses[i].getFailure());
+                }
+                SearchHit[] hits = responses[i].getResponse().getHits().getHits();
+                if (hits.length > 0) {
+                    pages.put(position, bookIds(hits));
+                }
+                if (hits.length < searchPageSize) {
+                    pagedQueries.remove(position);
+                } else {
+                    searchAfters.put(position, hits[hits.length - 1].getSortValues());
+                }
+            }
+            if (!pages.isEmpty()) {
+                pagesConsumer.accept(pages);
+            }
+        }
+    }
+
+    private static QueryBuilder pagedQuery(QueryBuilder query) {
+        return QueryBuilders.boolQuery()
+                .filter(query)
+                .filter(QueryBuilders.existsQuery(BOOKS_INDEX_ID_FIELD));
+    }
+
+    private SearchRequestBuilder pageSearch(QueryBuilder pagedQuery, Object[] searchAfter) {
+        SearchRequestBuilder search = elasticsearchClient.prepareSearch(BOOKS_INDEX)
+                .setQuery(pagedQuery)
+                .setFetchSource(false)
+                .setSize(searchPageSize)
+                .addSort(SortBuilders.fieldSort(BOOKS_INDEX_ID_FIELD).order(SortOrder.ASC));
+        if (searchAfter != null) {
+            search.searchAfter(searchAfter);
+        }
+        return search;
+    }
+
+    private static List<String> bookIds(SearchHit[] hits) {
+        List<String> bookIds = new ArrayList<>(hits.length);
+        for (SearchHit hit : hits) {
+            bookIds.add(hit.getId());
+        }
+        return bookIds;
+    }
+
+    @Override
+    public void onAfterSave(AfterSaveEvent<Book> event) {
+        if (!enabled) {
+            return;
+        }
+
+        index(event.getSource());
+    }
+
+    /**
+     * Write books that were saved without going through the mapping events, like with bulk operations.
+     */
+    public void index(Collection<Book> books) {
+        if (enabled) {
+            books.forEach(this::index);
+        }
+    }
+
+    private void index(Book book) {
+        try {
+            bulkProcessor.add(new IndexRequest(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, book.getBookId())
+                    .source(percolatorQueries.createBooksIndexDocument(book)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write books that were saved before the books index was enabled, in one synchronous bulk request. A book that is
+     * in the index already was written by its latest save, so it is not overwritten: only its id field is added, for
+     * documents indexed before the id was.
+     */
+    public BulkResponse backfill(List<Book> books) throws IOException {
+        BulkRequestBuilder bulkRequest = elasticsearchClient.prepareBulk();
+        for (Book book : books) {
+            bulkRequest.add(new UpdateRequest(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, book.getBookId())
+                    .doc(BOOKS_INDEX_ID_FIELD, book.getBookId())
+                    .upsert(percolatorQueries.createBooksIndexDocument(book)));
+        }
+        return bulkRequest.get();
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Book> event) {
+        if (!enabled) {
+            return;
+        }
+
+        DBObject query = event.getDBObject();
+        Object id = query == null ? null : query.get(ID_FIELD);
+        if (id != null && !(id instanceof DBObject)) {
+            bulkProcessor.add(new DeleteRequest(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, id.toString()));
+        }
+    }
+}
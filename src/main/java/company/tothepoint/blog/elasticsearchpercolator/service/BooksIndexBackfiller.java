@@ -0,0 +1,176 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BooksIndexBackfillRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Writes the books that were in Mongo before the books index was enabled to the index. {@link BooksIndex} only
+ * follows the books saved since.
+ * <p>
+ * The books are read with a Mongo cursor in id order and written in synchronous bulk requests. The checkpoint of the
+ * backfill is the last book up to which all books are written, so a backfill that failed or was interrupted by a
+ * restart resumes from there. A backfill starts on startup until one completed, and can be started again to repair
+ * the index. Until one completed, books can be missing from the index and {@link #isBackfilled()} is {@code false}.
+ */
+@Slf4j
+@Component
+public class BooksIndexBackfiller {
+
+    private final BooksIndex booksIndex;
+
+    private final BookRepository bookRepository;
+
+    private final BooksIndexBackfillRepository backfillRepository;
+
+    private final int batchSize;
+
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "books-index-backfill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean backfilled;
+
+    private boolean running;
+
+    public BooksIndexBackfiller(BooksIndex booksIndex,
+                                BookRepository bookRepository,
+                                BooksIndexBackfillRepository backfillRepository,
+                                @Value("${company.tothepoint.blog.percolator.books-index.backfill.batch-size:1000}") int batchSize) {
+        this.booksIndex = booksIndex;
+        this.bookRepository = bookRepository;
+        this.backfillRepository = backfillRepository;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Start the first backfill of the books index, or resume the last one when it did not complete. A books index
+     * created after the last backfill started, when it was deleted, is backfilled again.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillOnStartup() {
+        if (!booksIndex.isEnabled()) {
+            return;
+        }
+
+        BooksIndexBackfill latest = backfillRepository.findFirstByOrderByStartedAtDesc();
+        if (latest != null && latest.getStatus() == BooksIndexBackfill.Status.COMPLETED
+                && latest.getStartedAt().getTime() >= booksIndex.getCreationDate()) {
+            backfilled = true;
+            return;
+        }
+        log.info("{} the backfill of the books index", latest == null ? "Starting" : "Resuming");
+        start();
+    }
+
+    /**
+     * @return {@code true} when all books saved before the books index was enabled are in the index
+     */
+    public boolean isBackfilled() {
+        return backfilled;
+    }
+
+    /**
+     * Start a backfill in the background, or resume the last one when it did not complete.
+     *
+     * @return the backfill, already running when a backfill was in progress
+     */
+    public synchronized BooksIndexBackfill start() {
+        BooksIndexBackfill backfill = backfillRepository.findFirstByOrderByStartedAtDesc();
+        if (running) {
+            return backfill;
+        }
+
+        if (backfill == null || backfill.getStatus() == BooksIndexBackfill.Status.COMPLETED) {
+            backfill = BooksIndexBackfill.builder()
+                    .startedAt(new Date())
+                    .build();
+        }
+        backfill.setStatus(BooksIndexBackfill.Status.RUNNING);
+        backfill.setError(null);
+        backfill.setFinishedAt(null);
+        backfill.setTotal(bookRepository.count());
+        BooksIndexBackfill started = backfillRepository.save(backfill);
+        running = true;
+
+        coordinator.execute(() -> run(started));
+        return started;
+    }
+
+    /**
+     * @return the last backfill, running or not, or {@code null} when the books index was never backfilled
+     */
+    public BooksIndexBackfill getLatest() {
+        return backfillRepository.findFirstByOrderByStartedAtDesc();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // The backfill stays RUNNING in Mongo and is resumed from its checkpoint on the next startup
+        coordinator.shutdownNow();
+    }
+
+    private void run(BooksIndexBackfill backfill) {
+        long start = System.currentTimeMillis();
+        try {
+            long indexed = backfill.getIndexed();
+            try (Stream<Book> books = bookRepository.streamAllAfter(backfill.getCheckpoint())) {
+                Iterator<Book> iterator = books.iterator();
+                while (iterator.hasNext() && !Thread.currentThread().isInterrupted()) {
+                    List<Book> batch = new ArrayList<>(batchSize);
+                    while (iterator.hasNext() && batch.size() < batchSize) {
+                        batch.add(iterator.next());
+                    }
+
+                    BulkResponse response = booksIndex.backfill(batch);
+                    if (response.hasFailures()) {
+                        throw new IllegalStateException("Writing books to the books index failed: " + response.buildFailureMessage());
+                    }
+                    indexed += batch.size();
+                    String checkpoint = batch.get(batch.size() - 1).getBookId();
+                    backfill.setCheckpoint(checkpoint);
+                    backfill.setIndexed(indexed);
+                    backfillRepository.updateProgress(backfill.getBackfillId(), checkpoint, indexed);
+                }
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            backfill.setStatus(BooksIndexBackfill.Status.COMPLETED);
+            backfill.setFinishedAt(new Date());
+            backfillRepository.updateStatus(backfill.getBackfillId(), backfill.getStatus(), null, backfill.getFinishedAt());
+            backfilled = true;
+            log.info("Backfilled the books index with {} books in {} ms", backfill.getIndexed(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.error(String.format("Error while backfilling the books index in backfill %s", backfill.getBackfillId()), e);
+            backfill.setStatus(BooksIndexBackfill.Status.FAILED);
+            backfill.setError(e.getMessage());
+            backfillRepository.updateStatus(backfill.getBackfillId(), backfill.getStatus(), backfill.getError(), new Date());
+        } finally {
+            finished();
+        }
+    }
+
+    private synchronized void finished() {
+        running = false;
+    }
+}
@@ -0,0 +1,38 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+/**
+ * The {@code booksIndex} part of the actuator health: out of service while the books index is enabled but not
+ * backfilled yet, as books saved before it was enabled are missing from it until then.
+ */
+@Component
+public class BooksIndexHealthIndicator extends AbstractHealthIndicator {
+
+    private final BooksIndex booksIndex;
+
+    private final BooksIndexBackfiller booksIndexBackfiller;
+
+    public BooksIndexHealthIndicator(BooksIndex booksIndex, BooksIndexBackfiller booksIndexBackfiller) {
+        this.booksIndex = booksIndex;
+        this.booksIndexBackfiller = booksIndexBackfiller;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        builder.withDetail("enabled", booksIndex.isEnabled());
+        if (!booksIndex.isEnabled()) {
+            builder.up();
+            return;
+        }
+
+        builder.withDetail("backfilled", booksIndexBackfiller.isBackfilled());
+        if (booksIndexBackfiller.isBackfilled()) {
+            builder.up();
+        } else {
+            builder.outOfService();
+        }
+    }
+}
@@ -1,135 +1,436 @@
 package company.tothepoint.blog.elasticsearchpercolator.service;
 
-import company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields;
+import company.tothepoint.blog.elasticsearchpercolator.config.ExecutorConfig;
 import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CursorPage;
 import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
 import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
-import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.support.WriteRequest;
-import org.elasticsearch.client.Client;
-import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.percolator.PercolateQueryBuilder;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolationMetrics.Stage;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
-import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-
+/**
+ * Finds the preferences matching books, on the route decided by the {@link MatchingStrategy}: the ids of the matches
+ * are hydrated from Mongo, percolator hits are hydrated as they are handed over by the {@link PercolatorSearch}.
+ * Preferences are registered with the {@link PreferenceRegistration}.
+ */
+@Slf4j
 @Service
 public class BookstoreService {
 
     private final BookRepository bookRepository;
 
-    private final SearchPreferenceRepository searchPreferenceRepository;
+    private final PreferenceHydrator preferenceHydrator;
+
+    private final MatchingStrategy matchingStrategy;
+
+    private final PercolatorSearch percolatorSearch;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final PercolationMetrics percolationMetrics;
+
+    private final BooksIndex booksIndex;
+
+    private final MaterializedMatchStore materializedMatchStore;
+
+    private final Executor percolationExecutor;
+
+    private final int batchChunkSize;
 
-    private final Client elasticsearchClient;
+    private final int scrollPageSize;
+
+    /**
+     * Shares the matches of a book between concurrent requests for it, {@code null} when disabled.
+     */
+    private final SingleFlight<String, Collection<SearchPreference>> matchFlights;
 
     public BookstoreService(BookRepository bookRepository,
-                            SearchPreferenceRepository searchPreferenceRepository,
-                            Client elasticsearchClient) {
+                            PreferenceHydrator preferenceHydrator,
+                            MatchingStrategy matchingStrategy,
+                            PercolatorSearch percolatorSearch,
+                            PercolatorQueries percolatorQueries,
+                            PercolationMetrics percolationMetrics,
+                            BooksIndex booksIndex,
+                            MaterializedMatchStore materializedMatchStore,
+                            @Qualifier(ExecutorConfig.PERCOLATION_EXECUTOR) Executor percolationExecutor,
+                            @Value("${company.tothepoint.blog.percolator.batch.chunk-size:100}") int batchChunkSize,
+                            @Value("${company.tothepoint.blog.percolator.scroll.page-size:500}") int scrollPageSize,
+                            @Value("${company.tothepoint.blog.percolator.single-flight.enabled:true}") boolean singleFlightEnabled) {
         this.bookRepository = bookRepository;
-        this.searchPreferenceRepository = searchPreferenceRepository;
-        this.elasticsearchClient = elasticsearchClient;
+        this.preferenceHydrator = preferenceHydrator;
+        this.matchingStrategy = matchingStrategy;
+        this.percolatorSearch = percolatorSearch;
+        this.percolatorQueries = percolatorQueries;
+        this.percolationMetrics = percolationMetrics;
+        this.booksIndex = booksIndex;
+        this.materializedMatchStore = materializedMatchStore;
+        this.percolationExecutor = percolationExecutor;
+        this.batchChunkSize = batchChunkSize;
+        this.scrollPageSize = scrollPageSize;
+        this.matchFlights = singleFlightEnabled
+                ? new SingleFlight<>(percolationMetrics::coalescingLed, percolationMetrics::coalescingFollowed)
+                : null;
     }
 
-    public SearchPreference createSearchPreference(SearchPreference searchPreference) throws IOException {
-        SearchPreference savedPreference = searchPreferenceRepository.save(searchPreference);
+    /**
+     * Concurrent calls for the same book share one match: the first call matches the book, the others wait for its
+     * outcome. Books percolating to the same document already share their percolation through the result cache.
+     *
+     * @return the matching preferences, not to be modified as they may be handed to several callers
+     */
+    public Collection<SearchPreference> findMatchingPreferences(String bookId) throws IOException {
+        if (matchFlights == null) {
+            return collectMatchingPreferences(bookId);
+        }
+        return matchFlights.execute(bookId, () -> collectMatchingPreferences(bookId));
+    }
 
-        BoolQueryBuilder bqb = createBoolQuery(savedPreference);
-        elasticsearchClient.prepareIndex(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, savedPreference.getSearchPreferenceId())
-                .setSource(jsonBuilder()
-                        .startObject()
-                        .field(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(), bqb) // Register the query
-                        .endObject())
-                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE) // Needed when the query shall be available immediately
-                .get();
+    /**
+     * Like {@link #findMatchingPreferences(String)}, but read from the materialized match store in
+     * {@link MatchReadMode#MATERIALIZED} mode when it is readable. Books without stored matches are matched live.
+     */
+    public Collection<SearchPreference> findMatchingPreferences(String bookId, MatchReadMode mode) throws IOException {
+        List<String> materializedIds = readsMaterialized(mode)
+                ? percolationMetrics.time(Stage.MATERIALIZED_LOOKUP, () -> materializedMatchStore.find(bookId))
+                : null;
+        if (materializedIds == null) {
+            return findMatchingPreferences(bookId);
+        }
+        return Collections.unmodifiableCollection(percolationMetrics.time(Stage.HYDRATION,
+                () -> preferenceHydrator.hydrate(materializedIds).values()));
+    }
 
-        return savedPreference;
+    private boolean readsMaterialized(MatchReadMode mode) {
+        return mode == MatchReadMode.MATERIALIZED && materializedMatchStore.isReadable();
     }
 
-    public Collection<SearchPreference> findMatchingPreferences(String bookId) throws IOException {
+    private Collection<SearchPreference> collectMatchingPreferences(String bookId) throws IOException {
         Collection<SearchPreference> results = new ArrayList<>();
-        Book aBook = bookRepository.findOne(bookId);
+        streamMatchingPreferences(bookId, results::addAll);
+        return Collections.unmodifiableCollection(results);
+    }
 
-        if (aBook != null) {
-            PercolateQueryBuilder percolateQuery = createPercolateQuery(aBook);
+    /**
+     * Non-blocking variant of {@link #findMatchingPreferences(String)}. Mongo calls and hydration run on the
+     * percolation executor, the percolate search and scroll continue from the transport client's callbacks.
+     *
+     * @return the matching preferences, not to be modified as they may be handed to several callers, sync or async
+     */
+    public CompletableFuture<Collection<SearchPreference>> findMatchingPreferencesAsync(String bookId) {
+        if (matchFlights == null) {
+            return collectMatchingPreferencesAsync(bookId);
+        }
+        return matchFlights.executeAsync(bookId, () -> collectMatchingPreferencesAsync(bookId));
+    }
 
-            // Percolate, by executing the percolator query in the query dsl:
-            SearchResponse searchResponse = elasticsearchClient.prepareSearch(PERCOLATOR_INDEX)
-                    .setQuery(percolateQuery)
-                    .execute()
-                    .actionGet();
+    private CompletableFuture<Collection<SearchPreference>> collectMatchingPreferencesAsync(String bookId) {
+        return matchPreferencesAsync(bookId).thenApply(Collections::unmodifiableCollection);
+    }
 
-            if (searchResponse != null) {
-                SearchHits searchHits = searchResponse.getHits();
-                if (searchHits != null && searchHits.getTotalHits() > 0) {
+    /**
+     * Takes the same route as {@link #streamBySource}, the book is loaded from Mongo anyway.
+     */
+    private CompletableFuture<Collection<SearchPreference>> matchPreferencesAsync(String bookId) {
+        return CompletableFuture.supplyAsync(() -> {
+            Book aBook = bookRepository.findOne(bookId);
+            if (aBook == null) {
+                return CompletableFuture.<Collection<SearchPreference>>completedFuture(new ArrayList<>());
+            }
 
-                    for (SearchHit hit : searchHits.getHits()) {
-                        results.add(searchPreferenceRepository.findOne(hit.getId()));
+            MatchRoute route = matchingStrategy.routeBySource();
+            if (route.matchesIds()) {
+                return CompletableFuture.<Collection<SearchPreference>>completedFuture(
+                        new ArrayList<>(preferenceHydrator.hydrate(uncheckedMatchingIds(aBook)).values()));
+            }
+            if (route == MatchRoute.BATCHER) {
+                return matchingStrategy.percolateBatchedAsync(aBook)
+                        .thenApplyAsync(hits -> (Collection<SearchPreference>) new ArrayList<>(preferenceHydrator.hydrate(
+                                hits.toArray(new SearchHit[0])).values()), percolationExecutor);
+            }
+            Collection<SearchPreference> results = Collections.synchronizedList(new ArrayList<>());
+            return percolatorSearch.scrollAsync(aBook, hits -> results.addAll(preferenceHydrator.hydrate(hits).values()))
+                    .thenApply(done -> results);
+        }, percolationExecutor)
+                .thenCompose(Function.identity())
+                .whenComplete((results, failure) -> {
+                    if (failure != null) {
+                        percolationMetrics.matchFailed();
+                    } else {
+                        percolationMetrics.matched(results.size());
                     }
-                }
+                });
+    }
+
+    private List<String> uncheckedMatchingIds(Book book) {
+        try {
+            return matchingStrategy.matchingIds(book);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Walk all preferences matching a book, handing them over chunk by chunk as they are hydrated. Only one chunk
+     * is held in memory at a time, no matter how many preferences match. Except when books are percolated through the
+     * batcher, which hands over the hits of a batch at once.
+     */
+    public void streamMatchingPreferences(String bookId, IOConsumer<Collection<SearchPreference>> chunkConsumer) throws IOException {
+        long[] matchCount = {0};
+        IOConsumer<Collection<SearchPreference>> countingConsumer = chunk -> {
+            matchCount[0] += chunk.size();
+            chunkConsumer.accept(chunk);
+        };
+
+        try {
+            if (matchingStrategy.route() != MatchRoute.BY_REFERENCE || !streamByReference(bookId, countingConsumer)) {
+                streamBySource(bookId, countingConsumer);
             }
+        } catch (IOException | RuntimeException e) {
+            percolationMetrics.matchFailed();
+            throw e;
         }
-        return results;
+        percolationMetrics.matched(matchCount[0]);
     }
 
+    /**
+     * @return whether the books matching a preference can be looked up, which takes the books index
+     */
+    public boolean isReverseMatchingEnabled() {
+        return booksIndex.isEnabled();
+    }
 
-    private BoolQueryBuilder createBoolQuery(SearchPreference preference) {
-        BoolQueryBuilder bqb = QueryBuilders.boolQuery();
+    /**
+     * Walk the books in the catalog that match a preference, handing them over page by page. The books index is
+     * searched with the query of the preference, instead of percolating every book. Books that are no longer in Mongo
+     * are left out.
+     */
+    public void streamMatchingBooks(SearchPreference preference, IOConsumer<Collection<Book>> chunkConsumer) throws IOException {
+        booksIndex.streamMatchingBookIds(percolatorQueries.createBoolQuery(preference.getCriteria()), bookIds -> {
+            Map<String, Book> books = new HashMap<>();
+            bookRepository.findAll(bookIds).forEach(book -> books.put(book.getBookId(), book));
+            chunkConsumer.accept(bookIds.stream()
+                    .map(books::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList()));
+        });
+    }
 
-        if (preference.getCriteria().getAuthor() != null) {
-            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.AUTHOR.getFieldName(), preference.getCriteria().getAuthor()));
+    private void streamBySource(String bookId, IOConsumer<Collection<SearchPreference>> chunkConsumer) throws IOException {
+        Book aBook = percolationMetrics.time(Stage.BOOK_LOAD, () -> bookRepository.findOne(bookId));
+        if (aBook == null) {
+            return;
         }
 
-        if (preference.getCriteria().getTypes() != null) {
-            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.TYPE.getFieldName(), preference.getCriteria().getTypes()));
+        MatchRoute route = matchingStrategy.routeBySource();
+        if (route.matchesIds()) {
+            List<String> matchingIds = matchingStrategy.matchingIds(aBook);
+            for (int from = 0; from < matchingIds.size(); from += scrollPageSize) {
+                List<String> chunkIds = matchingIds.subList(from, Math.min(from + scrollPageSize, matchingIds.size()));
+                chunkConsumer.accept(percolationMetrics.time(Stage.HYDRATION,
+                        () -> preferenceHydrator.hydrate(chunkIds).values()));
+            }
+        } else if (route == MatchRoute.BATCHER) {
+            List<SearchHit> hits = percolationMetrics.time(Stage.BATCH_WAIT, () -> matchingStrategy.percolateBatched(aBook));
+            for (int from = 0; from < hits.size(); from += scrollPageSize) {
+                SearchHit[] chunkHits = hits.subList(from, Math.min(from + scrollPageSize, hits.size())).toArray(new SearchHit[0]);
+                chunkConsumer.accept(percolationMetrics.time(Stage.HYDRATION,
+                        () -> preferenceHydrator.hydrate(chunkHits).values()));
+            }
+        } else {
+            percolatorSearch.scroll(aBook, hits -> chunkConsumer.accept(percolationMetrics.time(Stage.HYDRATION,
+                    () -> preferenceHydrator.hydrate(hits).values())));
+        }
+    }
+
+    /**
+     * @return {@code false} when the book is not in the books index (yet), before anything was handed over
+     */
+    private boolean streamByReference(String bookId, IOConsumer<Collection<SearchPreference>> chunkConsumer) throws IOException {
+        return percolatorSearch.scrollByReference(bookId, hits -> chunkConsumer.accept(percolationMetrics.time(Stage.HYDRATION,
+                () -> preferenceHydrator.hydrate(hits).values())));
+    }
+
+    /**
+     * Fetch one page of the preferences matching a book, ordered by preference id.
+     *
+     * @param cursor the {@code nextCursor} of the previous page, or {@code null} for the first page
+     */
+    public CursorPage<SearchPreference> findMatchingPreferences(String bookId, String cursor, int size) throws IOException {
+        return findMatchingPreferences(bookId, cursor, size, MatchReadMode.LIVE);
+    }
+
+    /**
+     * Like {@link #findMatchingPreferences(String, String, int)}, but read from the materialized match store in
+     * {@link MatchReadMode#MATERIALIZED} mode when it is readable. Books without stored matches are matched live.
+     */
+    public CursorPage<SearchPreference> findMatchingPreferences(String bookId, String cursor, int size,
+                                                                MatchReadMode mode) throws IOException {
+        List<String> materializedIds = readsMaterialized(mode)
+                ? percolationMetrics.time(Stage.MATERIALIZED_LOOKUP, () -> materializedMatchStore.find(bookId))
+                : null;
+        if (materializedIds != null) {
+            return pageOfIds(materializedIds, cursor, size);
+        }
+
+        Book aBook = percolationMetrics.time(Stage.BOOK_LOAD, () -> bookRepository.findOne(bookId));
+        if (aBook == null) {
+            return CursorPage.<SearchPreference>builder().items(Collections.emptyList()).build();
+        }
+
+        if (matchingStrategy.routeBySource().matchesIds()) {
+            return pageOfIds(matchingStrategy.matchingIds(aBook), cursor, size);
+        }
+
+        SearchHit[] hits = percolatorSearch.searchAfter(aBook, cursor, size);
+        return CursorPage.<SearchPreference>builder()
+                .items(percolationMetrics.time(Stage.HYDRATION, () -> new ArrayList<>(preferenceHydrator.hydrate(hits).values())))
+                .nextCursor(hits.length == size ? hits[hits.length - 1].getId() : null)
+                .build();
+    }
+
+    private CursorPage<SearchPreference> pageOfIds(List<String> matchingIds, String cursor, int size) throws IOException {
+        List<String> pageIds = matchingIds.stream()
+                .filter(id -> cursor == null || id.compareTo(cursor) > 0)
+                .sorted()
+                .limit(size)
+                .collect(Collectors.toList());
+        return CursorPage.<SearchPreference>builder()
+                .items(percolationMetrics.time(Stage.HYDRATION, () -> new ArrayList<>(preferenceHydrator.hydrate(pageIds).values())))
+                .nextCursor(pageIds.size() == size ? pageIds.get(pageIds.size() - 1) : null)
+                .build();
+    }
+
+    /**
+     * Like {@link #findMatchingPreferences(Collection)}, but read from the materialized match store in
+     * {@link MatchReadMode#MATERIALIZED} mode when it is readable. Only the books without stored matches are matched
+     * live.
+     */
+    public Map<String, Collection<SearchPreference>> findMatchingPreferences(Collection<String> bookIds,
+                                                                             MatchReadMode mode) throws IOException {
+        if (!readsMaterialized(mode)) {
+            return findMatchingPreferences(bookIds);
         }
 
-        if (preference.getCriteria().getLanguage() != null) {
-            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.LANGUAGE.getFieldName(), preference.getCriteria().getLanguage()));
+        Map<String, List<String>> materializedIds = percolationMetrics.time(Stage.MATERIALIZED_LOOKUP,
+                () -> materializedMatchStore.findAll(bookIds));
+        Map<String, Collection<SearchPreference>> results = new LinkedHashMap<>();
+        bookIds.forEach(bookId -> results.put(bookId, new ArrayList<>()));
+        percolationMetrics.time(Stage.HYDRATION, () -> preferenceHydrator.hydrateInto(materializedIds, results));
+
+        List<String> liveBookIds = results.keySet().stream()
+                .filter(bookId -> !materializedIds.containsKey(bookId))
+                .collect(Collectors.toList());
+        if (!liveBookIds.isEmpty()) {
+            results.putAll(findMatchingPreferences(liveBookIds));
         }
+        return results;
+    }
 
-        if (preference.getCriteria().getMinimumPrice() != null && preference.getCriteria().getMaximumPrice() != null) {
-            bqb.filter(
-                    QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
-                            .gte(preference.getCriteria().getMinimumPrice().doubleValue())
-                            .lte(preference.getCriteria().getMaximumPrice().doubleValue()));
-        } else if (preference.getCriteria().getMinimumPrice() != null) {
-            bqb.filter(
-                    QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
-                            .gte(preference.getCriteria().getMinimumPrice().doubleValue()));
-        } else if (preference.getCriteria().getMaximumPrice() != null) {
-            bqb.filter(QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
-                    .lte(preference.getCriteria().getMaximumPrice().doubleValue()));
+    /**
+     * Match a batch of books against the registered preferences. The books are loaded with a single repository call
+     * and percolated in chunks, each chunk being sent to Elasticsearch as one multi-document percolate query. Books
+     * that can be percolated by reference are percolated by id first, only the others are loaded.
+     *
+     * @return the matching preferences per requested book id, in request order. Unknown books map to an empty collection.
+     */
+    public Map<String, Collection<SearchPreference>> findMatchingPreferences(Collection<String> bookIds) throws IOException {
+        Map<String, Collection<SearchPreference>> results = new LinkedHashMap<>();
+        bookIds.forEach(bookId -> results.put(bookId, new ArrayList<>()));
+
+        Collection<String> bookIdsToLoad = matchingStrategy.route() == MatchRoute.BY_REFERENCE
+                ? percolateByReference(new ArrayList<>(results.keySet()), results)
+                : results.keySet();
+        if (bookIdsToLoad.isEmpty()) {
+            return results;
         }
 
-        return bqb;
+        List<Book> books = new ArrayList<>();
+        percolationMetrics.time(Stage.BOOK_LOAD, () -> bookRepository.findAll(new LinkedHashSet<>(bookIdsToLoad))).forEach(books::add);
+
+        // The batcher is meant for single books of concurrent requests, chunks are percolated as they are
+        boolean matchesIds = matchingStrategy.routeBySource().matchesIds();
+        for (int from = 0; from < books.size(); from += batchChunkSize) {
+            List<Book> chunk = books.subList(from, Math.min(from + batchChunkSize, books.size()));
+            if (matchesIds) {
+                Map<String, List<String>> matchingIds = matchingStrategy.matchingIds(chunk);
+                percolationMetrics.time(Stage.HYDRATION, () -> preferenceHydrator.hydrateInto(matchingIds, results));
+            } else {
+                percolatorSearch.scroll(chunk, hits -> percolationMetrics.time(Stage.HYDRATION,
+                        () -> preferenceHydrator.hydrateInto(chunk, hits, results)));
+            }
+        }
+        return results;
     }
 
+    /**
+     * Percolate books by reference in chunks, as a multi search of one percolate query per book. Books with more
+     * matches than fit in one page are scrolled on their own.
+     *
+     * @return the ids of the books that are not in the books index (yet), which still have to be percolated by source
+     */
+    private List<String> percolateByReference(List<String> bookIds, Map<String, Collection<SearchPreference>> results) throws IOException {
+        List<String> missingBookIds = new ArrayList<>();
+        for (int from = 0; from < bookIds.size(); from += batchChunkSize) {
+            List<String> chunk = bookIds.subList(from, Math.min(from + batchChunkSize, bookIds.size()));
+            MultiSearchResponse.Item[] responses = percolatorSearch.searchByReference(chunk);
 
-    private PercolateQueryBuilder createPercolateQuery(Book book) throws IOException {
-        //Build a document to check against the percolator
-        XContentBuilder docBuilder = XContentFactory.jsonBuilder().startObject();
-        docBuilder.field(PercolatorIndexFields.AUTHOR.getFieldName(), book.getAuthor());
-        docBuilder.field(PercolatorIndexFields.LANGUAGE.getFieldName(), book.getLanguage().name());
-        docBuilder.field(PercolatorIndexFields.PRICE.getFieldName(), book.getPrice());
-        docBuilder.field(PercolatorIndexFields.TYPE.getFieldName(), book.getType());
-        docBuilder.endObject();
+            for (int i = 0; i < chunk.size(); i++) {
+                String bookId = chunk.get(i);
+                if (responses[i].isFailure()) {
+                    if (PercolatorSearch.isMissingBook(responses[i].getFailure())) {
+                        missingBookIds.add(bookId);
+                        continue;
+                    }
+                    log.error(String.format("Error while percolating book %s by reference", bookId), responses[i].getFailure());
+                    throw new RuntimeException(String.format("Something went wrong while percolating book %s", bookId),
+                            responses[i].getFailure());
+                }
+
+                SearchHits hits = responses[i].getResponse().getHits();
+                if (hits.getTotalHits() > hits.getHits().length) {
+                    streamByReference(bookId, results.get(bookId)::addAll);
+                } else {
+                    results.get(bookId).addAll(percolationMetrics.time(Stage.HYDRATION,
+                            () -> preferenceHydrator.hydrate(hits.getHits()).values()));
+                }
+            }
+        }
+        return missingBookIds;
+    }
 
-        return new PercolateQueryBuilder(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(),
-                BytesReference.bytes(docBuilder),
-                XContentType.JSON);
+    /**
+     * Match books against the registered preferences without hydrating them, percolating the books in chunks of
+     * multi-document percolate queries.
+     *
+     * @return the ids of the matching preferences per book id
+     */
+    public Map<String, List<String>> findMatchingPreferenceIds(List<Book> books) throws IOException {
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        for (int from = 0; from < books.size(); from += batchChunkSize) {
+            results.putAll(matchingStrategy.matchingIds(books.subList(from, Math.min(from + batchChunkSize, books.size()))));
+        }
+        return results;
     }
 }
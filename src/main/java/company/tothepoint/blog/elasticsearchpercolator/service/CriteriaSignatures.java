@@ -0,0 +1,67 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Canonical form of search criteria, so criteria that match the same books get the same signature.
+ */
+public final class CriteriaSignatures {
+
+    private CriteriaSignatures() {
+    }
+
+    /**
+     * Sort and deduplicate the types, and drop bounds that do not restrict anything: a minimum price of zero or less,
+     * as book prices are validated not to be negative, and an infinite maximum price.
+     * <p>
+     * The author is matched as an exact keyword and kept as it is, whitespace included. An empty list of types matches
+     * no book at all, so it is kept as well and does not share a signature with criteria without types.
+     */
+    public static SearchPreference.Criteria canonicalize(SearchPreference.Criteria criteria) {
+        return SearchPreference.Criteria.builder()
+                .author(criteria.getAuthor())
+                .language(criteria.getLanguage())
+                .types(canonicalTypes(criteria.getTypes()))
+                .minimumPrice(criteria.getMinimumPrice() == null || criteria.getMinimumPrice() <= 0 ? null : criteria.getMinimumPrice())
+                .maximumPrice(criteria.getMaximumPrice() == null || criteria.getMaximumPrice().isInfinite() ? null : criteria.getMaximumPrice())
+                .build();
+    }
+
+    /**
+     * @return the SHA-256 of the canonical form of the criteria
+     */
+    public static String signature(SearchPreference.Criteria criteria) {
+        SearchPreference.Criteria canonical = canonicalize(criteria);
+
+        // Values are length prefixed, so no author can be mistaken for a combination of other values
+        StringBuilder signature = new StringBuilder();
+        append(signature, canonical.getAuthor());
+        append(signature, canonical.getLanguage() == null ? null : canonical.getLanguage().name());
+        append(signature, canonical.getTypes() == null ? null : Arrays.toString(canonical.getTypes()));
+        append(signature, canonical.getMinimumPrice() == null ? null : canonical.getMinimumPrice().toString());
+        append(signature, canonical.getMaximumPrice() == null ? null : canonical.getMaximumPrice().toString());
+        return Digests.sha256Hex(signature.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static BookType[] canonicalTypes(BookType[] types) {
+        if (types == null) {
+            return null;
+        }
+        EnumSet<BookType> sortedTypes = EnumSet.noneOf(BookType.class);
+        sortedTypes.addAll(Arrays.asList(types));
+        return sortedTypes.toArray(new BookType[0]);
+    }
+
+    private static void append(StringBuilder signature, String value) {
+        if (value == null) {
+            signature.append("-;");
+        } else {
+            signature.append(value.length()).append(':').append(value).append(';');
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Bridges the {@link ActionListener} callbacks of the transport client to {@link CompletableFuture}s.
+ */
+public final class ElasticsearchFutures {
+
+    private ElasticsearchFutures() {
+    }
+
+    /**
+     * Execute the request without blocking. Note that the future completes on an Elasticsearch transport thread,
+     * so blocking work has to be chained with one of the {@code *Async} methods.
+     */
+    public static <R extends ActionResponse> CompletableFuture<R> execute(ActionRequestBuilder<?, R, ?> requestBuilder) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        requestBuilder.execute(ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future;
+    }
+
+    /**
+     * Execute a client call taking a listener, e.g. {@code listener -> client.index(request, listener)}.
+     */
+    public static <R extends ActionResponse> CompletableFuture<R> execute(Consumer<ActionListener<R>> call) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        call.accept(ActionListener.wrap(future::complete, future::completeExceptionally));
+        return future;
+    }
+}
@@ -0,0 +1,17 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+/**
+ * How the search preferences behind percolator hits are loaded.
+ */
+public enum HydrationMode {
+
+    /**
+     * Read the denormalized copy stored next to the query in the percolator index, no Mongo round-trip needed.
+     */
+    SOURCE,
+
+    /**
+     * Load all hit preferences from Mongo with one batched, projected query.
+     */
+    REPOSITORY
+}
@@ -0,0 +1,12 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import java.io.IOException;
+
+/**
+ * Consumer of streamed results that is allowed to fail while writing them out.
+ */
+@FunctionalInterface
+public interface IOConsumer<T> {
+
+    void accept(T value) throws IOException;
+}
@@ -0,0 +1,12 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import java.io.IOException;
+
+/**
+ * Supplier of a result that is allowed to fail with an {@link IOException}, like building or executing a request.
+ */
+@FunctionalInterface
+public interface IOSupplier<T> {
+
+    T get() throws IOException;
+}
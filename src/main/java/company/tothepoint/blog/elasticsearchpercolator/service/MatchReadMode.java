@@ -0,0 +1,17 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+/**
+ * Where the preferences matching a book are read from.
+ */
+public enum MatchReadMode {
+
+    /**
+     * Match the book against the registered preferences for every request.
+     */
+    LIVE,
+
+    /**
+     * Look the matches up in the {@link MaterializedMatchStore}, matching the book live only when it has no entry.
+     */
+    MATERIALIZED
+}
@@ -0,0 +1,44 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+/**
+ * How the preferences matching books are found, decided by {@link MatchingStrategy#route()}.
+ */
+public enum MatchRoute {
+
+    /**
+     * Match the book with the in-memory engine, without searching the percolator index.
+     */
+    IN_MEMORY,
+
+    /**
+     * Percolate the book for the ids of its matches, read through the percolation result cache.
+     */
+    RESULT_CACHE,
+
+    /**
+     * Percolate the book for the ids of the shared queries it matches, expanded to their preferences.
+     */
+    SHARED_QUERIES,
+
+    /**
+     * Percolate the book by reference to its document in the books index, without loading it from Mongo.
+     */
+    BY_REFERENCE,
+
+    /**
+     * Percolate the book together with the books of concurrent requests.
+     */
+    BATCHER,
+
+    /**
+     * Percolate the book on its own, scrolling through the hits.
+     */
+    SCROLL;
+
+    /**
+     * @return whether the route has the ids of the matches, which are hydrated from Mongo instead of from hits
+     */
+    public boolean matchesIds() {
+        return this == IN_MEMORY || this == RESULT_CACHE || this == SHARED_QUERIES;
+    }
+}
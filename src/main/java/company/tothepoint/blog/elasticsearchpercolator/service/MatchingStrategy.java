@@ -0,0 +1,229 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.ExecutorConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolationMetrics.Stage;
+import company.tothepoint.blog.elasticsearchpercolator.service.matching.InMemoryMatcher;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decides how books are matched, in {@link #route()}, and matches them on the routes that do not hand over percolator
+ * hits: the in-memory engine, the percolation result cache and shared queries. Also owns the batcher that percolates
+ * single books of concurrent requests together.
+ */
+@Component
+public class MatchingStrategy {
+
+    private final InMemoryMatcher inMemoryMatcher;
+
+    private final PercolationResultCache percolationResultCache;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final BooksIndex booksIndex;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final PercolatorSearch percolatorSearch;
+
+    private final PercolationMetrics percolationMetrics;
+
+    /**
+     * Percolates single books of concurrent requests together, {@code null} when disabled.
+     */
+    private final MicroBatcher<Book, List<SearchHit>> percolationBatcher;
+
+    private final TimeValue batcherAwaitTimeout;
+
+    public MatchingStrategy(InMemoryMatcher inMemoryMatcher,
+                            PercolationResultCache percolationResultCache,
+                            SharedQueryRegistry sharedQueryRegistry,
+                            BooksIndex booksIndex,
+                            PercolatorQueries percolatorQueries,
+                            PercolatorSearch percolatorSearch,
+                            PercolationMetrics percolationMetrics,
+                            @Qualifier(ExecutorConfig.PERCOLATION_EXECUTOR) Executor percolationExecutor,
+                            @Value("${company.tothepoint.blog.percolator.batcher.enabled:false}") boolean batcherEnabled,
+                            @Value("${company.tothepoint.blog.percolator.batcher.max-batch-size:100}") int batcherMaxBatchSize,
+                            @Value("${company.tothepoint.blog.percolator.batcher.max-in-flight:4}") int batcherMaxInFlight,
+                            @Value("${company.tothepoint.blog.percolator.batcher.max-window-micros:2000}") long batcherMaxWindowMicros,
+                            @Value("${company.tothepoint.blog.percolator.batcher.await-timeout:30s}") String batcherAwaitTimeout) {
+        this.inMemoryMatcher = inMemoryMatcher;
+        this.percolationResultCache = percolationResultCache;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.booksIndex = booksIndex;
+        this.percolatorQueries = percolatorQueries;
+        this.percolatorSearch = percolatorSearch;
+        this.percolationMetrics = percolationMetrics;
+        this.percolationBatcher = batcherEnabled
+                ? new MicroBatcher<>("percolation-batcher", percolatorSearch::percolateHits, percolationExecutor,
+                batcherMaxBatchSize, batcherMaxInFlight, batcherMaxWindowMicros, percolationMetrics::batchDispatched)
+                : null;
+        this.batcherAwaitTimeout = TimeValue.parseTimeValue(batcherAwaitTimeout, "batcher.await-timeout");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (percolationBatcher != null) {
+            percolationBatcher.close();
+        }
+    }
+
+    /**
+     * The one place where the route of a match is decided. The in-memory engine comes first once it is loaded, then
+     * the result cache and shared queries, which work from the book itself or from preference ids. Otherwise books are
+     * percolated by reference when the books index is enabled, and by source through the batcher or on their own.
+     */
+    public MatchRoute route() {
+        if (inMemoryMatcher.isReady()) {
+            return MatchRoute.IN_MEMORY;
+        }
+        if (percolationResultCache.isEnabled()) {
+            return MatchRoute.RESULT_CACHE;
+        }
+        if (sharedQueryRegistry.isEnabled()) {
+            return MatchRoute.SHARED_QUERIES;
+        }
+        if (booksIndex.isEnabled()) {
+            return MatchRoute.BY_REFERENCE;
+        }
+        return percolationBatcher != null ? MatchRoute.BATCHER : MatchRoute.SCROLL;
+    }
+
+    /**
+     * @return the route for a book that is percolated from its source: the {@link #route()}, unless that is
+     * {@link MatchRoute#BY_REFERENCE}, for books that are not in the books index yet and for requests that need the book
+     */
+    public MatchRoute routeBySource() {
+        MatchRoute route = route();
+        if (route != MatchRoute.BY_REFERENCE) {
+            return route;
+        }
+        return percolationBatcher != null ? MatchRoute.BATCHER : MatchRoute.SCROLL;
+    }
+
+    /**
+     * @return the ids of the preferences matching a book on a route that {@link MatchRoute#matchesIds() matches ids},
+     * {@code null} on the other routes
+     */
+    public List<String> matchingIds(Book book) throws IOException {
+        switch (route()) {
+            case IN_MEMORY:
+                return percolationMetrics.time(Stage.SEARCH, () -> inMemoryMatcher.match(book));
+            case RESULT_CACHE:
+                String key = percolationMetrics.time(Stage.QUERY_BUILD,
+                        () -> percolationResultCache.key(percolatorQueries.createPercolateDocument(book)));
+                return percolationResultCache.get(key, missingKey -> {
+                    try {
+                        return Collections.unmodifiableList(percolatorSearch.percolateIds(Collections.singletonList(book)).get(book.getBookId()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            case SHARED_QUERIES:
+                // Hits of shared queries do not map one to one to preferences, so they can't be paged or hydrated as hits
+                return percolatorSearch.percolateIds(Collections.singletonList(book)).get(book.getBookId());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the ids of the preferences matching each book of a chunk, whatever the route. With the result cache
+     * enabled, books that percolate to the same document are percolated once, and only when their document is not
+     * cached yet. Otherwise the chunk is percolated as one multi-document percolate query.
+     */
+    public Map<String, List<String>> matchingIds(List<Book> chunk) throws IOException {
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        chunk.forEach(book -> results.put(book.getBookId(), new ArrayList<>()));
+
+        MatchRoute route = route();
+        if (route == MatchRoute.IN_MEMORY) {
+            return percolationMetrics.time(Stage.SEARCH, () -> {
+                chunk.forEach(book -> results.get(book.getBookId()).addAll(inMemoryMatcher.match(book)));
+                return results;
+            });
+        }
+        if (route != MatchRoute.RESULT_CACHE) {
+            return percolatorSearch.percolateIds(chunk);
+        }
+
+        Map<String, List<Book>> booksByKey = percolationMetrics.time(Stage.QUERY_BUILD, () -> {
+            Map<String, List<Book>> keyed = new LinkedHashMap<>();
+            for (Book book : chunk) {
+                keyed.computeIfAbsent(percolationResultCache.key(percolatorQueries.createPercolateDocument(book)), key -> new ArrayList<>()).add(book);
+            }
+            return keyed;
+        });
+
+        List<String> missingKeys = new ArrayList<>();
+        List<Book> missingBooks = new ArrayList<>();
+        booksByKey.forEach((key, books) -> {
+            List<String> cachedIds = percolationResultCache.getIfPresent(key);
+            if (cachedIds != null) {
+                books.forEach(book -> results.get(book.getBookId()).addAll(cachedIds));
+            } else {
+                missingKeys.add(key);
+                missingBooks.add(books.get(0));
+            }
+        });
+
+        if (!missingBooks.isEmpty()) {
+            Map<String, List<String>> percolatedIds = percolatorSearch.percolateIds(missingBooks);
+            for (int i = 0; i < missingKeys.size(); i++) {
+                List<String> ids = Collections.unmodifiableList(percolatedIds.get(missingBooks.get(i).getBookId()));
+                percolationResultCache.put(missingKeys.get(i), ids);
+                booksByKey.get(missingKeys.get(i)).forEach(book -> results.get(book.getBookId()).addAll(ids));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Percolate a book together with the books of concurrent requests, on the {@link MatchRoute#BATCHER} route.
+     */
+    public List<SearchHit> percolateBatched(Book book) throws IOException {
+        try {
+            return percolateBatchedAsync(book).get(batcherAwaitTimeout.millis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IOException(String.format("Timed out after %s while percolating book %s", batcherAwaitTimeout, book.getBookId()), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while percolating book %s", book.getBookId()));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(String.format("Something went wrong while percolating book %s", book.getBookId()), e.getCause());
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #percolateBatched(Book)}.
+     */
+    public CompletableFuture<List<SearchHit>> percolateBatchedAsync(Book book) {
+        return percolationBatcher.submit(book);
+    }
+}
@@ -0,0 +1,181 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import com.mongodb.DBObject;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookMatchesRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the preferences matching a book from the matches stored per book, with a single lookup by id instead of a
+ * percolation. The matches of a book are stored when it is percolated by the ingest pipeline or a catalog rescan, and
+ * kept up to date here when preferences are created, found with a search of the books index, or deleted. Books that
+ * were never percolated that way have no entry and are matched live.
+ * <p>
+ * Takes the books index, without it the books matching a new preference can't be found, and the match deltas of the
+ * pipeline, without them the entries are not updated when books are. The store stays disabled without either.
+ * A created preference is marked unpublished in the entries it is added to, so the next percolation of those books
+ * still publishes it as matched, as it would without the store.
+ * Entries can miss a preference that was created while the book was being percolated, or before the book was
+ * backfilled into the books index, the {@code MatchStoreVerifier} samples entries to find and repair those. Until the
+ * {@link BooksIndexBackfiller} completed, the store is not {@link #isReadable() readable} and all books are matched
+ * live.
+ * <ul>
+ * <li>{@code matches.materialized.reads}, tagged with the {@code hit} or the {@code miss} of a lookup</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class MaterializedMatchStore extends AbstractMongoEventListener<Book> {
+
+    private static final String ID_FIELD = "_id";
+
+    private final BookMatchesRepository bookMatchesRepository;
+
+    private final BooksIndex booksIndex;
+
+    private final BooksIndexBackfiller booksIndexBackfiller;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final int multiSearchSize;
+
+    private final boolean enabled;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    public MaterializedMatchStore(BookMatchesRepository bookMatchesRepository,
+                                  BooksIndex booksIndex,
+                                  BooksIndexBackfiller booksIndexBackfiller,
+                                  PercolatorQueries percolatorQueries,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${company.tothepoint.blog.percolator.materialized.enabled:false}") boolean enabled,
+                                  @Value("${company.tothepoint.blog.percolator.materialized.multi-search-size:50}") int multiSearchSize,
+                                  @Value("${company.tothepoint.blog.pipeline.match-deltas.enabled:true}") boolean matchDeltas) {
+        this.bookMatchesRepository = bookMatchesRepository;
+        this.booksIndex = booksIndex;
+        this.booksIndexBackfiller = booksIndexBackfiller;
+        this.percolatorQueries = percolatorQueries;
+        this.multiSearchSize = multiSearchSize;
+        this.enabled = enabled && booksIndex.isEnabled() && matchDeltas;
+        this.hits = meterRegistry.counter("matches.materialized.reads", "result", "hit");
+        this.misses = meterRegistry.counter("matches.materialized.reads", "result", "miss");
+        if (enabled && !booksIndex.isEnabled()) {
+            log.warn("The materialized match store is disabled, it takes the books index");
+        }
+        if (enabled && !matchDeltas) {
+            log.warn("The materialized match store is disabled, it takes the match deltas of the pipeline");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return {@code true} when matches can be read from the store, once the books saved before the books index was
+     * enabled are backfilled. Before, preferences created since are missing from the entries of those books.
+     */
+    public boolean isReadable() {
+        return enabled && booksIndexBackfiller.isBackfilled();
+    }
+
+    /**
+     * @return the sorted ids of the preferences matching the book, or {@code null} when the book has no entry
+     */
+    public List<String> find(String bookId) {
+        BookMatches matches = bookMatchesRepository.findMatches(bookId);
+        (matches == null ? misses : hits).increment();
+        return matches == null ? null : matches.getSearchPreferenceIds();
+    }
+
+    /**
+     * @return the sorted ids of the preferences matching each book that has an entry, books without are left out
+     */
+    public Map<String, List<String>> findAll(Collection<String> bookIds) {
+        Set<String> distinctBookIds = new LinkedHashSet<>(bookIds);
+        Map<String, List<String>> results = new HashMap<>();
+        bookMatchesRepository.findAllMatches(distinctBookIds)
+                .forEach(matches -> results.put(matches.getBookId(), matches.getSearchPreferenceIds()));
+        hits.increment(results.size());
+        misses.increment(distinctBookIds.size() - results.size());
+        return results;
+    }
+
+    /**
+     * Add a created preference to the books in the catalog that match it. Its query must be indexed already, so books
+     * percolated from now on match it too.
+     */
+    public void addPreference(SearchPreference preference) throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        booksIndex.streamMatchingBookIds(percolatorQueries.createBoolQuery(preference.getCriteria()),
+                bookIds -> bookMatchesRepository.addSearchPreference(bookIds, preference.getSearchPreferenceId()));
+    }
+
+    /**
+     * Like {@link #addPreference(SearchPreference)} for many preferences, searching the books index with a multi search
+     * per chunk of preferences and adding the books of a round of pages with one bulk write.
+     */
+    public void addPreferences(Collection<SearchPreference> preferences) throws IOException {
+        if (!enabled) {
+            return;
+        }
+
+        List<SearchPreference> all = new ArrayList<>(preferences);
+        for (int from = 0; from < all.size(); from += multiSearchSize) {
+            List<SearchPreference> chunk = all.subList(from, Math.min(from + multiSearchSize, all.size()));
+            List<QueryBuilder> queries = chunk.stream()
+                    .map(preference -> percolatorQueries.createBoolQuery(preference.getCriteria()))
+                    .collect(Collectors.toList());
+            booksIndex.streamMatchingBookIds(queries, pages -> {
+                Map<String, List<String>> bookIdsBySearchPreferenceId = new HashMap<>();
+                pages.forEach((position, bookIds) -> bookIdsBySearchPreferenceId.put(chunk.get(position).getSearchPreferenceId(), bookIds));
+                bookMatchesRepository.addSearchPreferences(bookIdsBySearchPreferenceId);
+            });
+        }
+    }
+
+    public void removePreference(String searchPreferenceId) {
+        if (!enabled) {
+            return;
+        }
+
+        bookMatchesRepository.removeSearchPreference(searchPreferenceId);
+    }
+
+    @Override
+    public void onAfterDelete(AfterDeleteEvent<Book> event) {
+        if (!enabled) {
+            return;
+        }
+
+        DBObject query = event.getDBObject();
+        Object id = query == null ? null : query.get(ID_FIELD);
+        if (id != null && !(id instanceof DBObject)) {
+            bookMatchesRepository.deleteMatches(id.toString());
+        }
+    }
+}
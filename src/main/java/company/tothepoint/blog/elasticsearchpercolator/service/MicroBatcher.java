@@ -0,0 +1,214 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Groups concurrent requests into batches that are handled with one call.
+ * <p>
+ * A dispatcher thread starts a batch as soon as one of the in-flight slots is free, so a request that arrives alone
+ * is handled right away. While all slots are taken requests queue up, and are taken together into the next batch.
+ * On top of that the dispatcher waits a window for more requests before it starts a batch. The window grows by a step
+ * while batches hold more than one request and is halved by every batch of one, so it stays closed at low traffic
+ * and opens up to its maximum when requests keep arriving together.
+ *
+ * @param <T> the type of the requests
+ * @param <R> the type of the result of each request
+ */
+@Slf4j
+public class MicroBatcher<T, R> implements AutoCloseable {
+
+    /**
+     * Handles a batch of requests in one go.
+     */
+    @FunctionalInterface
+    public interface BatchHandler<T, R> {
+
+        /**
+         * @return the result of each request, in the order of the requests
+         */
+        List<R> handle(List<T> requests) throws Exception;
+    }
+
+    private final BatchHandler<T, R> handler;
+
+    private final Executor executor;
+
+    private final int maxBatchSize;
+
+    private final long maxWindowNanos;
+
+    private final long windowStepNanos;
+
+    private final IntConsumer batchSizeListener;
+
+    private final BlockingQueue<Pending<T, R>> queue = new LinkedBlockingQueue<>();
+
+    private final Semaphore inFlight;
+
+    private final Thread dispatcher;
+
+    private volatile long windowNanos;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param executor           runs the batches, a rejected batch fails all its requests
+     * @param maxBatchSize       the most requests handled in one batch
+     * @param maxInFlight        the most batches handled at the same time
+     * @param maxWindowMicros    the longest the dispatcher waits for more requests before it starts a batch
+     * @param batchSizeListener  told the size of every batch that is started
+     */
+    public MicroBatcher(String name, BatchHandler<T, R> handler, Executor executor, int maxBatchSize, int maxInFlight,
+                        long maxWindowMicros, IntConsumer batchSizeListener) {
+        this.handler = handler;
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWindowNanos = TimeUnit.MICROSECONDS.toNanos(maxWindowMicros);
+        this.windowStepNanos = maxWindowNanos / 8;
+        this.batchSizeListener = batchSizeListener;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        this.dispatcher = new Thread(this::dispatch, name);
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @return the result of the request, completed once the batch it ended up in is handled
+     */
+    public CompletableFuture<R> submit(T request) {
+        Pending<T, R> pending = new Pending<>(request);
+        if (!running) {
+            pending.future.completeExceptionally(new RejectedExecutionException("The batcher is closed"));
+            return pending.future;
+        }
+        queue.add(pending);
+        // Closed in between, after the last drain of the dispatcher: nobody takes the request anymore
+        if (!running && queue.remove(pending)) {
+            pending.future.completeExceptionally(new RejectedExecutionException("The batcher is closed"));
+        }
+        return pending.future;
+    }
+
+    /**
+     * @return the current window the dispatcher waits for more requests, in microseconds
+     */
+    public long getWindowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(windowNanos);
+    }
+
+    /**
+     * Stop dispatching. Requests that are queued are failed, batches in flight still complete.
+     */
+    @Override
+    public void close() {
+        running = false;
+        dispatcher.interrupt();
+        failQueued();
+    }
+
+    private void dispatch() {
+        while (running) {
+            List<Pending<T, R>> batch = new ArrayList<>();
+            try {
+                Pending<T, R> first = queue.take();
+                batch.add(first);
+                // Requests keep queueing up while every slot is taken
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                batch.forEach(pending -> pending.future.completeExceptionally(
+                        new RejectedExecutionException("The batcher is closed")));
+                break;
+            }
+
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            adapt(batch.size());
+            batchSizeListener.accept(batch.size());
+
+            try {
+                executor.execute(() -> handle(batch));
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+            }
+        }
+
+        failQueued();
+    }
+
+    private void failQueued() {
+        List<Pending<T, R>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.forEach(pending -> pending.future.completeExceptionally(
+                new RejectedExecutionException("The batcher is closed")));
+    }
+
+    /**
+     * Take the requests that are waiting, then wait for more until the window closes or the batch is full.
+     */
+    private void collect(List<Pending<T, R>> batch) throws InterruptedException {
+        queue.drainTo(batch, maxBatchSize - batch.size());
+        long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            Pending<T, R> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+    }
+
+    private void adapt(int batchSize) {
+        if (batchSize > 1) {
+            windowNanos = Math.min(maxWindowNanos, windowNanos + windowStepNanos);
+        } else {
+            windowNanos = windowNanos < windowStepNanos ? 0 : windowNanos / 2;
+        }
+    }
+
+    private void handle(List<Pending<T, R>> batch) {
+        try {
+            List<T> requests = new ArrayList<>(batch.size());
+            batch.forEach(pending -> requests.add(pending.request));
+
+            List<R> results = handler.handle(requests);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).future.complete(results.get(i));
+            }
+        } catch (Throwable e) {
+            log.error(String.format("Error while handling a batch of %d requests", batch.size()), e);
+            batch.forEach(pending -> pending.future.completeExceptionally(e));
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    private static class Pending<T, R> {
+        private final T request;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+
+        Pending(T request) {
+            this.request = request;
+        }
+    }
+}
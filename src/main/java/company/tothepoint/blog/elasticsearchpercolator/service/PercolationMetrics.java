@@ -0,0 +1,203 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters of the hot paths: the stages of matching books against the preferences, registering a
+ * preference and writing to the percolator index.
+ * <ul>
+ * <li>{@code percolation.stage}, tagged with the {@link Stage}</li>
+ * <li>{@code percolation.matches}, the number of preferences matching a book, and {@code percolation.empty} and
+ * {@code percolation.failures} counting matches without results and failed matches</li>
+ * <li>{@code percolation.batch.size}, the number of books percolated together by the {@link MicroBatcher}</li>
+ * <li>{@code percolation.coalescing}, tagged with the {@code leader} that matches a book or the {@code follower}
+ * that waits for the match of a leader in flight. The share of followers is the coalescing ratio</li>
+ * <li>{@code searchpreference.create}, tagged with the {@code sync} or {@code async} mode, and
+ * {@code searchpreference.create.failures}</li>
+ * <li>{@code percolator.index.write}, tagged with the {@code index} or {@code bulk} request</li>
+ * </ul>
+ * Stage durations are also added to the {@link StageTimings} opened on the current thread, if any.
+ */
+@Component
+public class PercolationMetrics {
+
+    public enum Stage {
+        /**
+         * Loading the book from Mongo.
+         */
+        BOOK_LOAD("book-load"),
+        /**
+         * Building the percolate query or the percolated document.
+         */
+        QUERY_BUILD("query-build"),
+        /**
+         * The percolate search and its scroll, or the in-memory match.
+         */
+        SEARCH("search"),
+        /**
+         * Waiting for the batch a book was added to, to be percolated together with the books of concurrent requests.
+         */
+        BATCH_WAIT("batch-wait"),
+        /**
+         * Looking up the stored matches of the book in the {@link MaterializedMatchStore}.
+         */
+        MATERIALIZED_LOOKUP("materialized-lookup"),
+        /**
+         * Turning the matches into preferences, from the hits or from Mongo.
+         */
+        HYDRATION("hydration");
+
+        private final String name;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final ThreadLocal<StageTimings> currentTimings = new ThreadLocal<>();
+
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final DistributionSummary matches;
+    private final Counter emptyResults;
+    private final Counter failures;
+    private final DistributionSummary batchSizes;
+    private final Counter coalescingLeaders;
+    private final Counter coalescingFollowers;
+
+    private final Timer syncCreates;
+    private final Timer asyncCreates;
+    private final Counter createFailures;
+    private final Timer indexWrites;
+    private final Timer bulkWrites;
+
+    public PercolationMetrics(MeterRegistry meterRegistry) {
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("percolation.stage")
+                    .tag("stage", stage.getName())
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry));
+        }
+        this.matches = DistributionSummary.builder("percolation.matches")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.emptyResults = meterRegistry.counter("percolation.empty");
+        this.failures = meterRegistry.counter("percolation.failures");
+        this.batchSizes = DistributionSummary.builder("percolation.batch.size")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.coalescingLeaders = meterRegistry.counter("percolation.coalescing", "role", "leader");
+        this.coalescingFollowers = meterRegistry.counter("percolation.coalescing", "role", "follower");
+
+        this.syncCreates = meterRegistry.timer("searchpreference.create", "mode", "sync");
+        this.asyncCreates = meterRegistry.timer("searchpreference.create", "mode", "async");
+        this.createFailures = meterRegistry.counter("searchpreference.create.failures");
+        this.indexWrites = meterRegistry.timer("percolator.index.write", "request", "index");
+        this.bulkWrites = meterRegistry.timer("percolator.index.write", "request", "bulk");
+    }
+
+    /**
+     * Collect the stage durations of the current thread until the returned timings are closed.
+     */
+    public StageTimings openTimings() {
+        StageTimings timings = new StageTimings(currentTimings::remove);
+        currentTimings.set(timings);
+        return timings;
+    }
+
+    /**
+     * Timings that no stage durations are added to, for requests handled on other threads than the one that opened
+     * them. They only report the total time.
+     */
+    public StageTimings totalTimings() {
+        return new StageTimings(() -> {
+        });
+    }
+
+    public <T> T time(Stage stage, IOSupplier<T> supplier) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return supplier.get();
+        } finally {
+            long nanos = System.nanoTime() - start;
+            stageTimers.get(stage).record(nanos, TimeUnit.NANOSECONDS);
+            StageTimings timings = currentTimings.get();
+            if (timings != null) {
+                timings.add(stage, nanos);
+            }
+        }
+    }
+
+    public void matched(long matchCount) {
+        matches.record(matchCount);
+        if (matchCount == 0) {
+            emptyResults.increment();
+        }
+    }
+
+    public void matchFailed() {
+        failures.increment();
+    }
+
+    public void batchDispatched(int batchSize) {
+        batchSizes.record(batchSize);
+    }
+
+    public void coalescingLed() {
+        coalescingLeaders.increment();
+    }
+
+    public void coalescingFollowed() {
+        coalescingFollowers.increment();
+    }
+
+    public <T> T timeCreate(IOSupplier<T> create) throws IOException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            T created = create.get();
+            succeeded = true;
+            return created;
+        } finally {
+            createCompleted(false, start, succeeded);
+        }
+    }
+
+    /**
+     * @param startNanos the {@link System#nanoTime()} at which the create started
+     */
+    public void createCompleted(boolean async, long startNanos, boolean succeeded) {
+        (async ? asyncCreates : syncCreates).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        if (!succeeded) {
+            createFailures.increment();
+        }
+    }
+
+    public <T> T timeIndexWrite(IOSupplier<T> write) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return write.get();
+        } finally {
+            indexWrites.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * @param tookMillis the time Elasticsearch reports for a bulk request
+     */
+    public void bulkWritten(long tookMillis) {
+        bulkWrites.record(tookMillis, TimeUnit.MILLISECONDS);
+    }
+}
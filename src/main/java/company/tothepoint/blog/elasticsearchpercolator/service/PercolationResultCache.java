@@ -0,0 +1,90 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache of the matching preference ids per percolated document. Books with the same author, language, price and
+ * type percolate to the same document, so the key is a hash of that document instead of the book id.
+ * <p>
+ * Every key also holds the generation of the registered preferences. Creating or deleting a preference bumps the
+ * generation, so entries of older generations are never read again and simply age out of the cache.
+ * Eviction is bounded by the number of cached preference ids (W-TinyLFU), so a few documents matching many
+ * preferences cannot hold more memory than many documents matching a few, and entries have a time to live. Hits,
+ * misses, evictions and load times are published as {@code cache.*} metrics with {@code cache=percolation-results}.
+ * <p>
+ * The cache takes precedence over the batcher and the books index in {@link MatchingStrategy#route()}, which is why
+ * it is disabled unless configured otherwise.
+ */
+@Component
+public class PercolationResultCache {
+
+    private final boolean enabled;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Cache<String, List<String>> cache;
+
+    public PercolationResultCache(MeterRegistry meterRegistry,
+                                  @Value("${company.tothepoint.blog.percolator.cache.enabled:false}") boolean enabled,
+                                  @Value("${company.tothepoint.blog.percolator.cache.maximum-weight:10000000}") long maximumWeight,
+                                  @Value("${company.tothepoint.blog.percolator.cache.ttl-seconds:600}") long ttlSeconds) {
+        this.enabled = enabled;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher(PercolationResultCache::weigh)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "percolation-results");
+    }
+
+    /**
+     * @return the weight of an entry: the number of preference ids it holds, at least 1 so that documents without
+     * matches still count
+     */
+    private static int weigh(String key, List<String> searchPreferenceIds) {
+        return Math.max(1, searchPreferenceIds.size());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The registered preferences changed, no entry cached up to now may be used anymore.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * @return the key of a percolated document within the current generation. Take the key before percolating,
+     * so a result computed while the preferences change is stored under the generation it may belong to.
+     */
+    public String key(BytesReference percolateDocument) {
+        return generation.get() + ":" + Digests.sha256Hex(BytesReference.toBytes(percolateDocument));
+    }
+
+    public List<String> get(String key, Function<String, List<String>> loader) {
+        return cache.get(key, loader);
+    }
+
+    public List<String> getIfPresent(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(String key, List<String> searchPreferenceIds) {
+        cache.put(key, searchPreferenceIds);
+    }
+}
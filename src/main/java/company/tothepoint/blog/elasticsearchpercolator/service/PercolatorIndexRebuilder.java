@@ -0,0 +1,482 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CapturedWrite;
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.CapturedWriteRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.PercolatorIndexRebuildRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.common.settings.Settings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_ROUTED_META;
+
+/**
+ * Rebuilds the percolator index from Mongo without interrupting matching.
+ * <p>
+ * A new versioned index is created next to the one behind the {@link ElasticsearchConfig#PERCOLATOR_INDEX} alias and
+ * filled by parallel workers, each bulk indexing a batch of preferences read with a Mongo cursor in id order. The
+ * checkpoint of the rebuild is the last preference up to which all batches are indexed, so a rebuild that failed
+ * or was interrupted by a restart resumes from there. Preferences created or deleted while the rebuild runs are
+ * captured, one document each, and replayed on the new index batch by batch, then the alias is switched to it in one
+ * atomic request and the previous index is deleted.
+ * <p>
+ * Writes are captured by the instance running the rebuild, other instances must not modify preferences meanwhile.
+ * <p>
+ * The mapping of the index records whether its queries are routed. When that differs from the configured
+ * {@link PercolatorRouting}, the index is rebuilt on startup unless disabled, and searched on all shards until then.
+ */
+@Slf4j
+@Component
+public class PercolatorIndexRebuilder {
+
+    private final Client elasticsearchClient;
+
+    private final SearchPreferenceRepository searchPreferenceRepository;
+
+    private final PercolatorIndexRebuildRepository rebuildRepository;
+
+    private final CapturedWriteRepository capturedWriteRepository;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final PercolatorRouting percolatorRouting;
+
+    private final PercolationResultCache percolationResultCache;
+
+    private final int workers;
+
+    private final int batchSize;
+
+    private final boolean resumeOnStartup;
+
+    private final boolean rebuildOnRoutingMismatch;
+
+    private final int numberOfShards;
+
+    private final int numberOfReplicas;
+
+    private final String refreshInterval;
+
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "percolator-index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The rebuild that did not complete yet, running or failed. Writes are captured until it completes.
+     */
+    private volatile PercolatorIndexRebuild unfinishedRebuild;
+
+    private boolean running;
+
+    public PercolatorIndexRebuilder(Client elasticsearchClient,
+                                    SearchPreferenceRepository searchPreferenceRepository,
+                                    PercolatorIndexRebuildRepository rebuildRepository,
+                                    CapturedWriteRepository capturedWriteRepository,
+                                    PercolatorQueries percolatorQueries,
+                                    SharedQueryRegistry sharedQueryRegistry,
+                                    PercolatorRouting percolatorRouting,
+                                    PercolationResultCache percolationResultCache,
+                                    @Value("${company.tothepoint.blog.percolator.rebuild.workers:4}") int workers,
+                                    @Value("${company.tothepoint.blog.percolator.rebuild.batch-size:1000}") int batchSize,
+                                    @Value("${company.tothepoint.blog.percolator.rebuild.resume-on-startup:true}") boolean resumeOnStartup,
+                                    @Value("${company.tothepoint.blog.percolator.routing.rebuild-on-mismatch:true}") boolean rebuildOnRoutingMismatch,
+                                    @Value("${company.tothepoint.blog.percolator.index.number-of-shards:5}") int numberOfShards,
+                                    @Value("${company.tothepoint.blog.percolator.index.number-of-replicas:1}") int numberOfReplicas,
+                                    @Value("${company.tothepoint.blog.percolator.index.refresh-interval:1s}") String refreshInterval) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.searchPreferenceRepository = searchPreferenceRepository;
+        this.rebuildRepository = rebuildRepository;
+        this.capturedWriteRepository = capturedWriteRepository;
+        this.percolatorQueries = percolatorQueries;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.percolatorRouting = percolatorRouting;
+        this.percolationResultCache = percolationResultCache;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.resumeOnStartup = resumeOnStartup;
+        this.rebuildOnRoutingMismatch = rebuildOnRoutingMismatch;
+        this.numberOfShards = numberOfShards;
+        this.numberOfReplicas = numberOfReplicas;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Find out whether the queries in the current percolator index are routed, before anything is percolated. A new
+     * index is created in the configured mode.
+     */
+    @PostConstruct
+    public void checkIndexRouting() {
+        if (!elasticsearchClient.admin().indices().prepareExists(PERCOLATOR_INDEX).get().isExists()) {
+            return;
+        }
+
+        boolean routed = false;
+        Iterator<ImmutableOpenMap<String, MappingMetaData>> mappings = elasticsearchClient.admin().indices()
+                .prepareGetMappings(PERCOLATOR_INDEX)
+                .setTypes(PERCOLATOR_INDEX_MAPPING_TYPE)
+                .get()
+                .getMappings()
+                .valuesIt();
+        while (mappings.hasNext()) {
+            MappingMetaData mapping = mappings.next().get(PERCOLATOR_INDEX_MAPPING_TYPE);
+            Object meta = mapping == null ? null : mapping.getSourceAsMap().get("_meta");
+            // Indices created before the routing was recorded were not routed
+            routed |= meta instanceof Map && Boolean.TRUE.equals(((Map<?, ?>) meta).get(PERCOLATOR_INDEX_ROUTED_META));
+        }
+        percolatorRouting.indexRouted(routed);
+        if (percolatorRouting.isIndexRoutingMismatched()) {
+            log.warn("The queries in the percolator index are {}routed, unlike configured. It is searched on all shards until it is rebuilt",
+                    routed ? "" : "not ");
+        }
+    }
+
+    /**
+     * Keep capturing writes for a rebuild that did not complete, and resume it when it was running when the
+     * application stopped. Otherwise rebuild the index when its routing does not match the configured routing.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedRebuild() {
+        PercolatorIndexRebuild latest = rebuildRepository.findFirstByOrderByStartedAtDesc();
+        if (latest == null || latest.getStatus() == PercolatorIndexRebuild.Status.COMPLETED) {
+            if (rebuildOnRoutingMismatch && percolatorRouting.isIndexRoutingMismatched()) {
+                log.info("Rebuilding the percolator index to {} routing", percolatorRouting.isEnabled() ? "enable" : "disable");
+                start();
+            }
+            return;
+        }
+
+        unfinishedRebuild = latest;
+        if (resumeOnStartup && latest.getStatus() == PercolatorIndexRebuild.Status.RUNNING) {
+            log.info("Resuming rebuild {} of the percolator index into {}", latest.getRebuildId(), latest.getTargetIndex());
+            start();
+        }
+    }
+
+    /**
+     * Start a rebuild in the background, or resume the last one when it did not complete.
+     *
+     * @return the rebuild, already running when a rebuild was in progress
+     */
+    public synchronized PercolatorIndexRebuild start() {
+        if (running) {
+            return unfinishedRebuild;
+        }
+
+        PercolatorIndexRebuild rebuild = rebuildRepository.findFirstByOrderByStartedAtDesc();
+        if (rebuild == null || rebuild.getStatus() == PercolatorIndexRebuild.Status.COMPLETED) {
+            rebuild = PercolatorIndexRebuild.builder()
+                    .targetIndex(ElasticsearchConfig.newPercolatorIndexName())
+                    .startedAt(new Date())
+                    .build();
+        }
+        rebuild.setStatus(PercolatorIndexRebuild.Status.RUNNING);
+        rebuild.setError(null);
+        rebuild.setTotal(searchPreferenceRepository.count());
+        PercolatorIndexRebuild started = rebuildRepository.save(rebuild);
+        unfinishedRebuild = started;
+        running = true;
+
+        coordinator.execute(() -> run(started));
+        return started;
+    }
+
+    /**
+     * @return the last rebuild, running or not, or {@code null} when the index was never rebuilt
+     */
+    public PercolatorIndexRebuild getLatest() {
+        return rebuildRepository.findFirstByOrderByStartedAtDesc();
+    }
+
+    /**
+     * Record preferences that were just saved in or deleted from Mongo, before their percolator query is written to
+     * the current index. Does nothing when there is no unfinished rebuild.
+     */
+    public void capture(Collection<SearchPreference> preferences) {
+        PercolatorIndexRebuild rebuild = unfinishedRebuild;
+        if (rebuild == null) {
+            return;
+        }
+
+        capturedWriteRepository.save(preferences.stream()
+                .map(preference -> CapturedWrite.builder()
+                        .rebuildId(rebuild.getRebuildId())
+                        .searchPreferenceId(preference.getSearchPreferenceId())
+                        .percolatorId(sharedQueryRegistry.percolatorId(preference))
+                        .routing(percolatorRouting.routing(preference.getCriteria()))
+                        .build())
+                .collect(Collectors.toList()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // The rebuild stays RUNNING in Mongo and is resumed from its checkpoint on the next startup
+        coordinator.shutdownNow();
+    }
+
+    private void run(PercolatorIndexRebuild rebuild) {
+        long start = System.currentTimeMillis();
+        try {
+            createTargetIndexIfMissing(rebuild);
+            indexPreferences(rebuild);
+            replayCapturedWrites(rebuild);
+
+            elasticsearchClient.admin().indices().prepareUpdateSettings(rebuild.getTargetIndex())
+                    .setSettings(Settings.builder()
+                            .put("index.number_of_replicas", numberOfReplicas)
+                            .put("index.refresh_interval", refreshInterval))
+                    .get();
+            elasticsearchClient.admin().indices().prepareRefresh(rebuild.getTargetIndex()).get();
+            List<String> previousIndices = swapAlias(rebuild.getTargetIndex());
+            checkIndexRouting();
+
+            // Writes captured up to the swap may have gone to the previous index only
+            unfinishedRebuild = null;
+            replayCapturedWrites(rebuild);
+            percolationResultCache.invalidate();
+
+            // Only the status is written, the progress is updated by the workers
+            rebuild.setStatus(PercolatorIndexRebuild.Status.COMPLETED);
+            rebuild.setFinishedAt(new Date());
+            rebuildRepository.updateStatus(rebuild.getRebuildId(), rebuild.getStatus(), null, rebuild.getFinishedAt());
+            finished();
+            log.info("Rebuilt the percolator index into {} with {} preferences in {} ms",
+                    rebuild.getTargetIndex(), rebuild.getIndexed(), System.currentTimeMillis() - start);
+
+            deleteIndices(previousIndices);
+        } catch (Exception e) {
+            log.error(String.format("Error while rebuilding the percolator index into %s", rebuild.getTargetIndex()), e);
+            unfinishedRebuild = rebuild;
+            rebuild.setStatus(PercolatorIndexRebuild.Status.FAILED);
+            rebuild.setError(e.getMessage());
+            rebuildRepository.updateStatus(rebuild.getRebuildId(), rebuild.getStatus(), rebuild.getError(), null);
+            finished();
+        }
+    }
+
+    private void deleteIndices(List<String> indices) {
+        if (indices.isEmpty()) {
+            return;
+        }
+        try {
+            elasticsearchClient.admin().indices().prepareDelete(indices.toArray(new String[0])).get();
+        } catch (RuntimeException e) {
+            log.warn(String.format("The previous percolator indices %s could not be deleted", indices), e);
+        }
+    }
+
+    private synchronized void finished() {
+        running = false;
+    }
+
+    private void createTargetIndexIfMissing(PercolatorIndexRebuild rebuild) throws IOException {
+        if (elasticsearchClient.admin().indices().prepareExists(rebuild.getTargetIndex()).get().isExists()) {
+            return;
+        }
+
+        // Nothing indexed before the checkpoint survived, start over
+        rebuild.setCheckpoint(null);
+        rebuild.setIndexed(0);
+        rebuild.setFailed(0);
+        rebuildRepository.updateProgress(rebuild.getRebuildId(), null, 0, 0);
+
+        // Replicas and refreshes are only enabled once the index is filled
+        elasticsearchClient.admin().indices().prepareCreate(rebuild.getTargetIndex())
+                .setSettings(ElasticsearchConfig.percolatorIndexSettings(numberOfShards, 0, "-1"))
+                .addMapping(PERCOLATOR_INDEX_MAPPING_TYPE, ElasticsearchConfig.percolatorIndexMapping(percolatorRouting.isEnabled()))
+                .get();
+    }
+
+    /**
+     * Stream the preferences after the checkpoint and bulk index them batch by batch with the workers. A batch
+     * of which some preferences could not be indexed does not move the checkpoint, and fails the rebuild.
+     */
+    private void indexPreferences(PercolatorIndexRebuild rebuild) throws Exception {
+        ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+        Semaphore inFlight = new Semaphore(workers * 2);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        AtomicLong indexed = new AtomicLong(rebuild.getIndexed());
+        AtomicLong failed = new AtomicLong(rebuild.getFailed());
+        Map<Long, String> completedBatches = new ConcurrentSkipListMap<>();
+        long[] nextBatchToCheckpoint = {0};
+
+        try (Stream<SearchPreference> preferences = searchPreferenceRepository.streamAllAfter(rebuild.getCheckpoint())) {
+            Iterator<SearchPreference> iterator = preferences.iterator();
+            long batchNumber = 0;
+            while (iterator.hasNext() && failure.get() == null) {
+                List<SearchPreference> batch = new ArrayList<>(batchSize);
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    batch.add(iterator.next());
+                }
+
+                inFlight.acquire();
+                long currentBatch = batchNumber++;
+                workerPool.execute(() -> {
+                    try {
+                        BulkResponse response = bulkIndex(batch, rebuild.getTargetIndex());
+                        long failedItems = 0;
+                        for (BulkItemResponse item : response.getItems()) {
+                            if (item.isFailed()) {
+                                failedItems++;
+                                log.warn("Preference {} could not be indexed in {}: {}",
+                                        item.getId(), rebuild.getTargetIndex(), item.getFailureMessage());
+                            }
+                        }
+                        indexed.addAndGet(batch.size() - failedItems);
+                        failed.addAndGet(failedItems);
+                        if (failedItems > 0) {
+                            failure.compareAndSet(null, new IllegalStateException(
+                                    String.format("%d preferences could not be indexed", failedItems)));
+                            return;
+                        }
+
+                        synchronized (completedBatches) {
+                            completedBatches.put(currentBatch, batch.get(batch.size() - 1).getSearchPreferenceId());
+                            String checkpoint = null;
+                            while (completedBatches.containsKey(nextBatchToCheckpoint[0])) {
+                                checkpoint = completedBatches.remove(nextBatchToCheckpoint[0]++);
+                            }
+                            if (checkpoint != null) {
+                                rebuild.setCheckpoint(checkpoint);
+                                rebuild.setIndexed(indexed.get());
+                                rebuild.setFailed(failed.get());
+                                rebuildRepository.updateProgress(rebuild.getRebuildId(), checkpoint, indexed.get(), failed.get());
+                                log.info("Rebuild of {}: {} of {} preferences indexed",
+                                        rebuild.getTargetIndex(), indexed.get(), rebuild.getTotal());
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+
+            // Wait for the batches in flight
+            inFlight.acquire(workers * 2);
+        } finally {
+            workerPool.shutdownNow();
+        }
+
+        rebuild.setIndexed(indexed.get());
+        rebuild.setFailed(failed.get());
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private BulkResponse bulkIndex(List<SearchPreference> batch, String index) throws IOException {
+        BulkRequestBuilder bulkRequest = elasticsearchClient.prepareBulk();
+        for (SearchPreference preference : batch) {
+            bulkRequest.add(percolatorQueries.createIndexRequest(preference, index));
+        }
+        return bulkRequest.get();
+    }
+
+    /**
+     * Bring the percolator queries of the captured preferences in line with Mongo, the source of truth. The writes are
+     * replayed and removed a batch at a time, so a failed replay resumes with the writes that are left.
+     */
+    private void replayCapturedWrites(PercolatorIndexRebuild rebuild) throws IOException {
+        PageRequest firstBatch = new PageRequest(0, batchSize);
+        long replayed = 0;
+        List<CapturedWrite> capturedWrites = capturedWriteRepository.findByRebuildId(rebuild.getRebuildId(), firstBatch);
+        while (!capturedWrites.isEmpty()) {
+            replay(capturedWrites, rebuild.getTargetIndex());
+            capturedWriteRepository.deleteByCaptureIdIn(capturedWrites.stream()
+                    .map(CapturedWrite::getCaptureId)
+                    .collect(Collectors.toList()));
+            replayed += capturedWrites.size();
+            capturedWrites = capturedWriteRepository.findByRebuildId(rebuild.getRebuildId(), firstBatch);
+        }
+        if (replayed > 0) {
+            log.info("Replayed {} writes captured during the rebuild of {}", replayed, rebuild.getTargetIndex());
+        }
+    }
+
+    private void replay(List<CapturedWrite> capturedWrites, String targetIndex) throws IOException {
+        BulkRequestBuilder bulkRequest = elasticsearchClient.prepareBulk();
+        for (CapturedWrite capturedWrite : capturedWrites) {
+            SearchPreference preference = searchPreferenceRepository.findOne(capturedWrite.getSearchPreferenceId());
+            if (preference != null) {
+                bulkRequest.add(percolatorQueries.createIndexRequest(preference, targetIndex));
+            } else if (!sharedQueryRegistry.isReferenced(capturedWrite.getPercolatorId())) {
+                bulkRequest.add(new DeleteRequest(targetIndex, PERCOLATOR_INDEX_MAPPING_TYPE, capturedWrite.getPercolatorId())
+                        .routing(capturedWrite.getRouting()));
+            }
+        }
+
+        if (bulkRequest.numberOfActions() > 0) {
+            BulkResponse response = bulkRequest.get();
+            if (response.hasFailures()) {
+                throw new IllegalStateException("Replaying the captured writes failed: " + response.buildFailureMessage());
+            }
+        }
+    }
+
+    /**
+     * Point the alias to the target index only, in one atomic request.
+     *
+     * @return the indices that were behind the alias before
+     */
+    private List<String> swapAlias(String targetIndex) {
+        List<String> previousIndices = new ArrayList<>();
+        IndicesAliasesRequestBuilder aliasesRequest = elasticsearchClient.admin().indices().prepareAliases()
+                .addAliasAction(IndicesAliasesRequest.AliasActions.add().index(targetIndex).alias(PERCOLATOR_INDEX));
+
+        if (elasticsearchClient.admin().indices().prepareAliasesExist(PERCOLATOR_INDEX).get().exists()) {
+            elasticsearchClient.admin().indices().prepareGetAliases(PERCOLATOR_INDEX).get().getAliases()
+                    .keysIt().forEachRemaining(previousIndices::add);
+            previousIndices.remove(targetIndex);
+            previousIndices.forEach(index -> aliasesRequest.addAliasAction(
+                    IndicesAliasesRequest.AliasActions.remove().index(index).alias(PERCOLATOR_INDEX)));
+        } else if (elasticsearchClient.admin().indices().prepareExists(PERCOLATOR_INDEX).get().isExists()) {
+            // An index created before the percolator index was versioned, it has to make way for the alias
+            aliasesRequest.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(PERCOLATOR_INDEX));
+        }
+
+        aliasesRequest.get();
+        return previousIndices;
+    }
+}
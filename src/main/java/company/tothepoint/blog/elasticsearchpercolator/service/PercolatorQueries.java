@@ -0,0 +1,228 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.percolator.PercolateQueryBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_ID_FIELD;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_MAPPING_TYPE;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Builds the percolator documents of search preferences: their query, id, routing, denormalized copy and the metadata
+ * of their criteria. Also builds the percolate queries for books.
+ * <p>
+ * When the prefilter is enabled, the percolate query of books is wrapped in cheap filters on the metadata, so only the
+ * queries a book can match on language, type and price are candidates for percolation.
+ */
+@Component
+public class PercolatorQueries {
+
+    private final PreferenceHydrator preferenceHydrator;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final PercolatorRouting percolatorRouting;
+
+    private final boolean prefilter;
+
+    public PercolatorQueries(PreferenceHydrator preferenceHydrator,
+                             SharedQueryRegistry sharedQueryRegistry,
+                             PercolatorRouting percolatorRouting,
+                             @Value("${company.tothepoint.blog.percolator.prefilter.enabled:false}") boolean prefilter) {
+        this.preferenceHydrator = preferenceHydrator;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.percolatorRouting = percolatorRouting;
+        this.prefilter = prefilter;
+    }
+
+    /**
+     * @param index the index or alias to index the percolator document of the preference in
+     */
+    public IndexRequest createIndexRequest(SearchPreference preference, String index) throws IOException {
+        SearchPreference.Criteria queryCriteria = sharedQueryRegistry.queryCriteria(preference);
+        XContentBuilder source = jsonBuilder()
+                .startObject()
+                .field(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(), createBoolQuery(queryCriteria)); // Register the query
+        addFilterFields(source, queryCriteria);
+        if (!sharedQueryRegistry.isEnabled()) {
+            // A shared query serves several preferences, those are hydrated from Mongo instead
+            source.field(PercolatorIndexFields.PREFERENCE.getFieldName(), preferenceHydrator.toSource(preference));
+        }
+        return new IndexRequest(index, PERCOLATOR_INDEX_MAPPING_TYPE, sharedQueryRegistry.percolatorId(preference))
+                .routing(percolatorRouting.routing(preference.getCriteria()))
+                .source(source.endObject());
+    }
+
+    public BoolQueryBuilder createBoolQuery(SearchPreference.Criteria criteria) {
+        BoolQueryBuilder bqb = QueryBuilders.boolQuery();
+
+        if (criteria.getAuthor() != null) {
+            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.AUTHOR.getFieldName(), criteria.getAuthor()));
+        }
+
+        if (criteria.getTypes() != null) {
+            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.TYPE.getFieldName(), criteria.getTypes()));
+        }
+
+        if (criteria.getLanguage() != null) {
+            bqb.filter(QueryBuilders.termsQuery(PercolatorIndexFields.LANGUAGE.getFieldName(), criteria.getLanguage()));
+        }
+
+        if (criteria.getMinimumPrice() != null && criteria.getMaximumPrice() != null) {
+            bqb.filter(
+                    QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
+                            .gte(criteria.getMinimumPrice().doubleValue())
+                            .lte(criteria.getMaximumPrice().doubleValue()));
+        } else if (criteria.getMinimumPrice() != null) {
+            bqb.filter(
+                    QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
+                            .gte(criteria.getMinimumPrice().doubleValue()));
+        } else if (criteria.getMaximumPrice() != null) {
+            bqb.filter(QueryBuilders.rangeQuery(PercolatorIndexFields.PRICE.getFieldName())
+                    .lte(criteria.getMaximumPrice().doubleValue()));
+        }
+
+        return bqb;
+    }
+
+    public QueryBuilder createPercolateQuery(Book book) throws IOException {
+        return prefiltered(new PercolateQueryBuilder(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(),
+                        createPercolateDocument(book),
+                        XContentType.JSON),
+                Collections.singletonList(book));
+    }
+
+    /**
+     * Percolate query for a book in the books index, which Elasticsearch fetches itself instead of receiving its
+     * document with the query.
+     * <p>
+     * No document version is passed: books are indexed with internal versions that the callers, which only hold the
+     * book id, do not know. The realtime get behind the query reads the latest indexed document of the book, a book
+     * saved again but not indexed yet is percolated as it was before. Pinning a version would only turn that case
+     * into a version conflict.
+     */
+    public PercolateQueryBuilder createPercolateQuery(String bookId) {
+        return new PercolateQueryBuilder(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(),
+                BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, bookId, null, null, null);
+    }
+
+    /**
+     * One percolate query for several books, each hit tells which of them it matched in its
+     * {@code _percolator_document_slot} field.
+     */
+    public QueryBuilder createPercolateQuery(List<Book> books) throws IOException {
+        List<BytesReference> documents = new ArrayList<>(books.size());
+        for (Book book : books) {
+            documents.add(createPercolateDocument(book));
+        }
+
+        // The position of each document in this list is reported back as its _percolator_document_slot
+        return prefiltered(new PercolateQueryBuilder(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(),
+                        documents,
+                        XContentType.JSON),
+                books);
+    }
+
+    /**
+     * Only percolate the queries of which the metadata allows a match with at least one of the books. Queries
+     * registered before their metadata was stored are always percolated.
+     */
+    private QueryBuilder prefiltered(PercolateQueryBuilder percolateQuery, List<Book> books) {
+        if (!prefilter) {
+            return percolateQuery;
+        }
+
+        Set<String> languages = new LinkedHashSet<>();
+        Set<String> types = new LinkedHashSet<>();
+        languages.add(PercolatorIndexFields.ANY);
+        types.add(PercolatorIndexFields.ANY);
+        double minimumPrice = Double.MAX_VALUE;
+        double maximumPrice = -Double.MAX_VALUE;
+        for (Book book : books) {
+            languages.add(book.getLanguage().name());
+            types.add(book.getType().name());
+            minimumPrice = Math.min(minimumPrice, book.getPrice());
+            maximumPrice = Math.max(maximumPrice, book.getPrice());
+        }
+
+        BoolQueryBuilder candidates = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termsQuery(PercolatorIndexFields.FILTER_LANGUAGE.getFieldName(), languages))
+                .filter(QueryBuilders.termsQuery(PercolatorIndexFields.FILTER_TYPES.getFieldName(), types))
+                .filter(QueryBuilders.rangeQuery(PercolatorIndexFields.FILTER_MINIMUM_PRICE.getFieldName()).lte(maximumPrice))
+                .filter(QueryBuilders.rangeQuery(PercolatorIndexFields.FILTER_MAXIMUM_PRICE.getFieldName()).gte(minimumPrice));
+        return QueryBuilders.boolQuery()
+                .must(percolateQuery)
+                .filter(QueryBuilders.boolQuery()
+                        .should(candidates)
+                        .should(QueryBuilders.boolQuery()
+                                .mustNot(QueryBuilders.existsQuery(PercolatorIndexFields.FILTER_LANGUAGE.getFieldName()))));
+    }
+
+    /**
+     * The metadata of criteria, open ended for the criteria that are not set.
+     */
+    private void addFilterFields(XContentBuilder source, SearchPreference.Criteria criteria) throws IOException {
+        source.field(PercolatorIndexFields.FILTER_LANGUAGE.getFieldName(),
+                criteria.getLanguage() == null ? PercolatorIndexFields.ANY : criteria.getLanguage().name());
+        source.field(PercolatorIndexFields.FILTER_TYPES.getFieldName(), criteria.getTypes() == null
+                ? Collections.singletonList(PercolatorIndexFields.ANY)
+                : Arrays.stream(criteria.getTypes()).map(Enum::name).collect(Collectors.toList()));
+        source.field(PercolatorIndexFields.FILTER_MINIMUM_PRICE.getFieldName(),
+                criteria.getMinimumPrice() == null ? -Double.MAX_VALUE : criteria.getMinimumPrice());
+        source.field(PercolatorIndexFields.FILTER_MAXIMUM_PRICE.getFieldName(),
+                criteria.getMaximumPrice() == null ? Double.MAX_VALUE : criteria.getMaximumPrice());
+    }
+
+    /**
+     * @return the document of a book as it is percolated, only holding the fields that queries can filter on
+     */
+    public BytesReference createPercolateDocument(Book book) throws IOException {
+        //Build a document to check against the percolator
+        XContentBuilder docBuilder = XContentFactory.jsonBuilder().startObject();
+        addDocumentFields(docBuilder, book);
+        docBuilder.endObject();
+
+        return BytesReference.bytes(docBuilder);
+    }
+
+    /**
+     * @return the document of a book in the books index: its percolated document, plus its id to page on when
+     * searching the index
+     */
+    public XContentBuilder createBooksIndexDocument(Book book) throws IOException {
+        XContentBuilder docBuilder = XContentFactory.jsonBuilder().startObject();
+        addDocumentFields(docBuilder, book);
+        docBuilder.field(BOOKS_INDEX_ID_FIELD, book.getBookId());
+        return docBuilder.endObject();
+    }
+
+    private void addDocumentFields(XContentBuilder docBuilder, Book book) throws IOException {
+        docBuilder.field(PercolatorIndexFields.AUTHOR.getFieldName(), book.getAuthor());
+        docBuilder.field(PercolatorIndexFields.LANGUAGE.getFieldName(), book.getLanguage().name());
+        docBuilder.field(PercolatorIndexFields.PRICE.getFieldName(), book.getPrice());
+        docBuilder.field(PercolatorIndexFields.TYPE.getFieldName(), book.getType());
+    }
+}
@@ -0,0 +1,79 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Optional routing of the percolator queries by book language.
+ * <p>
+ * Queries with a language criterion are routed by that language, the others by {@link #SHARED_ROUTING}. A book can
+ * only match the queries of its own language and the queries without a language, so percolating it only has to
+ * search the shards of those two routings instead of fanning out to every shard of the index.
+ * <p>
+ * Queries are only routed when they are indexed, so switching routing on or off does not move the queries that are
+ * indexed already. Until the percolator index is rebuilt in the configured mode, searches go to all shards.
+ */
+@Component
+public class PercolatorRouting {
+
+    public static final String SHARED_ROUTING = "_shared";
+
+    private final boolean enabled;
+
+    /**
+     * Whether the queries in the percolator index are routed the way they are routed now, assumed for a new index
+     */
+    private volatile boolean indexRoutingMatches = true;
+
+    public PercolatorRouting(@Value("${company.tothepoint.blog.percolator.routing.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record whether the queries in the percolator index are routed, as found in the index.
+     */
+    public void indexRouted(boolean routed) {
+        indexRoutingMatches = routed == enabled;
+    }
+
+    /**
+     * @return {@code true} when the percolator index was built with routing switched the other way
+     */
+    public boolean isIndexRoutingMismatched() {
+        return !indexRoutingMatches;
+    }
+
+    /**
+     * @return the routing of the percolator query of criteria, or {@code null} when routing is disabled
+     */
+    public String routing(SearchPreference.Criteria criteria) {
+        if (!enabled) {
+            return null;
+        }
+        return criteria.getLanguage() == null ? SHARED_ROUTING : criteria.getLanguage().name();
+    }
+
+    /**
+     * @return the routings to search when percolating the given books, or {@code null} to search all shards
+     */
+    public String[] routings(Collection<Book> books) {
+        if (!enabled || !indexRoutingMatches) {
+            return null;
+        }
+
+        Set<String> routings = new LinkedHashSet<>();
+        books.forEach(book -> routings.add(book.getLanguage().name()));
+        routings.add(SHARED_ROUTING);
+        return routings.toArray(new String[0]);
+    }
+}
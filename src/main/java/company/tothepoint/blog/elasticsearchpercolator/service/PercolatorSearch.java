@@ -0,0 +1,306 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.ExecutorConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolationMetrics.Stage;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+
+/**
+ * Percolate searches on the percolator index: books by source, alone or many in one multi-document percolate query,
+ * and books by reference to their document in the books index. Hits are handed over page by page, what to do with
+ * them is up to the caller.
+ */
+@Component
+public class PercolatorSearch {
+
+    /**
+     * Field added by Elasticsearch to every hit of a multi-document percolate query, holding the
+     * positions of the percolated documents that matched the query of the hit.
+     */
+    private static final String PERCOLATOR_DOCUMENT_SLOT = "_percolator_document_slot";
+
+    private static final String ID_FIELD = "_id";
+
+    private final Client elasticsearchClient;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final PercolatorRouting percolatorRouting;
+
+    private final PreferenceHydrator preferenceHydrator;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final PercolationMetrics percolationMetrics;
+
+    private final Executor percolationExecutor;
+
+    private final int scrollPageSize;
+
+    private final TimeValue scrollKeepAlive;
+
+    public PercolatorSearch(Client elasticsearchClient,
+                            PercolatorQueries percolatorQueries,
+                            PercolatorRouting percolatorRouting,
+                            PreferenceHydrator preferenceHydrator,
+                            SharedQueryRegistry sharedQueryRegistry,
+                            PercolationMetrics percolationMetrics,
+                            @Qualifier(ExecutorConfig.PERCOLATION_EXECUTOR) Executor percolationExecutor,
+                            @Value("${company.tothepoint.blog.percolator.scroll.page-size:500}") int scrollPageSize,
+                            @Value("${company.tothepoint.blog.percolator.scroll.keep-alive:1m}") String scrollKeepAlive) {
+        this.elasticsearchClient = elasticsearchClient;
+        this.percolatorQueries = percolatorQueries;
+        this.percolatorRouting = percolatorRouting;
+        this.preferenceHydrator = preferenceHydrator;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.percolationMetrics = percolationMetrics;
+        this.percolationExecutor = percolationExecutor;
+        this.scrollPageSize = scrollPageSize;
+        this.scrollKeepAlive = TimeValue.parseTimeValue(scrollKeepAlive, "scroll.keep-alive");
+    }
+
+    /**
+     * Walk all hits of the percolation of a book, fetching what the hydration of the hits needs.
+     */
+    public void scroll(Book book, IOConsumer<SearchHit[]> pageConsumer) throws IOException {
+        scroll(preferenceHydrator.fetchSource(prepareSearch(Collections.singletonList(book))),
+                percolationMetrics.time(Stage.QUERY_BUILD, () -> percolatorQueries.createPercolateQuery(book)),
+                pageConsumer);
+    }
+
+    /**
+     * Like {@link #scroll(Book, IOConsumer)}, for books percolated together in one multi-document percolate query.
+     * Use {@link #slotsOf} to tell which of the books a hit matched.
+     */
+    public void scroll(List<Book> books, IOConsumer<SearchHit[]> pageConsumer) throws IOException {
+        scroll(preferenceHydrator.fetchSource(prepareSearch(books)),
+                percolationMetrics.time(Stage.QUERY_BUILD, () -> percolatorQueries.createPercolateQuery(books)),
+                pageConsumer);
+    }
+
+    /**
+     * Non-blocking variant of {@link #scroll(Book, IOConsumer)}. Pages are handed over on the percolation executor,
+     * the next page is only requested once the previous one was handled.
+     */
+    public CompletableFuture<Void> scrollAsync(Book book, IOConsumer<SearchHit[]> pageConsumer) {
+        SearchRequestBuilder searchRequest;
+        try {
+            searchRequest = preferenceHydrator.fetchSource(prepareSearch(Collections.singletonList(book)))
+                    .setQuery(percolatorQueries.createPercolateQuery(book))
+                    .setSize(scrollPageSize)
+                    .setScroll(scrollKeepAlive)
+                    .addSort(SortBuilders.fieldSort(FieldSortBuilder.DOC_FIELD_NAME));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // The last scroll id, cleared however the scroll ends, so a failed page does not keep the context open
+        AtomicReference<String> scrollId = new AtomicReference<>();
+        return ElasticsearchFutures.execute(searchRequest)
+                .thenCompose(searchResponse -> scrollAsync(searchResponse, scrollId, pageConsumer))
+                .whenComplete((done, failure) -> {
+                    if (scrollId.get() != null) {
+                        elasticsearchClient.prepareClearScroll()
+                                .addScrollId(scrollId.get())
+                                .execute();
+                    }
+                });
+    }
+
+    /**
+     * Percolate a chunk of books as one multi-document percolate query, without fetching any source.
+     *
+     * @return the ids of the matching preferences per book id, shared queries expanded to their preferences
+     */
+    public Map<String, List<String>> percolateIds(List<Book> chunk) throws IOException {
+        Map<String, List<String>> results = new LinkedHashMap<>();
+        chunk.forEach(book -> results.put(book.getBookId(), new ArrayList<>()));
+
+        scroll(prepareSearch(chunk).setFetchSource(false),
+                percolationMetrics.time(Stage.QUERY_BUILD, () -> percolatorQueries.createPercolateQuery(chunk)),
+                hits -> {
+                    for (SearchHit hit : hits) {
+                        slotsOf(hit, chunk).forEach(slot -> results.get(chunk.get(slot).getBookId()).add(hit.getId()));
+                    }
+                });
+        return sharedQueryRegistry.expandAll(results);
+    }
+
+    /**
+     * Percolate the books of a batch as one multi-document percolate query, splitting the hits over the books by
+     * their document slot. All hits of a batch are collected before they are handed over.
+     *
+     * @return the hits per book, in the order of the books
+     */
+    public List<List<SearchHit>> percolateHits(List<Book> books) throws IOException {
+        List<List<SearchHit>> results = new ArrayList<>(books.size());
+        books.forEach(book -> results.add(new ArrayList<>()));
+
+        scroll(books, hits -> {
+            for (SearchHit hit : hits) {
+                slotsOf(hit, books).forEach(slot -> results.get(slot).add(hit));
+            }
+        });
+        return results;
+    }
+
+    /**
+     * One page of the hits of a book, ordered by preference id.
+     *
+     * @param cursor the id of the last hit of the previous page, or {@code null} for the first page
+     */
+    public SearchHit[] searchAfter(Book book, String cursor, int size) throws IOException {
+        SearchRequestBuilder searchRequest = preferenceHydrator.fetchSource(prepareSearch(Collections.singletonList(book)))
+                .setQuery(percolationMetrics.time(Stage.QUERY_BUILD, () -> percolatorQueries.createPercolateQuery(book)))
+                .setSize(size)
+                .addSort(SortBuilders.fieldSort(ID_FIELD).order(SortOrder.ASC));
+        if (cursor != null) {
+            searchRequest.searchAfter(new Object[]{cursor});
+        }
+        return percolationMetrics.time(Stage.SEARCH, () -> searchRequest.execute().actionGet().getHits().getHits());
+    }
+
+    /**
+     * Walk all hits of a book percolated by reference to its document in the books index, without loading it from
+     * Mongo. The percolator index is searched on all routings, as the language of the book is not known.
+     *
+     * @return {@code false} when the book is not in the books index (yet), before anything was handed over
+     */
+    public boolean scrollByReference(String bookId, IOConsumer<SearchHit[]> pageConsumer) throws IOException {
+        try {
+            scroll(preferenceHydrator.fetchSource(elasticsearchClient.prepareSearch(PERCOLATOR_INDEX)),
+                    percolationMetrics.time(Stage.QUERY_BUILD, () -> percolatorQueries.createPercolateQuery(bookId)),
+                    pageConsumer);
+            return true;
+        } catch (ElasticsearchException e) {
+            if (isMissingBook(e)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Percolate books by reference as a multi search of one percolate query per book, of which only the first page
+     * of hits is returned.
+     *
+     * @return the response per book, in the order of the books. Use {@link #isMissingBook} on a failure.
+     */
+    public MultiSearchResponse.Item[] searchByReference(List<String> bookIds) throws IOException {
+        MultiSearchRequestBuilder multiSearch = percolationMetrics.time(Stage.QUERY_BUILD, () -> {
+            MultiSearchRequestBuilder searches = elasticsearchClient.prepareMultiSearch();
+            bookIds.forEach(bookId -> searches.add(preferenceHydrator.fetchSource(elasticsearchClient.prepareSearch(PERCOLATOR_INDEX))
+                    .setQuery(percolatorQueries.createPercolateQuery(bookId))
+                    .setSize(scrollPageSize)));
+            return searches;
+        });
+        return percolationMetrics.time(Stage.SEARCH, () -> multiSearch.get().getResponses());
+    }
+
+    /**
+     * @return whether percolating by reference failed because the book is not in the books index
+     */
+    public static boolean isMissingBook(Throwable failure) {
+        return ExceptionsHelper.unwrapCause(failure) instanceof ResourceNotFoundException;
+    }
+
+    /**
+     * @return the positions in the percolated chunk of the books matching the query of the hit
+     */
+    public static List<Integer> slotsOf(SearchHit hit, List<Book> chunk) {
+        DocumentField slotField = hit.field(PERCOLATOR_DOCUMENT_SLOT);
+        if (slotField == null) {
+            return chunk.size() == 1 ? Collections.singletonList(0) : Collections.emptyList();
+        }
+        List<Integer> slots = new ArrayList<>(slotField.getValues().size());
+        slotField.getValues().forEach(slot -> slots.add(((Number) slot).intValue()));
+        return slots;
+    }
+
+    /**
+     * A search on the percolator index, only hitting the shards that can hold queries matching the given books.
+     */
+    private SearchRequestBuilder prepareSearch(List<Book> books) {
+        SearchRequestBuilder searchRequest = elasticsearchClient.prepareSearch(PERCOLATOR_INDEX);
+        String[] routings = percolatorRouting.routings(books);
+        return routings == null ? searchRequest : searchRequest.setRouting(routings);
+    }
+
+    /**
+     * Walk all hits of a percolate query with a scroll in index order, handing them over one page at a time.
+     */
+    private void scroll(SearchRequestBuilder searchRequest, QueryBuilder query, IOConsumer<SearchHit[]> pageConsumer) throws IOException {
+        SearchResponse searchResponse = percolationMetrics.time(Stage.SEARCH, () -> searchRequest
+                .setQuery(query)
+                .setSize(scrollPageSize)
+                .setScroll(scrollKeepAlive)
+                .addSort(SortBuilders.fieldSort(FieldSortBuilder.DOC_FIELD_NAME))
+                .execute()
+                .actionGet());
+
+        try {
+            while (searchResponse.getHits().getHits().length > 0) {
+                pageConsumer.accept(searchResponse.getHits().getHits());
+
+                String scrollId = searchResponse.getScrollId();
+                searchResponse = percolationMetrics.time(Stage.SEARCH, () -> elasticsearchClient.prepareSearchScroll(scrollId)
+                        .setScroll(scrollKeepAlive)
+                        .execute()
+                        .actionGet());
+            }
+        } finally {
+            elasticsearchClient.prepareClearScroll()
+                    .addScrollId(searchResponse.getScrollId())
+                    .execute();
+        }
+    }
+
+    private CompletableFuture<Void> scrollAsync(SearchResponse searchResponse, AtomicReference<String> scrollId,
+                                                IOConsumer<SearchHit[]> pageConsumer) {
+        scrollId.set(searchResponse.getScrollId());
+        SearchHit[] hits = searchResponse.getHits().getHits();
+        if (hits.length == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return CompletableFuture.runAsync(() -> {
+            try {
+                pageConsumer.accept(hits);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, percolationExecutor)
+                .thenCompose(handled -> ElasticsearchFutures.execute(elasticsearchClient.prepareSearchScroll(searchResponse.getScrollId())
+                        .setScroll(scrollKeepAlive)))
+                .thenCompose(nextResponse -> scrollAsync(nextResponse, scrollId, pageConsumer));
+    }
+}
@@ -0,0 +1,168 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Turns percolator hits back into {@link SearchPreference}s, either from the copy stored in the percolator index or
+ * from Mongo, depending on the configured {@link HydrationMode}.
+ */
+@Component
+public class PreferenceHydrator {
+
+    private static final TypeReference<Map<String, Object>> SOURCE_TYPE = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final SearchPreferenceRepository searchPreferenceRepository;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final ObjectMapper objectMapper;
+
+    private final HydrationMode hydrationMode;
+
+    public PreferenceHydrator(SearchPreferenceRepository searchPreferenceRepository,
+                              SharedQueryRegistry sharedQueryRegistry,
+                              ObjectMapper objectMapper,
+                              @Value("${company.tothepoint.blog.percolator.hydration-mode:SOURCE}") HydrationMode hydrationMode) {
+        this.searchPreferenceRepository = searchPreferenceRepository;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.objectMapper = objectMapper;
+        this.hydrationMode = hydrationMode;
+    }
+
+    public HydrationMode getHydrationMode() {
+        return hydrationMode;
+    }
+
+    /**
+     * The denormalized copy of a preference that is stored next to its query in the percolator index.
+     */
+    public Map<String, Object> toSource(SearchPreference preference) {
+        Map<String, Object> source = objectMapper.convertValue(preference, SOURCE_TYPE);
+        source.remove("searchPreferenceId"); // Already known as the id of the percolator document
+        return source;
+    }
+
+    /**
+     * Only fetch the part of the _source that is needed for the configured hydration mode.
+     */
+    public SearchRequestBuilder fetchSource(SearchRequestBuilder searchRequestBuilder) {
+        if (hydrationMode == HydrationMode.SOURCE) {
+            return searchRequestBuilder.setFetchSource(PercolatorIndexFields.PREFERENCE.getFieldName(), null);
+        }
+        return searchRequestBuilder.setFetchSource(false);
+    }
+
+    /**
+     * @return the preferences behind the hits keyed by id, in hit order. Hits of which the preference no longer
+     * exists are left out.
+     */
+    public Map<String, SearchPreference> hydrate(SearchHit[] hits) {
+        Map<String, SearchPreference> preferences = new LinkedHashMap<>();
+        List<String> missingIds = new ArrayList<>();
+
+        for (SearchHit hit : hits) {
+            SearchPreference preference = hydrationMode == HydrationMode.SOURCE ? fromSource(hit) : null;
+            if (preference == null) {
+                missingIds.add(hit.getId());
+            }
+            // Reserve the position so the hit order is kept when the preference has to come from Mongo
+            preferences.put(hit.getId(), preference);
+        }
+
+        if (!missingIds.isEmpty()) {
+            // Queries registered before the denormalized copy was added still have to be loaded from Mongo, as well as
+            // the preferences behind shared queries, which are added after the hits of unshared queries
+            preferences.putAll(hydrate(sharedQueryRegistry.expand(missingIds)));
+        }
+        preferences.values().removeIf(preference -> preference == null);
+        return preferences;
+    }
+
+    /**
+     * Load the given preferences from Mongo in one batched, projected query.
+     *
+     * @return the preferences keyed by id, in the order of the given ids
+     */
+    public Map<String, SearchPreference> hydrate(Collection<String> searchPreferenceIds) {
+        Map<String, SearchPreference> loaded = new HashMap<>();
+        searchPreferenceRepository.findAllForHydration(searchPreferenceIds)
+                .forEach(preference -> loaded.put(preference.getSearchPreferenceId(), preference));
+
+        Map<String, SearchPreference> preferences = new LinkedHashMap<>();
+        searchPreferenceIds.stream()
+                .filter(loaded::containsKey)
+                .forEach(id -> preferences.put(id, loaded.get(id)));
+        return preferences;
+    }
+
+    /**
+     * Hydrate the preferences matching several books at once, each preference being loaded once however many of the
+     * books it matches.
+     *
+     * @param results the collections to add the preferences of each book to, keyed by book id
+     * @return the given results
+     */
+    public <C extends Collection<SearchPreference>> Map<String, C> hydrateInto(Map<String, List<String>> matchingIdsByBookId,
+                                                                                Map<String, C> results) {
+        Set<String> matchingIds = new LinkedHashSet<>();
+        matchingIdsByBookId.values().forEach(matchingIds::addAll);
+
+        Map<String, SearchPreference> preferencesById = hydrate(matchingIds);
+        matchingIdsByBookId.forEach((bookId, ids) -> ids.stream()
+                .map(preferencesById::get)
+                .filter(Objects::nonNull)
+                .forEach(results.get(bookId)::add));
+        return results;
+    }
+
+    /**
+     * Hydrate the hits of a multi-document percolate query, adding each preference to the books of the percolated
+     * chunk that its query matched.
+     *
+     * @param results the collections to add the preferences of each book to, keyed by book id
+     * @return the given results
+     */
+    public <C extends Collection<SearchPreference>> Map<String, C> hydrateInto(List<Book> chunk, SearchHit[] hits,
+                                                                                Map<String, C> results) {
+        Map<String, SearchPreference> preferencesById = hydrate(hits);
+        for (SearchHit hit : hits) {
+            SearchPreference preference = preferencesById.get(hit.getId());
+            if (preference != null) {
+                PercolatorSearch.slotsOf(hit, chunk).forEach(slot -> results.get(chunk.get(slot).getBookId()).add(preference));
+            }
+        }
+        return results;
+    }
+
+    private SearchPreference fromSource(SearchHit hit) {
+        Map<String, Object> source = hit.getSourceAsMap();
+        if (source == null || source.get(PercolatorIndexFields.PREFERENCE.getFieldName()) == null) {
+            return null;
+        }
+
+        SearchPreference preference = objectMapper.convertValue(
+                source.get(PercolatorIndexFields.PREFERENCE.getFieldName()), SearchPreference.class);
+        preference.setSearchPreferenceId(hit.getId());
+        return preference;
+    }
+}
@@ -0,0 +1,396 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.ExecutorConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BulkRegistrationResult;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.matching.InMemoryMatcher;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+
+/**
+ * Registers search preferences, one at a time or in bulk, and deletes them. A preference is saved in Mongo first, the
+ * source of truth, then its percolator query is indexed, and the in-memory engine, the percolation result cache and
+ * the materialized match store are brought in line.
+ */
+@Slf4j
+@Service
+public class PreferenceRegistration {
+
+    private final SearchPreferenceRepository searchPreferenceRepository;
+
+    private final Client elasticsearchClient;
+
+    private final InMemoryMatcher inMemoryMatcher;
+
+    private final PercolationResultCache percolationResultCache;
+
+    private final SharedQueryRegistry sharedQueryRegistry;
+
+    private final PercolatorRouting percolatorRouting;
+
+    private final PercolatorQueries percolatorQueries;
+
+    private final PercolatorIndexRebuilder percolatorIndexRebuilder;
+
+    private final PercolationMetrics percolationMetrics;
+
+    private final MaterializedMatchStore materializedMatchStore;
+
+    private final Validator validator;
+
+    private final Executor percolationExecutor;
+
+    private final int bulkActions;
+
+    private final ByteSizeValue bulkSize;
+
+    private final int bulkConcurrentRequests;
+
+    private final TimeValue bulkFlushInterval;
+
+    private final TimeValue bulkAwaitTimeout;
+
+    public PreferenceRegistration(SearchPreferenceRepository searchPreferenceRepository,
+                                  Client elasticsearchClient,
+                                  InMemoryMatcher inMemoryMatcher,
+                                  PercolationResultCache percolationResultCache,
+                                  SharedQueryRegistry sharedQueryRegistry,
+                                  PercolatorRouting percolatorRouting,
+                                  PercolatorQueries percolatorQueries,
+                                  PercolatorIndexRebuilder percolatorIndexRebuilder,
+                                  PercolationMetrics percolationMetrics,
+                                  MaterializedMatchStore materializedMatchStore,
+                                  Validator validator,
+                                  @Qualifier(ExecutorConfig.PERCOLATION_EXECUTOR) Executor percolationExecutor,
+                                  @Value("${company.tothepoint.blog.percolator.bulk.actions:1000}") int bulkActions,
+                                  @Value("${company.tothepoint.blog.percolator.bulk.size:5mb}") String bulkSize,
+                                  @Value("${company.tothepoint.blog.percolator.bulk.concurrent-requests:1}") int bulkConcurrentRequests,
+                                  @Value("${company.tothepoint.blog.percolator.bulk.flush-interval:5s}") String bulkFlushInterval,
+                                  @Value("${company.tothepoint.blog.percolator.bulk.await-timeout:10m}") String bulkAwaitTimeout) {
+        this.searchPreferenceRepository = searchPreferenceRepository;
+        this.elasticsearchClient = elasticsearchClient;
+        this.inMemoryMatcher = inMemoryMatcher;
+        this.percolationResultCache = percolationResultCache;
+        this.sharedQueryRegistry = sharedQueryRegistry;
+        this.percolatorRouting = percolatorRouting;
+        this.percolatorQueries = percolatorQueries;
+        this.percolatorIndexRebuilder = percolatorIndexRebuilder;
+        this.percolationMetrics = percolationMetrics;
+        this.materializedMatchStore = materializedMatchStore;
+        this.validator = validator;
+        this.percolationExecutor = percolationExecutor;
+        this.bulkActions = bulkActions;
+        this.bulkSize = ByteSizeValue.parseBytesSizeValue(bulkSize, "bulk.size");
+        this.bulkConcurrentRequests = bulkConcurrentRequests;
+        this.bulkFlushInterval = TimeValue.parseTimeValue(bulkFlushInterval, "bulk.flush-interval");
+        this.bulkAwaitTimeout = TimeValue.parseTimeValue(bulkAwaitTimeout, "bulk.await-timeout");
+    }
+
+    public SearchPreference createSearchPreference(SearchPreference searchPreference) throws IOException {
+        return percolationMetrics.timeCreate(() -> {
+            SearchPreference savedPreference = searchPreferenceRepository.save(searchPreference);
+            percolatorIndexRebuilder.capture(Collections.singletonList(savedPreference));
+
+            if (sharedQueryRegistry.register(savedPreference)) {
+                percolationMetrics.timeIndexWrite(() -> elasticsearchClient.index(createPercolatorIndexRequest(savedPreference)
+                        .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)) // Needed when the query shall be available immediately
+                        .actionGet());
+            }
+            inMemoryMatcher.add(savedPreference);
+            percolationResultCache.invalidate();
+            materializedMatchStore.addPreference(savedPreference);
+
+            return savedPreference;
+        });
+    }
+
+    /**
+     * Non-blocking variant of {@link #createSearchPreference(SearchPreference)}. The Mongo save runs on the
+     * percolation executor and the query is indexed through the transport client's listener callback.
+     */
+    public CompletableFuture<SearchPreference> createSearchPreferenceAsync(SearchPreference searchPreference) {
+        long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            SearchPreference savedPreference = searchPreferenceRepository.save(searchPreference);
+            percolatorIndexRebuilder.capture(Collections.singletonList(savedPreference));
+            return savedPreference;
+        }, percolationExecutor)
+                .thenCompose(savedPreference -> indexPercolatorQueryAsync(savedPreference)
+                        .thenApply(indexed -> {
+                            inMemoryMatcher.add(savedPreference);
+                            percolationResultCache.invalidate();
+                            return savedPreference;
+                        }))
+                .thenCompose(savedPreference -> materializedMatchStore.isEnabled()
+                        ? CompletableFuture.supplyAsync(() -> addMaterializedPreference(savedPreference), percolationExecutor)
+                        : CompletableFuture.completedFuture(savedPreference))
+                .whenComplete((savedPreference, failure) -> percolationMetrics.createCompleted(true, start, failure == null));
+    }
+
+    private SearchPreference addMaterializedPreference(SearchPreference savedPreference) {
+        try {
+            materializedMatchStore.addPreference(savedPreference);
+            return savedPreference;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CompletableFuture<?> indexPercolatorQueryAsync(SearchPreference savedPreference) {
+        if (!sharedQueryRegistry.register(savedPreference)) {
+            return CompletableFuture.completedFuture(null); // Served by a shared query that is indexed already
+        }
+        return ElasticsearchFutures.<IndexResponse>execute(listener -> elasticsearchClient.index(
+                uncheckedPercolatorIndexRequest(savedPreference).setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE), listener));
+    }
+
+    /**
+     * Register a batch of search preferences. They are saved in Mongo with batched inserts and their queries are
+     * indexed through a {@link BulkProcessor}, refreshing the index per bulk request instead of per document.
+     * Invalid preferences and preferences that could not be indexed are reported per item, the others are registered.
+     * Preferences that could not be indexed are deleted from Mongo again.
+     * <p>
+     * While the result cache is enabled a refresh policy of {@link WriteRequest.RefreshPolicy#NONE NONE} is applied as
+     * {@link WriteRequest.RefreshPolicy#WAIT_UNTIL WAIT_UNTIL}: the cache is invalidated once the bulk completes, and
+     * a book percolated in between on a not yet refreshed index would cache a result without the new preferences.
+     */
+    public BulkRegistrationResult createSearchPreferences(List<SearchPreference> preferences,
+                                                          WriteRequest.RefreshPolicy refreshPolicy) throws IOException {
+        List<BulkRegistrationResult.ItemFailure> failures = Collections.synchronizedList(new ArrayList<>());
+        List<SearchPreference> notIndexed = Collections.synchronizedList(new ArrayList<>());
+        Map<String, Integer> positionsById = new ConcurrentHashMap<>();
+        Map<String, SearchPreference> indexedById = new ConcurrentHashMap<>();
+        // Bulk items are percolator queries, which are shared by preferences with the same criteria when enabled.
+        // Guarded by itself, a preference joining a pending item must not miss its failure.
+        Map<String, List<String>> preferenceIdsByItemId = new HashMap<>();
+        WriteRequest.RefreshPolicy bulkRefreshPolicy = percolationResultCache.isEnabled() && refreshPolicy == WriteRequest.RefreshPolicy.NONE
+                ? WriteRequest.RefreshPolicy.WAIT_UNTIL
+                : refreshPolicy;
+
+        BulkProcessor bulkProcessor = BulkProcessor.builder(elasticsearchClient, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+                request.setRefreshPolicy(bulkRefreshPolicy);
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                percolationMetrics.bulkWritten(response.getTook().millis());
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        failItem(item.getId(), item.getFailureMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                log.error("Error while bulk indexing search preferences", failure);
+                request.requests().forEach(item -> failItem(item.id(), failure.getMessage()));
+            }
+
+            /**
+             * Fail every preference served by the percolator query of the item.
+             */
+            private void failItem(String itemId, String reason) {
+                synchronized (preferenceIdsByItemId) {
+                    List<String> preferenceIds = preferenceIdsByItemId.remove(itemId);
+                    if (preferenceIds == null) {
+                        return;
+                    }
+                    for (String preferenceId : preferenceIds) {
+                        SearchPreference preference = unregisterFailed(preferenceId, indexedById);
+                        if (preference != null) {
+                            notIndexed.add(preference);
+                        }
+                        failures.add(bulkItemFailure(positionsById.get(preferenceId), preference, reason));
+                    }
+                }
+            }
+        })
+                .setBulkActions(bulkActions)
+                .setBulkSize(bulkSize)
+                .setConcurrentRequests(bulkConcurrentRequests)
+                .setFlushInterval(bulkFlushInterval)
+                .build();
+
+        try {
+            List<SearchPreference> batch = new ArrayList<>(bulkActions);
+            List<Integer> batchPositions = new ArrayList<>(bulkActions);
+            for (int position = 0; position < preferences.size(); position++) {
+                SearchPreference preference = preferences.get(position);
+                Set<ConstraintViolation<SearchPreference>> violations = validator.validate(preference);
+                if (!violations.isEmpty()) {
+                    failures.add(bulkItemFailure(position, preference, violations.stream()
+                            .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                            .collect(Collectors.joining(", "))));
+                    continue;
+                }
+
+                batch.add(preference);
+                batchPositions.add(position);
+                if (batch.size() == bulkActions) {
+                    saveAndIndex(batch, batchPositions, bulkProcessor, positionsById, indexedById, preferenceIdsByItemId);
+                }
+            }
+            saveAndIndex(batch, batchPositions, bulkProcessor, positionsById, indexedById, preferenceIdsByItemId);
+        } finally {
+            try {
+                if (!bulkProcessor.awaitClose(bulkAwaitTimeout.millis(), TimeUnit.MILLISECONDS)) {
+                    log.warn("Bulk indexing of search preferences did not complete within {}", bulkAwaitTimeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the bulk indexing of search preferences", e);
+            }
+        }
+
+        if (!notIndexed.isEmpty()) {
+            searchPreferenceRepository.delete(notIndexed);
+            // A rebuild replays them as deleted
+            percolatorIndexRebuilder.capture(notIndexed);
+        }
+        indexedById.values().forEach(inMemoryMatcher::add);
+        percolationResultCache.invalidate();
+        materializedMatchStore.addPreferences(indexedById.values());
+        failures.sort(Comparator.comparingInt(BulkRegistrationResult.ItemFailure::getPosition));
+        return BulkRegistrationResult.builder()
+                .registered(indexedById.size())
+                .failures(failures)
+                .build();
+    }
+
+    /**
+     * Remove a search preference from Mongo, the percolator index and the in-memory engine. A shared percolator
+     * query is only removed together with the last preference using it.
+     *
+     * @return {@code false} when no preference with this id exists
+     */
+    public boolean deleteSearchPreference(String searchPreferenceId) {
+        SearchPreference preference = searchPreferenceRepository.findOne(searchPreferenceId);
+        if (preference == null) {
+            return false;
+        }
+
+        searchPreferenceRepository.delete(searchPreferenceId);
+        percolatorIndexRebuilder.capture(Collections.singletonList(preference));
+        String percolatorId = sharedQueryRegistry.unregister(preference);
+        if (percolatorId != null) {
+            elasticsearchClient.prepareDelete(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, percolatorId)
+                    .setRouting(percolatorRouting.routing(preference.getCriteria()))
+                    .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                    .execute()
+                    .actionGet();
+        }
+        inMemoryMatcher.remove(searchPreferenceId);
+        percolationResultCache.invalidate();
+        materializedMatchStore.removePreference(searchPreferenceId);
+        return true;
+    }
+
+    /**
+     * Batched Mongo insert of valid preferences, then hand their queries over to the bulk processor.
+     */
+    private void saveAndIndex(List<SearchPreference> batch, List<Integer> batchPositions, BulkProcessor bulkProcessor,
+                              Map<String, Integer> positionsById, Map<String, SearchPreference> indexedById,
+                              Map<String, List<String>> preferenceIdsByItemId) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<SearchPreference> savedPreferences = new ArrayList<>(batch.size());
+        searchPreferenceRepository.save(batch).forEach(savedPreferences::add);
+        percolatorIndexRebuilder.capture(savedPreferences);
+
+        Iterator<Integer> positions = batchPositions.iterator();
+        for (SearchPreference savedPreference : savedPreferences) {
+            positionsById.put(savedPreference.getSearchPreferenceId(), positions.next());
+            indexedById.put(savedPreference.getSearchPreferenceId(), savedPreference);
+            String itemId = sharedQueryRegistry.percolatorId(savedPreference);
+            boolean newItem;
+            synchronized (preferenceIdsByItemId) {
+                newItem = sharedQueryRegistry.register(savedPreference);
+                if (newItem) {
+                    preferenceIdsByItemId.put(itemId, new ArrayList<>(Collections.singletonList(savedPreference.getSearchPreferenceId())));
+                } else {
+                    // Served by a query indexed before, or by the pending item of a preference earlier in the request
+                    preferenceIdsByItemId.computeIfPresent(itemId, (id, preferenceIds) -> {
+                        preferenceIds.add(savedPreference.getSearchPreferenceId());
+                        return preferenceIds;
+                    });
+                }
+            }
+            if (newItem) {
+                bulkProcessor.add(createPercolatorIndexRequest(savedPreference));
+            }
+        }
+        batch.clear();
+        batchPositions.clear();
+    }
+
+    /**
+     * A preference of which the query could not be indexed is no longer registered, and must not keep a shared query
+     * referenced that does not exist.
+     */
+    private SearchPreference unregisterFailed(String preferenceId, Map<String, SearchPreference> indexedById) {
+        SearchPreference preference = preferenceId == null ? null : indexedById.remove(preferenceId);
+        if (preference != null && sharedQueryRegistry.isEnabled()) {
+            sharedQueryRegistry.unregister(preference);
+        }
+        return preference;
+    }
+
+    private IndexRequest createPercolatorIndexRequest(SearchPreference preference) throws IOException {
+        return percolatorQueries.createIndexRequest(preference, PERCOLATOR_INDEX);
+    }
+
+    private IndexRequest uncheckedPercolatorIndexRequest(SearchPreference preference) {
+        try {
+            return createPercolatorIndexRequest(preference);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static BulkRegistrationResult.ItemFailure bulkItemFailure(Integer position, SearchPreference preference, String reason) {
+        return BulkRegistrationResult.ItemFailure.builder()
+                .position(position == null ? -1 : position)
+                .searchPreferenceId(preference == null ? null : preference.getSearchPreferenceId())
+                .reason(reason)
+                .build();
+    }
+}
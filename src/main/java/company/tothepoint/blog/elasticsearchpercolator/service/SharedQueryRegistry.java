@@ -0,0 +1,157 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQuery;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQueryReference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SharedQueryReferenceRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SharedQueryRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of which percolator query serves which search preferences.
+ * <p>
+ * When shared queries are enabled, preferences with the same canonical criteria share one percolator query, stored
+ * under the {@link CriteriaSignatures#signature(SearchPreference.Criteria) criteria signature}. The preferences of
+ * each signature are stored as references in Mongo and counted on the shared query, the query is registered with the
+ * first and removed with the last.
+ * Otherwise every preference has its own query, stored under its id.
+ */
+@Component
+public class SharedQueryRegistry {
+
+    private final SharedQueryRepository sharedQueryRepository;
+
+    private final SharedQueryReferenceRepository sharedQueryReferenceRepository;
+
+    private final boolean enabled;
+
+    public SharedQueryRegistry(SharedQueryRepository sharedQueryRepository,
+                               SharedQueryReferenceRepository sharedQueryReferenceRepository,
+                               @Value("${company.tothepoint.blog.percolator.shared-queries.enabled:false}") boolean enabled) {
+        this.sharedQueryRepository = sharedQueryRepository;
+        this.sharedQueryReferenceRepository = sharedQueryReferenceRepository;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the id of the percolator query serving the preference
+     */
+    public String percolatorId(SearchPreference preference) {
+        return enabled ? CriteriaSignatures.signature(preference.getCriteria()) : preference.getSearchPreferenceId();
+    }
+
+    /**
+     * @return the criteria to build the percolator query of the preference from
+     */
+    public SearchPreference.Criteria queryCriteria(SearchPreference preference) {
+        return enabled ? CriteriaSignatures.canonicalize(preference.getCriteria()) : preference.getCriteria();
+    }
+
+    /**
+     * Reference a saved preference from its percolator query.
+     *
+     * @return {@code true} when the percolator query does not exist yet and has to be indexed
+     */
+    public boolean register(SearchPreference preference) {
+        if (!enabled) {
+            return true;
+        }
+
+        SharedQuery sharedQuery = sharedQueryRepository.addReference(percolatorId(preference),
+                CriteriaSignatures.canonicalize(preference.getCriteria()), preference.getSearchPreferenceId());
+        return sharedQuery == null || sharedQuery.getReferenceCount() == 1;
+    }
+
+    /**
+     * Drop the reference of a deleted preference to its percolator query.
+     *
+     * @return the id of the percolator query to delete, or {@code null} when other preferences still use it
+     */
+    public String unregister(SearchPreference preference) {
+        if (!enabled) {
+            return preference.getSearchPreferenceId();
+        }
+
+        SharedQuery sharedQuery = sharedQueryRepository.removeReference(percolatorId(preference), preference.getSearchPreferenceId());
+        if (sharedQuery == null) {
+            // Registered before queries were shared, the preference has a query of its own
+            return preference.getSearchPreferenceId();
+        }
+        return sharedQuery.getReferenceCount() <= 0 ? sharedQuery.getSignature() : null;
+    }
+
+    /**
+     * @return {@code true} when the percolator query is shared and still serves preferences
+     */
+    public boolean isReferenced(String percolatorId) {
+        return enabled && sharedQueryRepository.exists(percolatorId);
+    }
+
+    /**
+     * Expand the ids of percolator hits to the ids of the preferences they serve, keeping the hit order.
+     * Ids of queries that are not shared are preference ids already and are kept as they are.
+     */
+    public List<String> expand(Collection<String> percolatorIds) {
+        if (!enabled || percolatorIds.isEmpty()) {
+            return new ArrayList<>(percolatorIds);
+        }
+        return expand(percolatorIds, findPreferenceIdsBySignature(percolatorIds));
+    }
+
+    /**
+     * {@link #expand(Collection)} the hits of several percolated documents, with a single Mongo lookup.
+     */
+    public <K> Map<K, List<String>> expandAll(Map<K, List<String>> percolatorIdsByDocument) {
+        if (!enabled) {
+            return percolatorIdsByDocument;
+        }
+
+        Set<String> percolatorIds = new LinkedHashSet<>();
+        percolatorIdsByDocument.values().forEach(percolatorIds::addAll);
+        Map<String, List<String>> preferenceIdsBySignature = findPreferenceIdsBySignature(percolatorIds);
+
+        Map<K, List<String>> preferenceIdsByDocument = new LinkedHashMap<>();
+        percolatorIdsByDocument.forEach((document, ids) -> preferenceIdsByDocument.put(document, expand(ids, preferenceIdsBySignature)));
+        return preferenceIdsByDocument;
+    }
+
+    private Map<String, List<String>> findPreferenceIdsBySignature(Collection<String> percolatorIds) {
+        Map<String, List<String>> preferenceIdsBySignature = new HashMap<>();
+        if (!percolatorIds.isEmpty()) {
+            sharedQueryReferenceRepository.findBySignatureIn(new LinkedHashSet<>(percolatorIds)).stream()
+                    .sorted(Comparator.comparing(SharedQueryReference::getSearchPreferenceId))
+                    .forEach(reference -> preferenceIdsBySignature
+                            .computeIfAbsent(reference.getSignature(), signature -> new ArrayList<>())
+                            .add(reference.getSearchPreferenceId()));
+        }
+        return preferenceIdsBySignature;
+    }
+
+    private static List<String> expand(Collection<String> percolatorIds, Map<String, List<String>> preferenceIdsBySignature) {
+        Collection<String> preferenceIds = new LinkedHashSet<>();
+        for (String percolatorId : percolatorIds) {
+            List<String> sharedIds = preferenceIdsBySignature.get(percolatorId);
+            if (sharedIds == null) {
+                preferenceIds.add(percolatorId);
+            } else {
+                preferenceIds.addAll(sharedIds);
+            }
+        }
+        return new ArrayList<>(preferenceIds);
+    }
+}
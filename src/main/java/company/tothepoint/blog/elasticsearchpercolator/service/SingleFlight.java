@@ -0,0 +1,106 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent computations of the same key: the first caller computes, callers that arrive while it is in
+ * flight wait for its outcome instead of computing it again. A failure is handed to all of them. Once a computation
+ * completes the next call of its key computes again, nothing is cached.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the results, shared by all callers of a computation
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final Runnable onLead;
+
+    private final Runnable onJoin;
+
+    /**
+     * @param onLead called when a call computes
+     * @param onJoin called when a call waits for a computation in flight
+     */
+    public SingleFlight(Runnable onLead, Runnable onJoin) {
+        this.onLead = onLead;
+        this.onJoin = onJoin;
+    }
+
+    public V execute(K key, IOSupplier<V> computation) throws IOException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            onJoin.run();
+            return await(key, existing);
+        }
+
+        onLead.run();
+        try {
+            V result = computation.get();
+            inFlight.remove(key, flight);
+            flight.complete(result);
+            return result;
+        } catch (Throwable e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Non-blocking variant of {@link #execute(Object, IOSupplier)}. Every caller gets its own future of the shared
+     * computation, so completing or cancelling it does not change the outcome for the others.
+     */
+    public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> computation) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            onJoin.run();
+            return existing.thenApply(Function.identity());
+        }
+
+        onLead.run();
+        try {
+            computation.get().whenComplete((result, failure) -> {
+                inFlight.remove(key, flight);
+                if (failure != null) {
+                    flight.completeExceptionally(failure);
+                } else {
+                    flight.complete(result);
+                }
+            });
+        } catch (Throwable e) {
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+        }
+        return flight.thenApply(Function.identity());
+    }
+
+    private V await(K key, CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while waiting for the computation of %s", key));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(String.format("Something went wrong while computing %s", key), e.getCause());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The time spent per {@link PercolationMetrics.Stage} while handling one request on the current thread. Opened with
+ * {@link PercolationMetrics#openTimings()}, and closed to stop collecting.
+ */
+public class StageTimings implements AutoCloseable {
+
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    private final Map<PercolationMetrics.Stage, Long> nanosByStage = new EnumMap<>(PercolationMetrics.Stage.class);
+
+    private final long start = System.nanoTime();
+
+    private final Runnable onClose;
+
+    StageTimings(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    void add(PercolationMetrics.Stage stage, long nanos) {
+        nanosByStage.merge(stage, nanos, Long::sum);
+    }
+
+    /**
+     * @return the stages that took place and the total time up to now, as the value of a {@code Server-Timing}
+     * header: {@code book-load;dur=0.812, search;dur=4.207, total;dur=5.316}, durations in milliseconds
+     */
+    public String toServerTiming() {
+        String stages = nanosByStage.entrySet().stream()
+                .map(entry -> metric(entry.getKey().getName(), entry.getValue()))
+                .collect(Collectors.joining(", "));
+        String total = metric("total", System.nanoTime() - start);
+        return stages.isEmpty() ? total : stages + ", " + total;
+    }
+
+    @Override
+    public void close() {
+        onClose.run();
+    }
+
+    private static String metric(String name, long nanos) {
+        return String.format(Locale.ROOT, "%s;dur=%.3f", name, nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,176 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.matching;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory equivalent of the percolator queries built from {@link SearchPreference.Criteria}.
+ * <p>
+ * Every preference gets an int ordinal. For every criterion value (each author, book type and language) a
+ * compressed bitmap holds the ordinals of the preferences asking for it, and a separate bitmap holds the
+ * preferences without that criterion. A book matches the intersection of, per criterion, the bitmap of its value
+ * and the "no constraint" bitmap.
+ */
+public class BitmapMatchingEngine {
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> ordinalsById = new HashMap<>();
+    private final List<String> idsByOrdinal = new ArrayList<>();
+    private final List<SearchPreference.Criteria> criteriaByOrdinal = new ArrayList<>();
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+
+    private final Map<String, RoaringBitmap> byAuthor = new HashMap<>();
+    private final RoaringBitmap withoutAuthor = new RoaringBitmap();
+
+    private final Map<BookType, RoaringBitmap> byType = new EnumMap<>(BookType.class);
+    private final RoaringBitmap withoutType = new RoaringBitmap();
+
+    private final Map<BookLanguage, RoaringBitmap> byLanguage = new EnumMap<>(BookLanguage.class);
+    private final RoaringBitmap withoutLanguage = new RoaringBitmap();
+
+    private final PriceIntervalIndex byPrice = new PriceIntervalIndex();
+
+    /**
+     * Add a preference, replacing the criteria it was added with before.
+     */
+    public void add(SearchPreference preference) {
+        lock.writeLock().lock();
+        try {
+            removeUnderLock(preference.getSearchPreferenceId());
+
+            int ordinal = freeOrdinals.isEmpty() ? idsByOrdinal.size() : freeOrdinals.pop();
+            SearchPreference.Criteria criteria = preference.getCriteria();
+            if (ordinal == idsByOrdinal.size()) {
+                idsByOrdinal.add(preference.getSearchPreferenceId());
+                criteriaByOrdinal.add(criteria);
+            } else {
+                idsByOrdinal.set(ordinal, preference.getSearchPreferenceId());
+                criteriaByOrdinal.set(ordinal, criteria);
+            }
+            ordinalsById.put(preference.getSearchPreferenceId(), ordinal);
+
+            if (criteria.getAuthor() == null) {
+                withoutAuthor.add(ordinal);
+            } else {
+                byAuthor.computeIfAbsent(criteria.getAuthor(), author -> new RoaringBitmap()).add(ordinal);
+            }
+
+            // Like a terms query, an empty list of types never matches
+            if (criteria.getTypes() == null) {
+                withoutType.add(ordinal);
+            } else {
+                for (BookType type : criteria.getTypes()) {
+                    byType.computeIfAbsent(type, key -> new RoaringBitmap()).add(ordinal);
+                }
+            }
+
+            if (criteria.getLanguage() == null) {
+                withoutLanguage.add(ordinal);
+            } else {
+                byLanguage.computeIfAbsent(criteria.getLanguage(), key -> new RoaringBitmap()).add(ordinal);
+            }
+
+            byPrice.add(ordinal, criteria.getMinimumPrice(), criteria.getMaximumPrice());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String searchPreferenceId) {
+        lock.writeLock().lock();
+        try {
+            removeUnderLock(searchPreferenceId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the ids of the preferences matching the book, in ordinal order
+     */
+    public List<String> match(Book book) {
+        lock.readLock().lock();
+        try {
+            // Start with the author, the most selective criterion
+            RoaringBitmap matches = RoaringBitmap.or(byAuthor.getOrDefault(book.getAuthor(), new RoaringBitmap()), withoutAuthor);
+            matches.and(RoaringBitmap.or(byType.getOrDefault(book.getType(), new RoaringBitmap()), withoutType));
+            matches.and(RoaringBitmap.or(byLanguage.getOrDefault(book.getLanguage(), new RoaringBitmap()), withoutLanguage));
+            if (!matches.isEmpty()) {
+                matches.and(byPrice.matching(book.getPrice()));
+            }
+
+            List<String> ids = new ArrayList<>(matches.getCardinality());
+            matches.forEach((int ordinal) -> ids.add(idsByOrdinal.get(ordinal)));
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinalsById.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void removeUnderLock(String searchPreferenceId) {
+        Integer ordinal = ordinalsById.remove(searchPreferenceId);
+        if (ordinal == null) {
+            return;
+        }
+
+        SearchPreference.Criteria criteria = criteriaByOrdinal.get(ordinal);
+        if (criteria.getAuthor() == null) {
+            withoutAuthor.remove(ordinal);
+        } else {
+            removeFrom(byAuthor, criteria.getAuthor(), ordinal);
+        }
+
+        if (criteria.getTypes() == null) {
+            withoutType.remove(ordinal);
+        } else {
+            for (BookType type : criteria.getTypes()) {
+                removeFrom(byType, type, ordinal);
+            }
+        }
+
+        if (criteria.getLanguage() == null) {
+            withoutLanguage.remove(ordinal);
+        } else {
+            removeFrom(byLanguage, criteria.getLanguage(), ordinal);
+        }
+
+        byPrice.remove(ordinal, criteria.getMinimumPrice(), criteria.getMaximumPrice());
+
+        idsByOrdinal.set(ordinal, null);
+        criteriaByOrdinal.set(ordinal, null);
+        freeOrdinals.push(ordinal);
+    }
+
+    private static <K> void removeFrom(Map<K, RoaringBitmap> bitmaps, K key, int ordinal) {
+        RoaringBitmap ordinals = bitmaps.get(key);
+        if (ordinals != null) {
+            ordinals.remove(ordinal);
+            if (ordinals.isEmpty()) {
+                bitmaps.remove(key);
+            }
+        }
+    }
+}
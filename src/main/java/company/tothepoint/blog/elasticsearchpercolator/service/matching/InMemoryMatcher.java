@@ -0,0 +1,81 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.matching;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps a {@link BitmapMatchingEngine} in sync with the search preferences when the in-memory matching engine is
+ * configured. The engine is loaded from Mongo in the background after startup; until then {@link #isReady()}
+ * returns false and matching has to fall back to Elasticsearch.
+ */
+@Slf4j
+@Component
+public class InMemoryMatcher {
+
+    private final SearchPreferenceRepository searchPreferenceRepository;
+
+    private final boolean enabled;
+
+    private final BitmapMatchingEngine engine = new BitmapMatchingEngine();
+
+    private volatile boolean ready = false;
+
+    public InMemoryMatcher(SearchPreferenceRepository searchPreferenceRepository,
+                           @Value("${company.tothepoint.blog.percolator.matching-engine:ELASTICSEARCH}") MatchingEngineType matchingEngine) {
+        this.searchPreferenceRepository = searchPreferenceRepository;
+        this.enabled = matchingEngine == MatchingEngineType.IN_MEMORY;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+
+        Thread loader = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            try (Stream<SearchPreference> preferences = searchPreferenceRepository.streamAll()) {
+                preferences.forEach(engine::add);
+                ready = true;
+                log.info("Loaded {} search preferences in the in-memory matching engine in {} ms",
+                        engine.size(), System.currentTimeMillis() - start);
+            } catch (RuntimeException e) {
+                log.error("Error while loading the in-memory matching engine, matching stays on Elasticsearch", e);
+            }
+        }, "in-memory-matcher-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void add(SearchPreference preference) {
+        if (enabled) {
+            engine.add(preference);
+        }
+    }
+
+    public void remove(String searchPreferenceId) {
+        if (enabled) {
+            engine.remove(searchPreferenceId);
+        }
+    }
+
+    /**
+     * @return the ids of the preferences matching the book, only meaningful when {@link #isReady()}
+     */
+    public List<String> match(Book book) {
+        return engine.match(book);
+    }
+}
@@ -0,0 +1,18 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.matching;
+
+/**
+ * Where books are matched against the registered search preferences.
+ */
+public enum MatchingEngineType {
+
+    /**
+     * Percolate every book against the queries registered in the percolator index.
+     */
+    ELASTICSEARCH,
+
+    /**
+     * Match books in-process by intersecting bitmaps of preference ordinals. Elasticsearch stays the durable copy
+     * of the queries and is used as long as the in-memory index is not loaded.
+     */
+    IN_MEMORY
+}
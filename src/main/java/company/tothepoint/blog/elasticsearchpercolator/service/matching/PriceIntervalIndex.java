@@ -0,0 +1,70 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.matching;
+
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Index of the price intervals of the preferences. Both bounds are kept in a sorted map of bound to the
+ * ordinals using that bound, so the preferences accepting a price are found with one range lookup per bound.
+ * Preferences without a bound are kept in their own bitmap.
+ * <p>
+ * Not thread safe, guarded by the {@link BitmapMatchingEngine}.
+ */
+class PriceIntervalIndex {
+
+    private final NavigableMap<Double, RoaringBitmap> byMinimum = new TreeMap<>();
+    private final RoaringBitmap withoutMinimum = new RoaringBitmap();
+
+    private final NavigableMap<Double, RoaringBitmap> byMaximum = new TreeMap<>();
+    private final RoaringBitmap withoutMaximum = new RoaringBitmap();
+
+    void add(int ordinal, Double minimumPrice, Double maximumPrice) {
+        add(ordinal, minimumPrice, byMinimum, withoutMinimum);
+        add(ordinal, maximumPrice, byMaximum, withoutMaximum);
+    }
+
+    void remove(int ordinal, Double minimumPrice, Double maximumPrice) {
+        remove(ordinal, minimumPrice, byMinimum, withoutMinimum);
+        remove(ordinal, maximumPrice, byMaximum, withoutMaximum);
+    }
+
+    /**
+     * @return the ordinals of which the interval contains the price, bounds included
+     */
+    RoaringBitmap matching(double price) {
+        RoaringBitmap minimumMatches = FastAggregation.or(byMinimum.headMap(price, true).values().iterator());
+        minimumMatches.or(withoutMinimum);
+
+        RoaringBitmap maximumMatches = FastAggregation.or(byMaximum.tailMap(price, true).values().iterator());
+        maximumMatches.or(withoutMaximum);
+
+        minimumMatches.and(maximumMatches);
+        return minimumMatches;
+    }
+
+    private static void add(int ordinal, Double bound, Map<Double, RoaringBitmap> byBound, RoaringBitmap withoutBound) {
+        if (bound == null) {
+            withoutBound.add(ordinal);
+        } else {
+            byBound.computeIfAbsent(bound, key -> new RoaringBitmap()).add(ordinal);
+        }
+    }
+
+    private static void remove(int ordinal, Double bound, Map<Double, RoaringBitmap> byBound, RoaringBitmap withoutBound) {
+        if (bound == null) {
+            withoutBound.remove(ordinal);
+        } else {
+            RoaringBitmap ordinals = byBound.get(bound);
+            if (ordinals != null) {
+                ordinals.remove(ordinal);
+                if (ordinals.isEmpty()) {
+                    byBound.remove(bound);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.mongodb.BulkWriteError;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookImport;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndex;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Imports books from newline delimited JSON, one book per line. Lines are read and parsed one at a time, so a line
+ * that is not valid JSON or longer than the maximum line length only fails that line, and validated against the
+ * constraints on {@link Book}. Valid books are inserted in Mongo in unordered bulk batches, then percolated in the
+ * importing thread batch by batch through {@link BookIngestPipeline#percolate(List)}. Memory use is bounded by the
+ * batch size, the maximum line length and the number of reported failures, whatever the size of the upload.
+ * <p>
+ * Imports run in the thread of the upload and can be followed and cancelled from other threads while they run. The
+ * last finished imports are kept in memory for a while.
+ */
+@Slf4j
+@Component
+public class BookImporter {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ObjectReader bookReader;
+
+    private final Validator validator;
+
+    private final BooksIndex booksIndex;
+
+    private final BookIngestPipeline bookIngestPipeline;
+
+    private final int batchSize;
+
+    private final int maxReportedFailures;
+
+    private final int maxLineLength;
+
+    private final Map<String, ImportJob> imports;
+
+    public BookImporter(MongoTemplate mongoTemplate,
+                        ObjectMapper objectMapper,
+                        Validator validator,
+                        BooksIndex booksIndex,
+                        BookIngestPipeline bookIngestPipeline,
+                        @Value("${company.tothepoint.blog.import.batch-size:1000}") int batchSize,
+                        @Value("${company.tothepoint.blog.import.max-reported-failures:1000}") int maxReportedFailures,
+                        @Value("${company.tothepoint.blog.import.max-line-length:65536}") int maxLineLength,
+                        @Value("${company.tothepoint.blog.import.retained:20}") int retained) {
+        this.mongoTemplate = mongoTemplate;
+        this.bookReader = objectMapper.readerFor(Book.class);
+        this.validator = validator;
+        this.booksIndex = booksIndex;
+        this.bookIngestPipeline = bookIngestPipeline;
+        this.batchSize = batchSize;
+        this.maxReportedFailures = maxReportedFailures;
+        this.maxLineLength = maxLineLength;
+        this.imports = Collections.synchronizedMap(new LinkedHashMap<String, ImportJob>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ImportJob> eldest) {
+                return size() > retained && eldest.getValue().status != BookImport.Status.RUNNING;
+            }
+        });
+    }
+
+    /**
+     * Import all books of the input, until its end or until the import is cancelled.
+     *
+     * @return the outcome of the import
+     */
+    public BookImport importBooks(InputStream input) {
+        ImportJob job = new ImportJob(UUID.randomUUID().toString());
+        imports.put(job.importId, job);
+        log.info("Started import {}", job.importId);
+
+        try (BoundedLineReader reader = new BoundedLineReader(new InputStreamReader(input, StandardCharsets.UTF_8), maxLineLength)) {
+            List<Book> books = new ArrayList<>(batchSize);
+            List<Long> lineNumbers = new ArrayList<>(batchSize);
+            String line;
+            while (!job.cancelled && (line = reader.readLine()) != null) {
+                long lineNumber = job.lines.incrementAndGet();
+                if (reader.isTruncated()) {
+                    job.fail(lineNumber, String.format("Line longer than %d characters", maxLineLength));
+                    continue;
+                }
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                Book book = parse(job, lineNumber, line);
+                if (book == null) {
+                    continue;
+                }
+                books.add(book);
+                lineNumbers.add(lineNumber);
+                if (books.size() == batchSize) {
+                    importBatch(job, books, lineNumbers);
+                    books.clear();
+                    lineNumbers.clear();
+                }
+            }
+            if (!job.cancelled) {
+                importBatch(job, books, lineNumbers);
+            }
+            job.finish(job.cancelled ? BookImport.Status.CANCELLED : BookImport.Status.COMPLETED);
+        } catch (Exception e) {
+            log.error(String.format("Error while importing books in import %s", job.importId), e);
+            job.finish(BookImport.Status.FAILED);
+        }
+
+        log.info("Finished import {}: {} of {} lines imported, {} failed",
+                job.importId, job.imported.get(), job.lines.get(), job.failed.get());
+        return job.toBookImport();
+    }
+
+    public List<BookImport> findAll() {
+        synchronized (imports) {
+            return imports.values().stream()
+                    .map(ImportJob::toBookImport)
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the import, or {@code null} when it is unknown or no longer retained
+     */
+    public BookImport find(String importId) {
+        ImportJob job = imports.get(importId);
+        return job == null ? null : job.toBookImport();
+    }
+
+    /**
+     * Stop a running import after the line it is at. Books of batches that were already inserted stay imported.
+     *
+     * @return {@code false} when the import is unknown or no longer running
+     */
+    public boolean cancel(String importId) {
+        ImportJob job = imports.get(importId);
+        if (job == null || job.status != BookImport.Status.RUNNING) {
+            return false;
+        }
+        job.cancelled = true;
+        return true;
+    }
+
+    private Book parse(ImportJob job, long lineNumber, String line) {
+        Book book;
+        try {
+            book = bookReader.readValue(line);
+        } catch (JsonProcessingException e) {
+            job.fail(lineNumber, "Invalid JSON: " + e.getOriginalMessage());
+            return null;
+        } catch (IOException e) {
+            job.fail(lineNumber, e.getMessage());
+            return null;
+        }
+
+        Set<ConstraintViolation<Book>> violations = validator.validate(book);
+        if (!violations.isEmpty()) {
+            job.fail(lineNumber, violations.stream()
+                    .map(violation -> violation.getPropertyPath() + " " + violation.getMessage())
+                    .sorted()
+                    .collect(Collectors.joining(", ")));
+            return null;
+        }
+
+        if (book.getBookId() == null) {
+            // Assigned up front, bulk inserts do not set the generated ids on the books
+            book.setBookId(new ObjectId().toHexString());
+        }
+        return book;
+    }
+
+    private void importBatch(ImportJob job, List<Book> books, List<Long> lineNumbers) throws Exception {
+        if (books.isEmpty()) {
+            return;
+        }
+
+        Set<Integer> failedPositions = new HashSet<>();
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Book.class)
+                    .insert(books)
+                    .execute();
+        } catch (BulkOperationException e) {
+            for (BulkWriteError error : e.getErrors()) {
+                failedPositions.add(error.getIndex());
+                job.fail(lineNumbers.get(error.getIndex()), error.getMessage());
+            }
+        }
+        // Before indexing and percolating, a book saved again meanwhile must count as newer
+        long savedAt = System.currentTimeMillis();
+
+        List<Book> saved = new ArrayList<>(books.size() - failedPositions.size());
+        for (int i = 0; i < books.size(); i++) {
+            if (!failedPositions.contains(i)) {
+                saved.add(books.get(i));
+            }
+        }
+        job.imported.addAndGet(saved.size());
+        if (saved.isEmpty()) {
+            return;
+        }
+
+        booksIndex.index(saved);
+        try {
+            bookIngestPipeline.percolate(saved, savedAt);
+            job.percolated.addAndGet(saved.size());
+        } catch (Exception e) {
+            // The books are imported, they are just not matched yet
+            log.error(String.format("Error while percolating %d imported books in import %s", saved.size(), job.importId), e);
+        }
+    }
+
+    private class ImportJob {
+        private final String importId;
+        private final Date startedAt = new Date();
+        private final AtomicLong lines = new AtomicLong();
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong percolated = new AtomicLong();
+        private final List<BookImport.LineFailure> failures = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean cancelled;
+        private volatile BookImport.Status status = BookImport.Status.RUNNING;
+        private volatile Date finishedAt;
+
+        ImportJob(String importId) {
+            this.importId = importId;
+        }
+
+        void fail(long line, String reason) {
+            failed.incrementAndGet();
+            if (failures.size() < maxReportedFailures) {
+                failures.add(BookImport.LineFailure.builder()
+                        .line(line)
+                        .reason(reason)
+                        .build());
+            }
+        }
+
+        void finish(BookImport.Status finalStatus) {
+            finishedAt = new Date();
+            status = finalStatus;
+        }
+
+        BookImport toBookImport() {
+            List<BookImport.LineFailure> reportedFailures;
+            synchronized (failures) {
+                reportedFailures = new ArrayList<>(failures);
+            }
+            return BookImport.builder()
+                    .importId(importId)
+                    .status(status)
+                    .lines(lines.get())
+                    .imported(imported.get())
+                    .failed(failed.get())
+                    .percolated(percolated.get())
+                    .failures(reportedFailures)
+                    .startedAt(startedAt)
+                    .finishedAt(finishedAt)
+                    .build();
+        }
+    }
+}
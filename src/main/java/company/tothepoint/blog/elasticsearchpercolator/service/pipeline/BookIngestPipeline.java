@@ -0,0 +1,308 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.BookstoreService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Percolates new books in the background. Saving a book puts it on a bounded in-process queue, worker threads
+ * drain the queue in micro-batches, percolate every batch with one multi-document request and publish a
+ * {@link MatchEvent} per book to the configured {@link MatchEventSink}. With match deltas enabled, the events only
+ * hold what changed since the book was percolated before, as tracked by the {@link BookMatchesTracker}.
+ * <p>
+ * A place in the queue is reserved before the book is saved, so when the queue stays full for longer than the
+ * offer timeout the book is rejected instead of being saved without ever being matched.
+ */
+@Slf4j
+@Component
+public class BookIngestPipeline {
+
+    private final BookRepository bookRepository;
+
+    private final BookstoreService bookstoreService;
+
+    private final MatchEventSink matchEventSink;
+
+    private final BookMatchesTracker bookMatchesTracker;
+
+    private final boolean enabled;
+    private final boolean matchDeltas;
+    private final int workerCount;
+    private final int batchSize;
+    private final long offerTimeoutMillis;
+    private final long shutdownTimeoutMillis;
+
+    private final BlockingQueue<QueuedBook> queue = new LinkedBlockingQueue<>();
+    private final Semaphore capacity;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final Timer lag;
+    private final Timer batchDuration;
+    private final Counter rejected;
+    private final Counter failures;
+    private final Counter publishedEvents;
+
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    public BookIngestPipeline(BookRepository bookRepository,
+                              BookstoreService bookstoreService,
+                              MatchEventSink matchEventSink,
+                              BookMatchesTracker bookMatchesTracker,
+                              MeterRegistry meterRegistry,
+                              @Value("${company.tothepoint.blog.pipeline.enabled:true}") boolean enabled,
+                              @Value("${company.tothepoint.blog.pipeline.match-deltas.enabled:true}") boolean matchDeltas,
+                              @Value("${company.tothepoint.blog.pipeline.queue-capacity:10000}") int queueCapacity,
+                              @Value("${company.tothepoint.blog.pipeline.workers:2}") int workerCount,
+                              @Value("${company.tothepoint.blog.pipeline.batch-size:100}") int batchSize,
+                              @Value("${company.tothepoint.blog.pipeline.offer-timeout-millis:1000}") long offerTimeoutMillis,
+                              @Value("${company.tothepoint.blog.pipeline.shutdown-timeout-millis:30000}") long shutdownTimeoutMillis) {
+        this.bookRepository = bookRepository;
+        this.bookstoreService = bookstoreService;
+        this.matchEventSink = matchEventSink;
+        this.bookMatchesTracker = bookMatchesTracker;
+        this.enabled = enabled;
+        this.matchDeltas = matchDeltas;
+        this.workerCount = workerCount;
+        this.batchSize = batchSize;
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.capacity = new Semaphore(queueCapacity);
+
+        meterRegistry.gauge("pipeline.queue.depth", queueDepth);
+        this.lag = meterRegistry.timer("pipeline.lag");
+        this.batchDuration = meterRegistry.timer("pipeline.batch.duration");
+        this.rejected = meterRegistry.counter("pipeline.rejected");
+        this.failures = meterRegistry.counter("pipeline.failures");
+        this.publishedEvents = meterRegistry.counter("pipeline.events.published");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+
+        running = true;
+        AtomicInteger workerNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "book-ingest-" + workerNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::drain);
+        }
+    }
+
+    /**
+     * Save the book and queue it for percolation.
+     *
+     * @throws PipelineFullException when no place frees up in the queue within the offer timeout
+     */
+    public Book ingest(Book book) {
+        if (!enabled) {
+            return bookRepository.save(book);
+        }
+
+        reserve(1);
+        try {
+            Book savedBook = bookRepository.save(book);
+            enqueue(savedBook, System.currentTimeMillis());
+            return savedBook;
+        } catch (RuntimeException e) {
+            capacity.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Save a new version of an existing book and queue it for percolation, like {@link #ingest(Book)}.
+     *
+     * @return the saved book, or {@code null} when no book with this id exists
+     */
+    public Book update(String bookId, Book book) {
+        if (!bookRepository.exists(bookId)) {
+            return null;
+        }
+        book.setBookId(bookId);
+        return ingest(book);
+    }
+
+    /**
+     * Queue already saved books for percolation, waiting for room in the queue like {@link #ingest(Book)}.
+     *
+     * @param savedAt when the save of the books returned, not when they are submitted: waiting for room must not make
+     *                them look newer than a version of a book saved meanwhile
+     */
+    public void submit(List<Book> savedBooks, long savedAt) {
+        if (!enabled || savedBooks.isEmpty()) {
+            return;
+        }
+
+        reserve(savedBooks.size());
+        savedBooks.forEach(savedBook -> enqueue(savedBook, savedAt));
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+
+        // Workers keep draining until the queue is empty
+        running = false;
+        workers.shutdown();
+        if (!workers.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("Book ingest pipeline did not drain within {} ms, {} books were not percolated",
+                    shutdownTimeoutMillis, queueDepth.get());
+            workers.shutdownNow();
+        }
+    }
+
+    private void reserve(int places) {
+        if (!running) {
+            throw new PipelineFullException("The book ingest pipeline is shutting down");
+        }
+
+        try {
+            if (!capacity.tryAcquire(places, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                rejected.increment(places);
+                throw new PipelineFullException("The book ingest queue is full, try again later");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PipelineFullException("Interrupted while waiting for room in the book ingest queue");
+        }
+    }
+
+    private void enqueue(Book savedBook, long savedAt) {
+        queue.add(new QueuedBook(savedBook, System.nanoTime(), savedAt));
+        queueDepth.incrementAndGet();
+    }
+
+    private void drain() {
+        List<QueuedBook> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                QueuedBook first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                queueDepth.addAndGet(-batch.size());
+                capacity.release(batch.size());
+
+                percolateQueued(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                failures.increment(batch.size());
+                log.error(String.format("Error while percolating a batch of %d books", batch.size()), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void percolateQueued(List<QueuedBook> batch) throws Exception {
+        long now = System.nanoTime();
+        // Only the latest version of a book updated several times in a row is percolated
+        Map<String, QueuedBook> latestByBookId = new LinkedHashMap<>();
+        batch.forEach(queuedBook -> {
+            lag.record(now - queuedBook.enqueuedAt, TimeUnit.NANOSECONDS);
+            latestByBookId.merge(queuedBook.book.getBookId(), queuedBook,
+                    (queued, next) -> next.savedAt >= queued.savedAt ? next : queued);
+        });
+
+        List<Book> books = new ArrayList<>(latestByBookId.size());
+        Map<String, Long> savedAtByBookId = new HashMap<>();
+        latestByBookId.forEach((bookId, queuedBook) -> {
+            books.add(queuedBook.book);
+            savedAtByBookId.put(bookId, queuedBook.savedAt);
+        });
+        percolate(books, savedAtByBookId);
+    }
+
+    /**
+     * Percolate already saved books in the calling thread, with one multi-document request, and publish their
+     * match events. Bypasses the queue, so the caller is held back by percolation instead of being rejected.
+     * The books count as saved when this is called, callers that know when they were saved pass that instead.
+     */
+    public void percolate(List<Book> savedBooks) throws Exception {
+        percolate(savedBooks, System.currentTimeMillis());
+    }
+
+    /**
+     * Percolate books like {@link #percolate(List)}, of which the versions were saved or read at the given time.
+     * Matches of versions of the books saved later are not overwritten.
+     */
+    public void percolate(List<Book> savedBooks, long savedAt) throws Exception {
+        Map<String, Long> savedAtByBookId = new HashMap<>();
+        savedBooks.forEach(book -> savedAtByBookId.put(book.getBookId(), savedAt));
+        percolate(savedBooks, savedAtByBookId);
+    }
+
+    private void percolate(List<Book> savedBooks, Map<String, Long> savedAtByBookId) throws Exception {
+        Map<String, List<String>> matches = batchDuration.recordCallable(() -> bookstoreService.findMatchingPreferenceIds(savedBooks));
+
+        long matchedAt = System.currentTimeMillis();
+        List<MatchEvent> events;
+        if (matchDeltas) {
+            events = bookMatchesTracker.track(matches, savedAtByBookId, matchedAt);
+        } else {
+            events = new ArrayList<>(matches.size());
+            matches.forEach((bookId, searchPreferenceIds) -> events.add(MatchEvent.builder()
+                    .bookId(bookId)
+                    .searchPreferenceIds(searchPreferenceIds)
+                    .unmatchedSearchPreferenceIds(Collections.emptyList())
+                    .matchedAt(matchedAt)
+                    .build()));
+        }
+        events.forEach(event -> {
+            matchEventSink.publish(event);
+            publishedEvents.increment();
+        });
+    }
+
+    private static class QueuedBook {
+        private final Book book;
+        private final long enqueuedAt;
+        private final long savedAt;
+
+        QueuedBook(Book book, long enqueuedAt, long savedAt) {
+            this.book = book;
+            this.enqueuedAt = enqueuedAt;
+            this.savedAt = savedAt;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookMatchesRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the preferences every book matched the last time it was percolated, and turns a new percolation into the
+ * change since: the preferences the book matches now and did not match before, and the ones it no longer matches.
+ * A book that is percolated again without any change gives no event at all.
+ * <p>
+ * Preferences the materialized match store added to the matches of a book since it was percolated are left out of
+ * the matches before, so they are still published as matched.
+ * <p>
+ * Matches are read and written per batch, only the ones that changed are written. Batches are tracked one at a time, and a version of a book is only stored
+ * when it was saved after the stored one, so two workers percolating updates of the same book can't interleave.
+ * <ul>
+ * <li>{@code pipeline.matches.unchanged}, the books of which the matches did not change</li>
+ * <li>{@code pipeline.matches.stale}, older versions of books that were percolated after a newer version</li>
+ * </ul>
+ */
+@Component
+public class BookMatchesTracker {
+
+    private final BookMatchesRepository bookMatchesRepository;
+
+    private final Counter unchanged;
+
+    private final Counter stale;
+
+    public BookMatchesTracker(BookMatchesRepository bookMatchesRepository, MeterRegistry meterRegistry) {
+        this.bookMatchesRepository = bookMatchesRepository;
+        this.unchanged = meterRegistry.counter("pipeline.matches.unchanged");
+        this.stale = meterRegistry.counter("pipeline.matches.stale");
+    }
+
+    /**
+     * Store the new matches of percolated books.
+     *
+     * @param matches         the ids of the preferences matching each book
+     * @param savedAtByBookId when the percolated version of each book was saved
+     * @return the events of the books of which the matches changed
+     */
+    public synchronized List<MatchEvent> track(Map<String, List<String>> matches, Map<String, Long> savedAtByBookId,
+                                               long matchedAt) {
+        Map<String, BookMatches> previousByBookId = new HashMap<>();
+        bookMatchesRepository.findAllMatches(matches.keySet()).forEach(previous -> previousByBookId.put(previous.getBookId(), previous));
+
+        List<BookMatches> updated = new ArrayList<>(matches.size());
+        List<BookMatch> stored = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<MatchEvent> events = new ArrayList<>();
+        matches.forEach((bookId, searchPreferenceIds) -> {
+            long savedAt = savedAtByBookId.get(bookId);
+            BookMatches previous = previousByBookId.get(bookId);
+            if (previous != null && previous.getSavedAt() > savedAt) {
+                stale.increment();
+                return;
+            }
+
+            List<String> current = sortedDistinct(searchPreferenceIds);
+            updated.add(BookMatches.builder()
+                    .bookId(bookId)
+                    .savedAt(savedAt)
+                    .matchedAt(matchedAt)
+                    .build());
+            storedChanges(bookId, previous, current, stored, removed);
+
+            List<String> before = published(previous);
+            List<String> matched = new ArrayList<>();
+            List<String> unmatched = new ArrayList<>();
+            diff(before, current, matched, unmatched);
+            if (previous != null && matched.isEmpty() && unmatched.isEmpty()) {
+                unchanged.increment();
+                return;
+            }
+            events.add(MatchEvent.builder()
+                    .bookId(bookId)
+                    .searchPreferenceIds(matched)
+                    .unmatchedSearchPreferenceIds(unmatched)
+                    .matchedAt(matchedAt)
+                    .build());
+        });
+
+        bookMatchesRepository.saveMatches(updated, stored, removed);
+        return events;
+    }
+
+    /**
+     * Collect the matches of a book to write: the new ones and the ones to publish, and the ids of the ones it lost.
+     */
+    static void storedChanges(String bookId, BookMatches previous, List<String> current,
+                              List<BookMatch> stored, List<String> removed) {
+        List<String> added = new ArrayList<>();
+        List<String> lost = new ArrayList<>();
+        diff(previous == null ? Collections.emptyList() : previous.getSearchPreferenceIds(), current, added, lost);
+        if (previous != null) {
+            // Unpublished matches the book still has are published by this percolation
+            for (String id : previous.getUnpublishedSearchPreferenceIds()) {
+                if (Collections.binarySearch(current, id) >= 0) {
+                    added.add(id);
+                }
+            }
+        }
+        for (String id : added) {
+            stored.add(BookMatch.builder()
+                    .matchId(BookMatch.matchId(bookId, id))
+                    .bookId(bookId)
+                    .searchPreferenceId(id)
+                    .build());
+        }
+        for (String id : lost) {
+            removed.add(BookMatch.matchId(bookId, id));
+        }
+    }
+
+    /**
+     * @return the sorted matches of a book that were published, without the ones the materialized match store added
+     */
+    static List<String> published(BookMatches previous) {
+        if (previous == null) {
+            return Collections.emptyList();
+        }
+        if (previous.getUnpublishedSearchPreferenceIds() == null || previous.getUnpublishedSearchPreferenceIds().isEmpty()) {
+            return previous.getSearchPreferenceIds();
+        }
+        Set<String> unpublished = new HashSet<>(previous.getUnpublishedSearchPreferenceIds());
+        return previous.getSearchPreferenceIds().stream()
+                .filter(id -> !unpublished.contains(id))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> sortedDistinct(List<String> ids) {
+        List<String> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        List<String> distinct = new ArrayList<>(sorted.size());
+        for (String id : sorted) {
+            if (distinct.isEmpty() || !distinct.get(distinct.size() - 1).equals(id)) {
+                distinct.add(id);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Merge two sorted id lists into the ids only in the current one and the ids only in the one before.
+     */
+    static void diff(List<String> before, List<String> current, List<String> matched, List<String> unmatched) {
+        int b = 0;
+        int c = 0;
+        while (b < before.size() || c < current.size()) {
+            int order = b == before.size() ? 1 : c == current.size() ? -1 : before.get(b).compareTo(current.get(c));
+            if (order < 0) {
+                unmatched.add(before.get(b++));
+            } else if (order > 0) {
+                matched.add(current.get(c++));
+            } else {
+                b++;
+                c++;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines like {@link java.io.BufferedReader#readLine()}, but keeps at most {@code maxLength} characters of a line
+ * in memory. The rest of a longer line is skipped and the line is reported as truncated, so a single huge line of an
+ * upload can't exhaust the heap.
+ */
+class BoundedLineReader implements Closeable {
+
+    private final Reader reader;
+
+    private final int maxLength;
+
+    private final char[] buffer = new char[8192];
+
+    private final StringBuilder line = new StringBuilder();
+
+    private int position;
+
+    private int limit;
+
+    private boolean truncated;
+
+    BoundedLineReader(Reader reader, int maxLength) {
+        this.reader = reader;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the next line without its terminator, or {@code null} at the end of the input
+     */
+    String readLine() throws IOException {
+        line.setLength(0);
+        truncated = false;
+        boolean read = false;
+        while (true) {
+            if (position == limit) {
+                limit = Math.max(reader.read(buffer, 0, buffer.length), 0);
+                position = 0;
+                if (limit == 0) {
+                    return read ? line() : null;
+                }
+            }
+            read = true;
+
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            append(start, position);
+            if (position < limit) {
+                position++;
+                return line();
+            }
+        }
+    }
+
+    /**
+     * @return whether the last line read was longer than the maximum length, and only its start was returned
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void append(int start, int end) {
+        // One extra character for the carriage return of a line ending with \r\n
+        int length = Math.min(end - start, maxLength + 1 - line.length());
+        if (length < end - start) {
+            truncated = true;
+        }
+        line.append(buffer, start, length);
+    }
+
+    private String line() {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        if (line.length() > maxLength) {
+            line.setLength(maxLength);
+            truncated = true;
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,277 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CatalogRescan;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.CatalogRescanRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Re-percolates every book in the catalog, after preferences were bulk loaded or the percolator mapping changed.
+ * <p>
+ * The book ids are split into ranges of about the same number of books, which are scanned on a work-stealing pool of
+ * as many threads as the configured concurrency, so the rescan never takes more than that from live traffic. Every
+ * range is read with a Mongo cursor in id order and percolated in multi-document batches through
+ * {@link BookIngestPipeline#percolate(List, long)}, which publishes the changes in matches. The checkpoint of a range
+ * is the last book up to which all its books are percolated, so a rescan that failed, was cancelled or was
+ * interrupted by a restart resumes from there.
+ */
+@Slf4j
+@Component
+public class CatalogRescanner {
+
+    private final BookRepository bookRepository;
+
+    private final CatalogRescanRepository rescanRepository;
+
+    private final BookIngestPipeline bookIngestPipeline;
+
+    private final int concurrency;
+
+    private final int ranges;
+
+    private final int batchSize;
+
+    private final boolean resumeOnStartup;
+
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "catalog-rescan");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ExecutorService scanners;
+
+    private volatile boolean cancelled;
+
+    private volatile boolean shuttingDown;
+
+    /**
+     * When the current run started and how many books were scanned by then, to estimate when it finishes.
+     */
+    private volatile long runStartedAt;
+
+    private volatile long scannedAtRunStart;
+
+    private boolean running;
+
+    public CatalogRescanner(BookRepository bookRepository,
+                            CatalogRescanRepository rescanRepository,
+                            BookIngestPipeline bookIngestPipeline,
+                            @Value("${company.tothepoint.blog.rescan.concurrency:2}") int concurrency,
+                            @Value("${company.tothepoint.blog.rescan.ranges:16}") int ranges,
+                            @Value("${company.tothepoint.blog.rescan.batch-size:500}") int batchSize,
+                            @Value("${company.tothepoint.blog.rescan.resume-on-startup:true}") boolean resumeOnStartup) {
+        this.bookRepository = bookRepository;
+        this.rescanRepository = rescanRepository;
+        this.bookIngestPipeline = bookIngestPipeline;
+        this.concurrency = concurrency;
+        this.ranges = ranges;
+        this.batchSize = batchSize;
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    /**
+     * Resume the rescan that was running when the application stopped.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedRescan() {
+        CatalogRescan latest = rescanRepository.findFirstByOrderByStartedAtDesc();
+        if (resumeOnStartup && latest != null && latest.getStatus() == CatalogRescan.Status.RUNNING) {
+            log.info("Resuming rescan {} of the catalog, {} of {} books scanned", latest.getRescanId(), latest.getScanned(), latest.getTotal());
+            start();
+        }
+    }
+
+    /**
+     * Start a rescan in the background, or resume the last one when it did not complete.
+     *
+     * @return the rescan, already running when a rescan was in progress
+     */
+    public synchronized CatalogRescan start() {
+        CatalogRescan rescan = rescanRepository.findFirstByOrderByStartedAtDesc();
+        if (running) {
+            return rescan;
+        }
+
+        if (rescan == null || rescan.getStatus() == CatalogRescan.Status.COMPLETED) {
+            rescan = CatalogRescan.builder()
+                    .ranges(splitIntoRanges())
+                    .total(bookRepository.count())
+                    .startedAt(new Date())
+                    .build();
+        }
+        rescan.setStatus(CatalogRescan.Status.RUNNING);
+        rescan.setError(null);
+        rescan.setFinishedAt(null);
+        CatalogRescan started = rescanRepository.save(rescan);
+        cancelled = false;
+        running = true;
+        runStartedAt = System.currentTimeMillis();
+        scannedAtRunStart = started.getScanned();
+
+        coordinator.execute(() -> run(started));
+        return started;
+    }
+
+    /**
+     * Stop the running rescan after the batches in flight. It can be resumed with {@link #start()}.
+     *
+     * @return {@code false} when no rescan is running
+     */
+    public synchronized boolean cancel() {
+        if (!running) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    /**
+     * @return the last rescan, running or not, or {@code null} when the catalog was never rescanned
+     */
+    public CatalogRescan getLatest() {
+        CatalogRescan latest = rescanRepository.findFirstByOrderByStartedAtDesc();
+        if (latest != null && latest.getStatus() == CatalogRescan.Status.RUNNING && isRunning()) {
+            long elapsed = System.currentTimeMillis() - runStartedAt;
+            long scannedInRun = latest.getScanned() - scannedAtRunStart;
+            if (scannedInRun > 0) {
+                long remaining = Math.max(0, latest.getTotal() - latest.getScanned());
+                latest.setEstimatedFinishAt(new Date(System.currentTimeMillis() + elapsed * remaining / scannedInRun));
+            }
+        }
+        return latest;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // The rescan stays RUNNING in Mongo and is resumed from its checkpoints on the next startup
+        shuttingDown = true;
+        ExecutorService currentScanners = scanners;
+        if (currentScanners != null) {
+            currentScanners.shutdownNow();
+        }
+        coordinator.shutdownNow();
+    }
+
+    private List<CatalogRescan.Range> splitIntoRanges() {
+        List<CatalogRescan.Range> split = new ArrayList<>();
+        String from = null;
+        for (String boundary : bookRepository.findRangeBoundaries(ranges)) {
+            split.add(CatalogRescan.Range.builder().from(from).to(boundary).checkpoint(from).build());
+            from = boundary;
+        }
+        split.add(CatalogRescan.Range.builder().from(from).checkpoint(from).build());
+        return split;
+    }
+
+    private void run(CatalogRescan rescan) {
+        long start = System.currentTimeMillis();
+        scanners = Executors.newWorkStealingPool(concurrency);
+        try {
+            List<Callable<Void>> rangeScans = new ArrayList<>();
+            for (int index = 0; index < rescan.getRanges().size(); index++) {
+                int rangeIndex = index;
+                if (!rescan.getRanges().get(rangeIndex).isCompleted()) {
+                    rangeScans.add(() -> {
+                        scanRange(rescan, rangeIndex);
+                        return null;
+                    });
+                }
+            }
+
+            Exception failure = null;
+            for (Future<Void> rangeScan : scanners.invokeAll(rangeScans)) {
+                try {
+                    rangeScan.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (shuttingDown) {
+                return;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            CatalogRescan scanned = rescanRepository.findOne(rescan.getRescanId());
+            scanned.setStatus(cancelled ? CatalogRescan.Status.CANCELLED : CatalogRescan.Status.COMPLETED);
+            scanned.setFinishedAt(new Date());
+            rescanRepository.save(scanned);
+            log.info("Rescan {} of the catalog {} after {} of {} books in {} ms", rescan.getRescanId(),
+                    cancelled ? "cancelled" : "completed", scanned.getScanned(), scanned.getTotal(), System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            if (shuttingDown) {
+                return;
+            }
+            log.error(String.format("Error while rescanning the catalog in rescan %s", rescan.getRescanId()), e);
+            CatalogRescan failed = rescanRepository.findOne(rescan.getRescanId());
+            failed.setStatus(CatalogRescan.Status.FAILED);
+            failed.setError(e.getMessage());
+            failed.setFinishedAt(new Date());
+            rescanRepository.save(failed);
+        } finally {
+            scanners.shutdownNow();
+            finished();
+        }
+    }
+
+    private synchronized void finished() {
+        running = false;
+    }
+
+    private synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Percolate the books of a range after its checkpoint batch by batch, moving the checkpoint after every batch.
+     */
+    private void scanRange(CatalogRescan rescan, int rangeIndex) throws Exception {
+        CatalogRescan.Range range = rescan.getRanges().get(rangeIndex);
+        try (Stream<Book> books = bookRepository.streamRange(range.getCheckpoint(), range.getTo())) {
+            Iterator<Book> iterator = books.iterator();
+            while (!cancelled && !shuttingDown) {
+                // Books saved after this are percolated by the pipeline, and must not be overwritten by this version
+                long readAt = System.currentTimeMillis();
+                List<Book> batch = new ArrayList<>(batchSize);
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    batch.add(iterator.next());
+                }
+                if (batch.isEmpty()) {
+                    rescanRepository.completeRange(rescan.getRescanId(), rangeIndex);
+                    range.setCompleted(true);
+                    return;
+                }
+
+                bookIngestPipeline.percolate(batch, readAt);
+                String checkpoint = batch.get(batch.size() - 1).getBookId();
+                rescanRepository.updateRange(rescan.getRescanId(), rangeIndex, checkpoint, batch.size());
+                range.setCheckpoint(checkpoint);
+                range.setScanned(range.getScanned() + batch.size());
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Keeps the most recent match events in memory, for local use and tests.
+ */
+@Component
+@ConditionalOnProperty(name = MatchEventSink.SINK_PROPERTY, havingValue = "in-memory")
+public class InMemoryMatchEventSink implements MatchEventSink {
+
+    private final int capacity;
+
+    private final Deque<MatchEvent> events = new ArrayDeque<>();
+
+    public InMemoryMatchEventSink(@Value("${company.tothepoint.blog.pipeline.in-memory-sink.capacity:1000}") int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void publish(MatchEvent event) {
+        if (events.size() == capacity) {
+            events.removeFirst();
+        }
+        events.addLast(event);
+    }
+
+    public synchronized List<MatchEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    public synchronized void clear() {
+        events.clear();
+    }
+}
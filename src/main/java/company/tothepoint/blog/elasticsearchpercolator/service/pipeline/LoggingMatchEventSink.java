@@ -0,0 +1,19 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@ConditionalOnProperty(name = MatchEventSink.SINK_PROPERTY, havingValue = "log", matchIfMissing = true)
+public class LoggingMatchEventSink implements MatchEventSink {
+
+    @Override
+    public void publish(MatchEvent event) {
+        log.info("Book {} matches {} more search preferences: {}, and no longer {}: {}",
+                event.getBookId(), event.getSearchPreferenceIds().size(), event.getSearchPreferenceIds(),
+                event.getUnmatchedSearchPreferenceIds().size(), event.getUnmatchedSearchPreferenceIds());
+    }
+}
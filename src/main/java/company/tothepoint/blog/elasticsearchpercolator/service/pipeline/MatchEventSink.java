@@ -0,0 +1,14 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+
+/**
+ * Destination of the match events produced by the {@link BookIngestPipeline}. Select an implementation with
+ * {@code company.tothepoint.blog.pipeline.sink}.
+ */
+public interface MatchEventSink {
+
+    String SINK_PROPERTY = "company.tothepoint.blog.pipeline.sink";
+
+    void publish(MatchEvent event);
+}
@@ -0,0 +1,166 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchStoreVerification;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookMatchesRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.BookstoreService;
+import company.tothepoint.blog.elasticsearchpercolator.service.MaterializedMatchStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the consistency of the materialized matches by matching a sample of their books live and comparing. A book
+ * of which the matches differ is percolated again through the {@link BookIngestPipeline}, as the version its stored
+ * matches were percolated from, so the repair publishes the change in matches and does not overwrite a newer version.
+ * Differences can also come from a book or preference that changed during the verification, percolating those again
+ * is harmless.
+ * <ul>
+ * <li>{@code matches.materialized.verified}, tagged with the {@code consistent}, {@code inconsistent} or
+ * {@code orphaned} outcome per sampled book</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class MatchStoreVerifier {
+
+    private final BookMatchesRepository bookMatchesRepository;
+
+    private final BookRepository bookRepository;
+
+    private final BookstoreService bookstoreService;
+
+    private final BookIngestPipeline bookIngestPipeline;
+
+    private final MaterializedMatchStore materializedMatchStore;
+
+    private final int sampleSize;
+
+    private final long intervalSeconds;
+
+    private final Counter consistent;
+
+    private final Counter inconsistent;
+
+    private final Counter orphaned;
+
+    private ScheduledExecutorService scheduler;
+
+    public MatchStoreVerifier(BookMatchesRepository bookMatchesRepository,
+                              BookRepository bookRepository,
+                              BookstoreService bookstoreService,
+                              BookIngestPipeline bookIngestPipeline,
+                              MaterializedMatchStore materializedMatchStore,
+                              MeterRegistry meterRegistry,
+                              @Value("${company.tothepoint.blog.percolator.materialized.verification.sample-size:100}") int sampleSize,
+                              @Value("${company.tothepoint.blog.percolator.materialized.verification.interval-seconds:300}") long intervalSeconds) {
+        this.bookMatchesRepository = bookMatchesRepository;
+        this.bookRepository = bookRepository;
+        this.bookstoreService = bookstoreService;
+        this.bookIngestPipeline = bookIngestPipeline;
+        this.materializedMatchStore = materializedMatchStore;
+        this.sampleSize = sampleSize;
+        this.intervalSeconds = intervalSeconds;
+        this.consistent = meterRegistry.counter("matches.materialized.verified", "outcome", "consistent");
+        this.inconsistent = meterRegistry.counter("matches.materialized.verified", "outcome", "inconsistent");
+        this.orphaned = meterRegistry.counter("matches.materialized.verified", "outcome", "orphaned");
+    }
+
+    /**
+     * Verify a sample every interval, when the store is enabled and the interval is positive.
+     */
+    @PostConstruct
+    public void start() {
+        if (!materializedMatchStore.isEnabled() || intervalSeconds <= 0) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "match-store-verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                verify(sampleSize);
+            } catch (Exception e) {
+                log.error("Error while verifying the materialized matches", e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public MatchStoreVerification verify() throws Exception {
+        return verify(sampleSize);
+    }
+
+    /**
+     * Compare the stored matches of up to {@code size} books with a live match, repairing the ones that differ.
+     */
+    public MatchStoreVerification verify(int size) throws Exception {
+        List<BookMatches> sample = bookMatchesRepository.findSample(size);
+        Map<String, Book> booksById = new HashMap<>();
+        bookRepository.findAll(sample.stream().map(BookMatches::getBookId).collect(Collectors.toList()))
+                .forEach(book -> booksById.put(book.getBookId(), book));
+
+        List<Book> books = new ArrayList<>(booksById.values());
+        Map<String, List<String>> liveMatches = books.isEmpty()
+                ? Collections.emptyMap()
+                : bookstoreService.findMatchingPreferenceIds(books);
+
+        int consistentCount = 0;
+        int orphanedCount = 0;
+        List<String> inconsistentBookIds = new ArrayList<>();
+        for (BookMatches stored : sample) {
+            Book book = booksById.get(stored.getBookId());
+            if (book == null) {
+                bookMatchesRepository.deleteMatches(stored.getBookId());
+                orphaned.increment();
+                orphanedCount++;
+            } else if (new HashSet<>(liveMatches.get(book.getBookId())).equals(new HashSet<>(stored.getSearchPreferenceIds()))) {
+                consistent.increment();
+                consistentCount++;
+            } else {
+                bookIngestPipeline.percolate(Collections.singletonList(book), stored.getSavedAt());
+                inconsistent.increment();
+                inconsistentBookIds.add(book.getBookId());
+            }
+        }
+
+        if (!inconsistentBookIds.isEmpty()) {
+            log.warn("Repaired the materialized matches of {} of {} sampled books: {}", inconsistentBookIds.size(),
+                    sample.size(), inconsistentBookIds);
+        }
+        return MatchStoreVerification.builder()
+                .sampled(sample.size())
+                .consistent(consistentCount)
+                .inconsistentBookIds(inconsistentBookIds)
+                .orphaned(orphanedCount)
+                .verifiedAt(new Date())
+                .build();
+    }
+}
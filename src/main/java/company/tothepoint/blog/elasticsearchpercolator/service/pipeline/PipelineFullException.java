@@ -0,0 +1,15 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The ingest queue stayed full for longer than the configured offer timeout, the client has to retry later.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class PipelineFullException extends RuntimeException {
+
+    public PipelineFullException(String message) {
+        super(message);
+    }
+}
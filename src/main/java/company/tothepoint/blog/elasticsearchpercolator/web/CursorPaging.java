@@ -0,0 +1,36 @@
+package company.tothepoint.blog.elasticsearchpercolator.web;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Checks the cursor and the size of keyset paginated requests. A cursor is the id of the last item of the previous
+ * page, which is always an ObjectId, and the size is capped so one page can't load a whole collection.
+ */
+@Component
+public class CursorPaging {
+
+    private final int maxSize;
+
+    public CursorPaging(@Value("${company.tothepoint.blog.paging.max-size:1000}") int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String cursor(String cursor) {
+        if (cursor != null && !ObjectId.isValid(cursor)) {
+            throw new InvalidPageRequestException(String.format("Invalid cursor %s", cursor));
+        }
+        return cursor;
+    }
+
+    /**
+     * @return the requested size, at most the configured maximum
+     */
+    public int size(int size) {
+        if (size < 1) {
+            throw new InvalidPageRequestException(String.format("The page size must be at least 1, got %d", size));
+        }
+        return Math.min(size, maxSize);
+    }
+}
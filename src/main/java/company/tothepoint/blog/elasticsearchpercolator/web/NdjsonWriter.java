@@ -0,0 +1,46 @@
+package company.tothepoint.blog.elasticsearchpercolator.web;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Writes values as newline delimited JSON, one document per line, so responses can be streamed without ever
+ * holding the whole result set in memory.
+ */
+public class NdjsonWriter implements Closeable {
+
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    private final JsonGenerator generator;
+
+    public NdjsonWriter(ObjectMapper objectMapper, OutputStream outputStream) throws IOException {
+        this.generator = objectMapper.getFactory().createGenerator(outputStream);
+        this.generator.setRootValueSeparator(new SerializedString("\n"));
+    }
+
+    public void write(Object value) throws IOException {
+        generator.writeObject(value);
+    }
+
+    /**
+     * Write a chunk of values and flush them to the client.
+     */
+    public void writeAll(Collection<?> values) throws IOException {
+        for (Object value : values) {
+            write(value);
+        }
+        generator.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        generator.writeRaw('\n');
+        generator.close();
+    }
+}
@@ -1,12 +1,24 @@
 package company.tothepoint.blog.elasticsearchpercolator.web.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookImport;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CursorPage;
 import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.BookImporter;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.BookIngestPipeline;
+import company.tothepoint.blog.elasticsearchpercolator.web.CursorPaging;
+import company.tothepoint.blog.elasticsearchpercolator.web.NdjsonWriter;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
 
 import static java.util.Optional.ofNullable;
 
@@ -15,16 +27,58 @@ import static java.util.Optional.ofNullable;
 public class BookController {
 
     private final BookRepository bookRepository;
+    private final BookIngestPipeline bookIngestPipeline;
+    private final BookImporter bookImporter;
+    private final ObjectMapper objectMapper;
+    private final CursorPaging cursorPaging;
 
-    public BookController(BookRepository bookRepository) {
+    public BookController(BookRepository bookRepository,
+                          BookIngestPipeline bookIngestPipeline,
+                          BookImporter bookImporter,
+                          ObjectMapper objectMapper,
+                          CursorPaging cursorPaging) {
         this.bookRepository = bookRepository;
+        this.bookIngestPipeline = bookIngestPipeline;
+        this.bookImporter = bookImporter;
+        this.objectMapper = objectMapper;
+        this.cursorPaging = cursorPaging;
     }
 
+    /**
+     * Loads the whole catalog in memory, use {@link #findPage} or {@link #export} for large catalogs.
+     */
     @GetMapping
     public ResponseEntity<Iterable<Book>> findAll() {
         return ResponseEntity.ok(bookRepository.findAll());
     }
 
+    @GetMapping("/page")
+    public ResponseEntity<CursorPage<Book>> findPage(
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "size", defaultValue = "50") int size) {
+        int pageSize = cursorPaging.size(size);
+        return ResponseEntity.ok(CursorPage.of(bookRepository.findPageAfter(cursorPaging.cursor(cursor), pageSize), pageSize,
+                Book::getBookId));
+    }
+
+    /**
+     * All books as newline delimited JSON, written from a Mongo cursor as they are read.
+     */
+    @GetMapping(value = "/export", produces = NdjsonWriter.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> export() {
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<Book> books = bookRepository.streamAllAfter(null);
+                 NdjsonWriter writer = new NdjsonWriter(objectMapper, outputStream)) {
+                for (Iterator<Book> iterator = books.iterator(); iterator.hasNext(); ) {
+                    writer.write(iterator.next());
+                }
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .body(body);
+    }
+
     @GetMapping(value = "/{id}")
     public ResponseEntity<Book> findById(@PathVariable("id") String id) {
         return ofNullable(bookRepository.findOne(id))
@@ -34,6 +88,44 @@ public class BookController {
 
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<Book> create(@Valid @RequestBody Book book) {
-        return ResponseEntity.ok(bookRepository.save(book));
+        return ResponseEntity.ok(bookIngestPipeline.ingest(book));
+    }
+
+    /**
+     * Replace a book, of which the preferences it now matches and no longer matches are published in the background.
+     */
+    @PutMapping(value = "/{id}", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Book> update(@PathVariable("id") String id, @Valid @RequestBody Book book) {
+        return ofNullable(bookIngestPipeline.update(id, book))
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Import the uploaded books, one per line. Responds once the whole upload is processed, follow the import in
+     * the meantime with {@link #findImports()}.
+     */
+    @PostMapping(value = "/import", consumes = NdjsonWriter.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<BookImport> importBooks(InputStream input) {
+        return ResponseEntity.ok(bookImporter.importBooks(input));
+    }
+
+    @GetMapping("/imports")
+    public ResponseEntity<List<BookImport>> findImports() {
+        return ResponseEntity.ok(bookImporter.findAll());
+    }
+
+    @GetMapping("/imports/{importId}")
+    public ResponseEntity<BookImport> findImport(@PathVariable("importId") String importId) {
+        return ofNullable(bookImporter.find(importId))
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/imports/{importId}")
+    public ResponseEntity<Void> cancelImport(@PathVariable("importId") String importId) {
+        return bookImporter.cancel(importId)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
     }
 }
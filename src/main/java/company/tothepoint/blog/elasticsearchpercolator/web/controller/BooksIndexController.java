@@ -0,0 +1,47 @@
+package company.tothepoint.blog.elasticsearchpercolator.web.controller;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndex;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndexBackfiller;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static java.util.Optional.ofNullable;
+
+@RestController
+@RequestMapping(value = "/api/admin/books-index", produces = MediaType.APPLICATION_JSON_VALUE)
+public class BooksIndexController {
+
+    private final BooksIndex booksIndex;
+
+    private final BooksIndexBackfiller booksIndexBackfiller;
+
+    public BooksIndexController(BooksIndex booksIndex, BooksIndexBackfiller booksIndexBackfiller) {
+        this.booksIndex = booksIndex;
+        this.booksIndexBackfiller = booksIndexBackfiller;
+    }
+
+    /**
+     * Start a backfill of the books index, or resume the last one when it did not complete. Responds with 501 when
+     * the books index is disabled.
+     */
+    @PostMapping("/backfill")
+    public ResponseEntity<BooksIndexBackfill> backfill() {
+        if (!booksIndex.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(booksIndexBackfiller.start());
+    }
+
+    @GetMapping("/backfill")
+    public ResponseEntity<BooksIndexBackfill> findLatestBackfill() {
+        return ofNullable(booksIndexBackfiller.getLatest())
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
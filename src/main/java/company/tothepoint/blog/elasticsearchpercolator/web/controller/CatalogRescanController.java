@@ -0,0 +1,50 @@
+package company.tothepoint.blog.elasticsearchpercolator.web.controller;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.CatalogRescan;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.CatalogRescanner;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static java.util.Optional.ofNullable;
+
+@RestController
+@RequestMapping(value = "/api/admin/catalog-rescan", produces = MediaType.APPLICATION_JSON_VALUE)
+public class CatalogRescanController {
+
+    private final CatalogRescanner catalogRescanner;
+
+    public CatalogRescanController(CatalogRescanner catalogRescanner) {
+        this.catalogRescanner = catalogRescanner;
+    }
+
+    /**
+     * Start a rescan of the catalog, or resume the last one when it did not complete.
+     */
+    @PostMapping
+    public ResponseEntity<CatalogRescan> rescan() {
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(catalogRescanner.start());
+    }
+
+    /**
+     * The progress of the last rescan, with the estimated time it finishes while it runs.
+     */
+    @GetMapping
+    public ResponseEntity<CatalogRescan> findLatestRescan() {
+        return ofNullable(catalogRescanner.getLatest())
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping
+    public ResponseEntity<Void> cancel() {
+        return catalogRescanner.cancel()
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+}
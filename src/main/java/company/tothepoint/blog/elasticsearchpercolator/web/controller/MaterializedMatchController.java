@@ -0,0 +1,40 @@
+package company.tothepoint.blog.elasticsearchpercolator.web.controller;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchStoreVerification;
+import company.tothepoint.blog.elasticsearchpercolator.service.MaterializedMatchStore;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.MatchStoreVerifier;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping(value = "/api/admin/materialized-matches", produces = MediaType.APPLICATION_JSON_VALUE)
+public class MaterializedMatchController {
+
+    private final MaterializedMatchStore materializedMatchStore;
+
+    private final MatchStoreVerifier matchStoreVerifier;
+
+    public MaterializedMatchController(MaterializedMatchStore materializedMatchStore,
+                                       MatchStoreVerifier matchStoreVerifier) {
+        this.materializedMatchStore = materializedMatchStore;
+        this.matchStoreVerifier = matchStoreVerifier;
+    }
+
+    /**
+     * Verify a sample of the materialized matches against a live match, repairing the ones that differ. Responds with
+     * 501 when the store is disabled.
+     */
+    @PostMapping("/verification")
+    public ResponseEntity<MatchStoreVerification> verify(
+            @RequestParam(value = "sample-size", required = false) Integer sampleSize) throws Exception {
+        if (!materializedMatchStore.isEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        return ResponseEntity.ok(sampleSize == null ? matchStoreVerifier.verify() : matchStoreVerifier.verify(sampleSize));
+    }
+}
@@ -0,0 +1,39 @@
+package company.tothepoint.blog.elasticsearchpercolator.web.controller;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorIndexRebuilder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static java.util.Optional.ofNullable;
+
+@RestController
+@RequestMapping(value = "/api/admin/percolator-index", produces = MediaType.APPLICATION_JSON_VALUE)
+public class PercolatorIndexController {
+
+    private final PercolatorIndexRebuilder percolatorIndexRebuilder;
+
+    public PercolatorIndexController(PercolatorIndexRebuilder percolatorIndexRebuilder) {
+        this.percolatorIndexRebuilder = percolatorIndexRebuilder;
+    }
+
+    /**
+     * Start a rebuild of the percolator index, or resume the last one when it did not complete.
+     */
+    @PostMapping("/rebuild")
+    public ResponseEntity<PercolatorIndexRebuild> rebuild() {
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(percolatorIndexRebuilder.start());
+    }
+
+    @GetMapping("/rebuild")
+    public ResponseEntity<PercolatorIndexRebuild> findLatestRebuild() {
+        return ofNullable(percolatorIndexRebuilder.getLatest())
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
@@ -1,14 +1,33 @@
 package company.tothepoint.blog.elasticsearchpercolator.web.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BulkRegistrationResult;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CursorPage;
 import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
 import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
 import company.tothepoint.blog.elasticsearchpercolator.service.BookstoreService;
+import company.tothepoint.blog.elasticsearchpercolator.service.MatchReadMode;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolationMetrics;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceRegistration;
+import company.tothepoint.blog.elasticsearchpercolator.service.StageTimings;
+import company.tothepoint.blog.elasticsearchpercolator.web.CursorPaging;
+import company.tothepoint.blog.elasticsearchpercolator.web.NdjsonWriter;
+import org.elasticsearch.action.support.WriteRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.validation.Valid;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Stream;
 
 import static java.util.Optional.ofNullable;
 
@@ -18,18 +37,68 @@ public class SearchPreferencesController {
 
     private final SearchPreferenceRepository searchPreferenceRepository;
     private final BookstoreService bookstoreService;
+    private final PreferenceRegistration preferenceRegistration;
+    private final PercolationMetrics percolationMetrics;
+    private final ObjectMapper objectMapper;
+    private final CursorPaging cursorPaging;
+    private final WriteRequest.RefreshPolicy bulkRefreshPolicy;
+    private final MatchReadMode matchReadMode;
 
     public SearchPreferencesController(SearchPreferenceRepository searchPreferenceRepository,
-                                       BookstoreService bookstoreService) {
+                                       BookstoreService bookstoreService,
+                                       PreferenceRegistration preferenceRegistration,
+                                       PercolationMetrics percolationMetrics,
+                                       ObjectMapper objectMapper,
+                                       CursorPaging cursorPaging,
+                                       @Value("${company.tothepoint.blog.percolator.bulk.refresh-policy:WAIT_UNTIL}")
+                                               WriteRequest.RefreshPolicy bulkRefreshPolicy,
+                                       @Value("${company.tothepoint.blog.percolator.materialized.read-mode:LIVE}")
+                                               MatchReadMode matchReadMode) {
         this.searchPreferenceRepository = searchPreferenceRepository;
         this.bookstoreService = bookstoreService;
+        this.preferenceRegistration = preferenceRegistration;
+        this.percolationMetrics = percolationMetrics;
+        this.objectMapper = objectMapper;
+        this.cursorPaging = cursorPaging;
+        this.bulkRefreshPolicy = bulkRefreshPolicy;
+        this.matchReadMode = matchReadMode;
     }
 
+    /**
+     * Loads all preferences in memory, use {@link #findPage} or {@link #export} when there are many.
+     */
     @GetMapping
     public ResponseEntity<Iterable<SearchPreference>> findAll() {
         return ResponseEntity.ok(searchPreferenceRepository.findAll());
     }
 
+    @GetMapping("/page")
+    public ResponseEntity<CursorPage<SearchPreference>> findPage(
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "size", defaultValue = "50") int size) {
+        int pageSize = cursorPaging.size(size);
+        return ResponseEntity.ok(CursorPage.of(searchPreferenceRepository.findPageAfter(cursorPaging.cursor(cursor), pageSize),
+                pageSize, SearchPreference::getSearchPreferenceId));
+    }
+
+    /**
+     * All preferences as newline delimited JSON, written from a Mongo cursor as they are read.
+     */
+    @GetMapping(value = "/export", produces = NdjsonWriter.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> export() {
+        StreamingResponseBody body = outputStream -> {
+            try (Stream<SearchPreference> preferences = searchPreferenceRepository.streamAllAfter(null);
+                 NdjsonWriter writer = new NdjsonWriter(objectMapper, outputStream)) {
+                for (Iterator<SearchPreference> iterator = preferences.iterator(); iterator.hasNext(); ) {
+                    writer.write(iterator.next());
+                }
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .body(body);
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<SearchPreference> findById(@PathVariable("id") String id) {
         return ofNullable(searchPreferenceRepository.findOne(id))
@@ -37,14 +106,129 @@ public class SearchPreferencesController {
                 .orElse(ResponseEntity.notFound().build());
     }
 
+    /**
+     * The books already in the catalog that match the preference, streamed as newline delimited JSON. Takes the
+     * books index, responds with 501 when it is disabled.
+     */
+    @GetMapping(value = "/{id}/matching-books", produces = NdjsonWriter.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamBooksThatMatchWithPreference(@PathVariable("id") String id) {
+        if (!bookstoreService.isReverseMatchingEnabled()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        SearchPreference preference = searchPreferenceRepository.findOne(id);
+        if (preference == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        StreamingResponseBody body = outputStream -> {
+            try (NdjsonWriter writer = new NdjsonWriter(objectMapper, outputStream)) {
+                bookstoreService.streamMatchingBooks(preference, writer::writeAll);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .body(body);
+    }
+
     @PostMapping(consumes = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<SearchPreference> create(@Valid @RequestBody SearchPreference preference) throws Exception {
-        return ResponseEntity.ok(bookstoreService.createSearchPreference(preference));
+        return ResponseEntity.ok(preferenceRegistration.createSearchPreference(preference));
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> delete(@PathVariable("id") String id) {
+        return preferenceRegistration.deleteSearchPreference(id)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+    }
+
+    @PostMapping(value = "/async", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<SearchPreference>> createAsync(@Valid @RequestBody SearchPreference preference) {
+        return preferenceRegistration.createSearchPreferenceAsync(preference)
+                .thenApply(ResponseEntity::ok);
+    }
+
+    @PostMapping(value = "/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BulkRegistrationResult> createInBulk(
+            @RequestBody List<SearchPreference> preferences,
+            @RequestParam(value = "refresh", required = false) WriteRequest.RefreshPolicy refreshPolicy) throws Exception {
+        return ResponseEntity.ok(preferenceRegistration.createSearchPreferences(preferences,
+                refreshPolicy == null ? bulkRefreshPolicy : refreshPolicy));
     }
 
+    /**
+     * The {@code Server-Timing} header of the response breaks the time spent down per stage of the match. The mode
+     * request parameter overrides the configured read mode of the match endpoints.
+     */
     @GetMapping("find-matching-preferences/{bookId}")
     public ResponseEntity<Collection<SearchPreference>> findPreferencesThatMatchWithBook(
-            @PathVariable("bookId") String bookId) throws Exception {
-        return ResponseEntity.ok(bookstoreService.findMatchingPreferences(bookId));
+            @PathVariable("bookId") String bookId,
+            @RequestParam(value = "mode", required = false) MatchReadMode mode) throws Exception {
+        try (StageTimings timings = percolationMetrics.openTimings()) {
+            Collection<SearchPreference> preferences = bookstoreService.findMatchingPreferences(bookId, readMode(mode));
+            return ResponseEntity.ok()
+                    .header(StageTimings.SERVER_TIMING_HEADER, timings.toServerTiming())
+                    .body(preferences);
+        }
+    }
+
+    /**
+     * The {@code Server-Timing} header of the response only holds the total time, the stages of an async match run on
+     * other threads than the request.
+     */
+    @GetMapping("async/find-matching-preferences/{bookId}")
+    public CompletableFuture<ResponseEntity<Collection<SearchPreference>>> findPreferencesThatMatchWithBookAsync(
+            @PathVariable("bookId") String bookId) {
+        StageTimings timings = percolationMetrics.totalTimings();
+        return bookstoreService.findMatchingPreferencesAsync(bookId)
+                .thenApply(preferences -> ResponseEntity.ok()
+                        .header(StageTimings.SERVER_TIMING_HEADER, timings.toServerTiming())
+                        .body(preferences));
+    }
+
+    @GetMapping("find-matching-preferences/{bookId}/page")
+    public ResponseEntity<CursorPage<SearchPreference>> findPageOfPreferencesThatMatchWithBook(
+            @PathVariable("bookId") String bookId,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "size", defaultValue = "50") int size,
+            @RequestParam(value = "mode", required = false) MatchReadMode mode) throws Exception {
+        try (StageTimings timings = percolationMetrics.openTimings()) {
+            CursorPage<SearchPreference> page = bookstoreService.findMatchingPreferences(bookId, cursorPaging.cursor(cursor),
+                    cursorPaging.size(size), readMode(mode));
+            return ResponseEntity.ok()
+                    .header(StageTimings.SERVER_TIMING_HEADER, timings.toServerTiming())
+                    .body(page);
+        }
+    }
+
+    @GetMapping(value = "find-matching-preferences/{bookId}/stream", produces = NdjsonWriter.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamPreferencesThatMatchWithBook(@PathVariable("bookId") String bookId) {
+        StreamingResponseBody body = outputStream -> {
+            try (NdjsonWriter writer = new NdjsonWriter(objectMapper, outputStream)) {
+                bookstoreService.streamMatchingPreferences(bookId, writer::writeAll);
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .body(body);
+    }
+
+    @PostMapping(value = "find-matching-preferences", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Collection<SearchPreference>>> findPreferencesThatMatchWithBooks(
+            @RequestBody List<String> bookIds,
+            @RequestParam(value = "mode", required = false) MatchReadMode mode) throws Exception {
+        return ResponseEntity.ok(bookstoreService.findMatchingPreferences(bookIds, readMode(mode)));
+    }
+
+    private MatchReadMode readMode(MatchReadMode mode) {
+        return mode == null ? matchReadMode : mode;
+    }
+
+    /**
+     * The percolation executor is full, ask the client to back off instead of queueing without bounds.
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> handleRejectedExecution() {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
     }
 }
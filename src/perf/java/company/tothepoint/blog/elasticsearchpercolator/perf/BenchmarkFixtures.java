@@ -0,0 +1,94 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.HydrationMode;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorQueries;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorRouting;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceHydrator;
+import company.tothepoint.blog.elasticsearchpercolator.service.SharedQueryRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Standalone instances of the services under benchmark and random, but reproducible, test data.
+ */
+final class BenchmarkFixtures {
+
+    private static final int AUTHORS = 1_000;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Without shared queries and routing, so no Mongo or Spring context is needed.
+     */
+    static PercolatorQueries percolatorQueries() {
+        return percolatorQueries(false);
+    }
+
+    static PercolatorQueries percolatorQueries(boolean prefilter) {
+        return percolatorQueries(prefilter, new PercolatorRouting(false));
+    }
+
+    static PercolatorQueries percolatorQueries(boolean prefilter, PercolatorRouting percolatorRouting) {
+        SharedQueryRegistry sharedQueryRegistry = new SharedQueryRegistry(null, null, false);
+        PreferenceHydrator preferenceHydrator = new PreferenceHydrator(null, sharedQueryRegistry, new ObjectMapper(), HydrationMode.SOURCE);
+        return new PercolatorQueries(preferenceHydrator, sharedQueryRegistry, percolatorRouting, prefilter);
+    }
+
+    static SearchPreference preference(String id, SearchPreference.Criteria criteria) {
+        return SearchPreference.builder()
+                .searchPreferenceId(id)
+                .title("Benchmark preference " + id)
+                .email("benchmark@tothepoint.company")
+                .criteria(criteria)
+                .build();
+    }
+
+    /**
+     * Criteria with a random subset of author, language, types and price bounds.
+     */
+    static SearchPreference.Criteria randomCriteria(Random random) {
+        SearchPreference.Criteria.CriteriaBuilder criteria = SearchPreference.Criteria.builder();
+        if (random.nextBoolean()) {
+            criteria.author(author(random));
+        }
+        if (random.nextInt(5) > 0) {
+            criteria.language(BookLanguage.values()[random.nextInt(BookLanguage.values().length)]);
+        }
+        if (random.nextBoolean()) {
+            criteria.types(new BookType[]{BookType.values()[random.nextInt(BookType.values().length)]});
+        }
+        if (random.nextBoolean()) {
+            double minimumPrice = random.nextInt(40);
+            criteria.minimumPrice(minimumPrice).maximumPrice(minimumPrice + 5 + random.nextInt(40));
+        }
+        return criteria.build();
+    }
+
+    static List<Book> randomBooks(int count, Random random) {
+        List<Book> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            books.add(Book.builder()
+                    .bookId(Integer.toString(i))
+                    .title("Benchmark book " + i)
+                    .isbn(Integer.toString(100_000_000 + i))
+                    .author(author(random))
+                    .language(BookLanguage.values()[random.nextInt(BookLanguage.values().length)])
+                    .type(BookType.values()[random.nextInt(BookType.values().length)])
+                    .price(random.nextInt(8000) / 100.0)
+                    .build());
+        }
+        return books;
+    }
+
+    private static String author(Random random) {
+        return "Author " + random.nextInt(AUTHORS);
+    }
+}
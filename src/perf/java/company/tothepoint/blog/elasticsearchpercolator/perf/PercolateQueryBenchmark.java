@@ -0,0 +1,63 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorQueries;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * XContent serialization of the percolated documents, and of the percolate query sent for a chunk of books.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PercolateQueryBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int books;
+
+    private PercolatorQueries percolatorQueries;
+
+    private List<Book> chunk;
+
+    @Setup
+    public void setUp() {
+        percolatorQueries = BenchmarkFixtures.percolatorQueries();
+        chunk = BenchmarkFixtures.randomBooks(books, new Random(42));
+    }
+
+    @Benchmark
+    public BytesReference createPercolateDocument() throws IOException {
+        return percolatorQueries.createPercolateDocument(chunk.get(0));
+    }
+
+    /**
+     * The percolate query of the chunk, as it is serialized into the search request.
+     */
+    @Benchmark
+    public BytesReference serializePercolateQuery() throws IOException {
+        return BytesReference.bytes(percolatorQueries.createPercolateQuery(chunk)
+                .toXContent(jsonBuilder(), ToXContent.EMPTY_PARAMS));
+    }
+}
@@ -0,0 +1,131 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf;
+
+import company.tothepoint.blog.elasticsearchpercolator.AbstractIntegrationTestCase;
+import company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorQueries;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+
+/**
+ * End-to-end percolation on an embedded Elasticsearch node, for growing numbers of registered preferences.
+ * Registering a million preferences takes a few minutes, run the smaller sizes only with {@code -p preferences=...}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PercolationBenchmark {
+
+    private static final String INDEX = "percolator_benchmark";
+    private static final int CHUNK_SIZE = 100;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    private int preferences;
+
+    /**
+     * Whether the percolate query is wrapped in the filters on the metadata of the registered queries.
+     */
+    @Param({"false", "true"})
+    private boolean prefilter;
+
+    private Node node;
+
+    private Client client;
+
+    private PercolatorQueries percolatorQueries;
+
+    private List<Book> books;
+
+    private int nextBook;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Settings settings = Settings.builder()
+                .put("cluster.name", "percolator-jmh")
+                .put("path.home", "target/es-jmh")
+                .build();
+        node = new AbstractIntegrationTestCase.LocalNode(settings).start();
+        client = node.client();
+        percolatorQueries = BenchmarkFixtures.percolatorQueries(prefilter);
+
+        if (client.admin().indices().prepareExists(INDEX).get().isExists()) {
+            client.admin().indices().prepareDelete(INDEX).get();
+        }
+        client.admin().indices().prepareCreate(INDEX)
+                .setSettings(ElasticsearchConfig.percolatorIndexSettings(1, 0, "-1"))
+                .addMapping(PERCOLATOR_INDEX_MAPPING_TYPE, ElasticsearchConfig.percolatorIndexMapping())
+                .get();
+
+        Random random = new Random(42);
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int i = 0; i < preferences; i++) {
+            bulk.add(percolatorQueries.createIndexRequest(
+                    BenchmarkFixtures.preference(Integer.toString(i), BenchmarkFixtures.randomCriteria(random)), INDEX));
+            if (bulk.numberOfActions() == 5_000 || i == preferences - 1) {
+                if (bulk.get().hasFailures()) {
+                    throw new IllegalStateException("Registering the benchmark preferences failed");
+                }
+                bulk = client.prepareBulk();
+            }
+        }
+        client.admin().indices().prepareRefresh(INDEX).get();
+
+        books = BenchmarkFixtures.randomBooks(1_000, random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        node.close();
+    }
+
+    @Benchmark
+    public long percolateBook() throws Exception {
+        Book book = books.get(nextBook++ % books.size());
+        return client.prepareSearch(INDEX)
+                .setQuery(percolatorQueries.createPercolateQuery(book))
+                .setFetchSource(false)
+                .setSize(100)
+                .get()
+                .getHits()
+                .getTotalHits();
+    }
+
+    /**
+     * One multi-document percolate query for a chunk of books, as used for batches.
+     */
+    @Benchmark
+    public long percolateChunk() throws Exception {
+        int from = (nextBook++ * CHUNK_SIZE) % books.size();
+        return client.prepareSearch(INDEX)
+                .setQuery(percolatorQueries.createPercolateQuery(books.subList(from, from + CHUNK_SIZE)))
+                .setFetchSource(false)
+                .setSize(100)
+                .get()
+                .getHits()
+                .getTotalHits();
+    }
+}
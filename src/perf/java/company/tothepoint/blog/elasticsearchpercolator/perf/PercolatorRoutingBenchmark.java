@@ -0,0 +1,126 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf;
+
+import company.tothepoint.blog.elasticsearchpercolator.AbstractIntegrationTestCase;
+import company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorQueries;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorRouting;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+
+/**
+ * Percolation on a percolator index that fans out to every shard, compared with an index routed by language. Queries
+ * without a language criterion (1 in 5) go to the shared routing, which every routed search hits as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PercolatorRoutingBenchmark {
+
+    private static final String INDEX = "percolator_routing_benchmark";
+
+    @Param({"10000"})
+    private int preferences;
+
+    @Param({"5"})
+    private int shards;
+
+    @Param({"false", "true"})
+    private boolean routed;
+
+    private Node node;
+
+    private Client client;
+
+    private PercolatorRouting percolatorRouting;
+
+    private PercolatorQueries percolatorQueries;
+
+    private List<Book> books;
+
+    private int nextBook;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Settings settings = Settings.builder()
+                .put("cluster.name", "percolator-routing-jmh")
+                .put("path.home", "target/es-jmh")
+                .build();
+        node = new AbstractIntegrationTestCase.LocalNode(settings).start();
+        client = node.client();
+        percolatorRouting = new PercolatorRouting(routed);
+        percolatorQueries = BenchmarkFixtures.percolatorQueries(false, percolatorRouting);
+
+        if (client.admin().indices().prepareExists(INDEX).get().isExists()) {
+            client.admin().indices().prepareDelete(INDEX).get();
+        }
+        client.admin().indices().prepareCreate(INDEX)
+                .setSettings(ElasticsearchConfig.percolatorIndexSettings(shards, 0, "-1"))
+                .addMapping(PERCOLATOR_INDEX_MAPPING_TYPE, ElasticsearchConfig.percolatorIndexMapping(routed))
+                .get();
+        client.admin().cluster().prepareHealth(INDEX).setWaitForGreenStatus().get();
+
+        // Same queries and books whether routed or not
+        Random random = new Random(42);
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int i = 0; i < preferences; i++) {
+            bulk.add(percolatorQueries.createIndexRequest(
+                    BenchmarkFixtures.preference(Integer.toString(i), BenchmarkFixtures.randomCriteria(random)), INDEX));
+            if (bulk.numberOfActions() == 5_000 || i == preferences - 1) {
+                if (bulk.get().hasFailures()) {
+                    throw new IllegalStateException("Registering the benchmark preferences failed");
+                }
+                bulk = client.prepareBulk();
+            }
+        }
+        client.admin().indices().prepareRefresh(INDEX).get();
+
+        books = BenchmarkFixtures.randomBooks(1_000, random);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        node.close();
+    }
+
+    @Benchmark
+    public long percolateBook() throws Exception {
+        Book book = books.get(nextBook++ % books.size());
+        SearchRequestBuilder search = client.prepareSearch(INDEX)
+                .setQuery(percolatorQueries.createPercolateQuery(book))
+                .setFetchSource(false)
+                .setSize(0);
+        if (percolatorRouting.isEnabled()) {
+            search.setRouting(percolatorRouting.routings(Collections.singletonList(book)));
+        }
+        return search.get()
+                .getHits()
+                .getTotalHits();
+    }
+}
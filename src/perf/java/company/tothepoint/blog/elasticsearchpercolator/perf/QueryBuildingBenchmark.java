@@ -0,0 +1,97 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorQueries;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Building the percolator query of a preference, for the criteria shapes users register.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBuildingBenchmark {
+
+    public enum Shape {
+        AUTHOR,
+        LANGUAGE_AND_TYPES,
+        PRICE_RANGE,
+        ALL_CRITERIA
+    }
+
+    @Param
+    private Shape shape;
+
+    private PercolatorQueries percolatorQueries;
+
+    private SearchPreference preference;
+
+    @Setup
+    public void setUp() {
+        percolatorQueries = BenchmarkFixtures.percolatorQueries();
+
+        SearchPreference.Criteria.CriteriaBuilder criteria = SearchPreference.Criteria.builder();
+        switch (shape) {
+            case AUTHOR:
+                criteria.author("Stieg Larson");
+                break;
+            case LANGUAGE_AND_TYPES:
+                criteria.language(BookLanguage.ENGLISH).types(new BookType[]{BookType.FICTION, BookType.NONFICTION});
+                break;
+            case PRICE_RANGE:
+                criteria.minimumPrice(10.00).maximumPrice(20.00);
+                break;
+            case ALL_CRITERIA:
+                criteria.author("Stieg Larson")
+                        .language(BookLanguage.ENGLISH)
+                        .types(new BookType[]{BookType.FICTION})
+                        .minimumPrice(10.00)
+                        .maximumPrice(20.00);
+                break;
+        }
+        preference = BenchmarkFixtures.preference("benchmark", criteria.build());
+    }
+
+    @Benchmark
+    public BoolQueryBuilder createBoolQuery() {
+        return percolatorQueries.createBoolQuery(preference.getCriteria());
+    }
+
+    @Benchmark
+    public BytesReference serializeBoolQuery() throws IOException {
+        return BytesReference.bytes(percolatorQueries.createBoolQuery(preference.getCriteria())
+                .toXContent(jsonBuilder(), ToXContent.EMPTY_PARAMS));
+    }
+
+    /**
+     * The whole percolator document: the query and the denormalized copy of the preference.
+     */
+    @Benchmark
+    public IndexRequest createIndexRequest() throws IOException {
+        return percolatorQueries.createIndexRequest(preference, "benchmark");
+    }
+}
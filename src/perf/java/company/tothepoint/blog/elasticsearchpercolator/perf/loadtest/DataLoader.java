@@ -0,0 +1,82 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BulkRegistrationResult;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceRegistration;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Client;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+
+/**
+ * Bulk loads the synthetic catalog into Mongo and registers the synthetic preferences the way the bulk endpoint
+ * does, in Mongo and in the percolator index, without refreshing until everything is loaded.
+ */
+@Slf4j
+class DataLoader {
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private final SyntheticDataGenerator generator;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final PreferenceRegistration preferenceRegistration;
+
+    private final Client elasticsearchClient;
+
+    DataLoader(SyntheticDataGenerator generator, MongoTemplate mongoTemplate, PreferenceRegistration preferenceRegistration,
+               Client elasticsearchClient) {
+        this.generator = generator;
+        this.mongoTemplate = mongoTemplate;
+        this.preferenceRegistration = preferenceRegistration;
+        this.elasticsearchClient = elasticsearchClient;
+    }
+
+    /**
+     * @return the ids of the loaded books
+     */
+    List<String> loadBooks(int count) {
+        long start = System.currentTimeMillis();
+        List<String> bookIds = new ArrayList<>(count);
+        while (bookIds.size() < count) {
+            List<Book> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE && bookIds.size() + batch.size() < count; i++) {
+                batch.add(generator.book());
+            }
+            mongoTemplate.insert(batch, Book.class);
+            batch.forEach(book -> bookIds.add(book.getBookId()));
+        }
+        log.info("Loaded {} books in {} ms", count, System.currentTimeMillis() - start);
+        return bookIds;
+    }
+
+    void loadSearchPreferences(int count) throws IOException {
+        long start = System.currentTimeMillis();
+        int registered = 0;
+        for (int loaded = 0; loaded < count; ) {
+            List<SearchPreference> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < BATCH_SIZE && loaded < count; i++, loaded++) {
+                batch.add(generator.searchPreference());
+            }
+            BulkRegistrationResult result = preferenceRegistration.createSearchPreferences(batch, WriteRequest.RefreshPolicy.NONE);
+            registered += result.getRegistered();
+            if (!result.getFailures().isEmpty()) {
+                log.warn("{} search preferences could not be registered, first failure: {}",
+                        result.getFailures().size(), result.getFailures().get(0).getReason());
+            }
+            if (loaded % 100_000 == 0) {
+                log.info("Registered {} of {} search preferences", registered, count);
+            }
+        }
+        elasticsearchClient.admin().indices().prepareRefresh(PERCOLATOR_INDEX).get();
+        log.info("Registered {} search preferences in {} ms", registered, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,238 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.http.HttpEntity;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a weighted mix of {@link Operation}s to the service and records their latencies in HdrHistograms.
+ * <p>
+ * Latency is measured from the moment a request was supposed to be sent. In {@link LoadTestOptions.Mode#OPEN open}
+ * mode that is its slot in the fixed rate schedule, so requests that queue up behind a slow response are charged
+ * for their wait and the results are free of coordinated omission. A {@link LoadTestOptions.Mode#CLOSED closed}
+ * loop only sends when the previous response arrived, so its histograms are corrected afterwards with the interval
+ * at which each worker was expected to send.
+ * <p>
+ * Only requests that were scheduled after the warmup, and before the end of the run, are recorded.
+ */
+@Slf4j
+class LoadDriver {
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 60;
+
+    private final LoadTestOptions options;
+
+    private final SyntheticDataGenerator generator;
+
+    private final RestTemplate restTemplate;
+
+    private final String baseUrl;
+
+    private final List<String> bookIds;
+
+    private final Operation[] operations;
+
+    private final int[] cumulativeWeights;
+
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+
+    private final Map<Operation, LongAdder> errors = new EnumMap<>(Operation.class);
+
+    private long measurementStart;
+
+    private long measurementEnd;
+
+    LoadDriver(LoadTestOptions options, SyntheticDataGenerator generator, RestTemplate restTemplate, String baseUrl,
+               List<String> bookIds) {
+        this.options = options;
+        this.generator = generator;
+        this.restTemplate = restTemplate;
+        this.baseUrl = baseUrl;
+        this.bookIds = bookIds;
+
+        operations = options.getMix().keySet().toArray(new Operation[0]);
+        cumulativeWeights = new int[operations.length];
+        int sum = 0;
+        for (int i = 0; i < operations.length; i++) {
+            sum += options.getMix().get(operations[i]);
+            cumulativeWeights[i] = sum;
+            recorders.put(operations[i], new Recorder(3));
+            errors.put(operations[i], new LongAdder());
+        }
+    }
+
+    /**
+     * @return the latencies, in nanoseconds, of the requests sent in the measurement window per operation
+     */
+    Map<Operation, Histogram> run() throws InterruptedException {
+        long start = System.nanoTime();
+        measurementStart = start + TimeUnit.SECONDS.toNanos(options.getWarmupSeconds());
+        measurementEnd = measurementStart + TimeUnit.SECONDS.toNanos(options.getDurationSeconds());
+        log.info("Running a {} loop load test, {} s warmup and {} s measurement", options.getMode(),
+                options.getWarmupSeconds(), options.getDurationSeconds());
+
+        if (options.getMode() == LoadTestOptions.Mode.OPEN) {
+            runOpenLoop();
+        } else {
+            runClosedLoop();
+        }
+
+        Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+        recorders.forEach((operation, recorder) -> histograms.put(operation, recorder.getIntervalHistogram()));
+        return histograms;
+    }
+
+    private void runClosedLoop() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(options.getConcurrency());
+        for (int i = 0; i < options.getConcurrency(); i++) {
+            workers.execute(() -> {
+                long now;
+                while ((now = System.nanoTime()) < measurementEnd) {
+                    send(nextOperation(), now);
+                }
+            });
+        }
+        workers.shutdown();
+        awaitDrained(workers);
+    }
+
+    private void runOpenLoop() throws InterruptedException {
+        ExecutorService senders = Executors.newFixedThreadPool(options.getConcurrency());
+        long interval = TimeUnit.SECONDS.toNanos(1) / options.getRate();
+        for (long intendedStart = System.nanoTime(); intendedStart < measurementEnd; intendedStart += interval) {
+            long delay;
+            while ((delay = intendedStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            long scheduled = intendedStart;
+            senders.execute(() -> send(nextOperation(), scheduled));
+        }
+        senders.shutdown();
+        awaitDrained(senders);
+    }
+
+    private void awaitDrained(ExecutorService executor) throws InterruptedException {
+        if (!executor.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            int dropped = executor.shutdownNow().size();
+            log.warn("The service did not keep up, {} scheduled requests were never sent", dropped);
+        }
+    }
+
+    private void send(Operation operation, long intendedStart) {
+        boolean succeeded = true;
+        try {
+            execute(operation);
+        } catch (RestClientException e) {
+            succeeded = false;
+        }
+        long latency = System.nanoTime() - intendedStart;
+
+        if (intendedStart >= measurementStart && intendedStart < measurementEnd) {
+            recorders.get(operation).recordValue(latency);
+            if (!succeeded) {
+                errors.get(operation).increment();
+            }
+        }
+    }
+
+    private void execute(Operation operation) {
+        String url = baseUrl + operation.getPath();
+        switch (operation) {
+            case MATCH_BOOK:
+            case GET_BOOK:
+                String bookId = bookIds.get(ThreadLocalRandom.current().nextInt(bookIds.size()));
+                restTemplate.exchange(url, operation.getMethod(), null, String.class, bookId);
+                break;
+            case CREATE_BOOK:
+                restTemplate.exchange(url, operation.getMethod(), new HttpEntity<>(generator.book()), String.class);
+                break;
+            case CREATE_PREFERENCE:
+                restTemplate.exchange(url, operation.getMethod(), new HttpEntity<>(generator.searchPreference()), String.class);
+                break;
+        }
+    }
+
+    private Operation nextOperation() {
+        int value = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    /**
+     * Print throughput and latency percentiles per operation, and write the full percentile distribution of every
+     * operation to an {@code .hgrm} file in the report directory, which the HdrHistogram plotter can chart.
+     */
+    void report(Map<Operation, Histogram> histograms, PrintStream out) throws IOException {
+        Histogram total = new Histogram(3);
+        histograms.values().forEach(total::add);
+
+        long expectedInterval = options.getExpectedIntervalMicros() > 0
+                ? TimeUnit.MICROSECONDS.toNanos(options.getExpectedIntervalMicros())
+                : (long) total.getMean();
+        boolean corrected = options.getMode() == LoadTestOptions.Mode.CLOSED && expectedInterval > 0;
+        if (corrected) {
+            out.printf("Closed loop latencies corrected for coordinated omission with an expected interval of %.3f ms%n",
+                    expectedInterval / 1_000_000.0);
+        }
+
+        File reportDirectory = new File(options.getReportDirectory());
+        if (!reportDirectory.isDirectory() && !reportDirectory.mkdirs()) {
+            throw new IOException("Could not create the report directory " + reportDirectory);
+        }
+
+        out.printf("%-18s %10s %8s %10s %10s %10s %10s %10s%n",
+                "operation", "requests", "errors", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        long totalErrors = 0;
+        for (Map.Entry<Operation, Histogram> entry : histograms.entrySet()) {
+            long operationErrors = errors.get(entry.getKey()).sum();
+            totalErrors += operationErrors;
+            Histogram histogram = corrected
+                    ? entry.getValue().copyCorrectedForCoordinatedOmission(expectedInterval)
+                    : entry.getValue();
+            print(out, entry.getKey().name(), entry.getValue().getTotalCount(), operationErrors, histogram);
+            writeDistribution(new File(reportDirectory, entry.getKey().name().toLowerCase() + ".hgrm"), histogram);
+        }
+        Histogram totalHistogram = corrected ? total.copyCorrectedForCoordinatedOmission(expectedInterval) : total;
+        print(out, "TOTAL", total.getTotalCount(), totalErrors, totalHistogram);
+        writeDistribution(new File(reportDirectory, "total.hgrm"), totalHistogram);
+    }
+
+    private void print(PrintStream out, String name, long requests, long operationErrors, Histogram histogram) {
+        out.printf("%-18s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n",
+                name,
+                requests,
+                operationErrors,
+                requests / (double) options.getDurationSeconds(),
+                histogram.getValueAtPercentile(50) / 1_000_000.0,
+                histogram.getValueAtPercentile(99) / 1_000_000.0,
+                histogram.getValueAtPercentile(99.9) / 1_000_000.0,
+                histogram.getMaxValue() / 1_000_000.0);
+    }
+
+    private void writeDistribution(File file, Histogram histogram) throws IOException {
+        try (PrintStream out = new PrintStream(file, "UTF-8")) {
+            histogram.outputPercentileDistribution(out, 1_000_000.0);
+        }
+    }
+}
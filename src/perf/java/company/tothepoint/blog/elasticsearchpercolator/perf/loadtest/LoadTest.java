@@ -0,0 +1,58 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import company.tothepoint.blog.elasticsearchpercolator.AbstractIntegrationTestCase;
+import company.tothepoint.blog.elasticsearchpercolator.ElasticsearchPercolatorApplication;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceRegistration;
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts the service against an embedded Elasticsearch node and the embedded Mongo of the tests, loads it with a
+ * synthetic catalog and synthetic search preferences and drives load to its endpoints. See {@link LoadTestOptions}
+ * for the {@code --loadtest.*} arguments, all other arguments are passed to the application.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.builder()
+                .put("cluster.name", "bookstore-test-cluster")
+                .put("path.home", "target/es-loadtest")
+                .build();
+        Node node = new AbstractIntegrationTestCase.LocalNode(settings).start();
+
+        SpringApplication application = new SpringApplication(ElasticsearchPercolatorApplication.class);
+        // Mutable, Spring Boot adds its own defaults to it
+        Map<String, Object> defaultProperties = new HashMap<>();
+        defaultProperties.put("server.port", "0");
+        application.setDefaultProperties(defaultProperties);
+        try (ConfigurableApplicationContext context = application.run(args)) {
+            LoadTestOptions options = LoadTestOptions.from(context.getEnvironment());
+            // The JDK keeps only 5 idle connections per host alive by default
+            System.setProperty("http.maxConnections", Integer.toString(options.getConcurrency()));
+
+            SyntheticDataGenerator generator = new SyntheticDataGenerator(options.getAuthors(), options.getAuthorSkew(),
+                    options.getSeed());
+            DataLoader dataLoader = new DataLoader(generator, context.getBean(MongoTemplate.class),
+                    context.getBean(PreferenceRegistration.class), context.getBean(Client.class));
+            List<String> bookIds = dataLoader.loadBooks(options.getBooks());
+            dataLoader.loadSearchPreferences(options.getPreferences());
+
+            String baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+            LoadDriver driver = new LoadDriver(options, generator, new RestTemplate(), baseUrl, bookIds);
+            Map<Operation, Histogram> histograms = driver.run();
+            driver.report(histograms, System.out);
+        } finally {
+            node.close();
+        }
+    }
+}
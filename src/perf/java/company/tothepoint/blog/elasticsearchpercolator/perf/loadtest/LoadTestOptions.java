@@ -0,0 +1,90 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import lombok.Builder;
+import lombok.Value;
+import org.springframework.core.env.Environment;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Options of the load test, passed as {@code --loadtest.*} arguments like any other Spring Boot property.
+ */
+@Value
+@Builder
+class LoadTestOptions {
+
+    enum Mode {
+        /**
+         * A fixed number of workers, each sending its next request as soon as the previous one completed.
+         */
+        CLOSED,
+        /**
+         * Requests are sent at a fixed rate, regardless of how fast the service responds.
+         */
+        OPEN
+    }
+
+    private int preferences;
+
+    private int books;
+
+    private int authors;
+
+    private double authorSkew;
+
+    private long seed;
+
+    private Mode mode;
+
+    private int concurrency;
+
+    private int rate;
+
+    private int warmupSeconds;
+
+    private int durationSeconds;
+
+    /**
+     * Interval at which a closed loop worker is expected to send requests, to correct its latencies for coordinated
+     * omission. 0 uses the mean latency of the run.
+     */
+    private long expectedIntervalMicros;
+
+    private Map<Operation, Integer> mix;
+
+    private String reportDirectory;
+
+    static LoadTestOptions from(Environment environment) {
+        return LoadTestOptions.builder()
+                .preferences(environment.getProperty("loadtest.preferences", Integer.class, 100_000))
+                .books(environment.getProperty("loadtest.books", Integer.class, 10_000))
+                .authors(environment.getProperty("loadtest.authors", Integer.class, 5_000))
+                .authorSkew(environment.getProperty("loadtest.author-skew", Double.class, 1.1))
+                .seed(environment.getProperty("loadtest.seed", Long.class, 42L))
+                .mode(environment.getProperty("loadtest.mode", Mode.class, Mode.CLOSED))
+                .concurrency(environment.getProperty("loadtest.concurrency", Integer.class, 16))
+                .rate(environment.getProperty("loadtest.rate", Integer.class, 500))
+                .warmupSeconds(environment.getProperty("loadtest.warmup-seconds", Integer.class, 10))
+                .durationSeconds(environment.getProperty("loadtest.duration-seconds", Integer.class, 60))
+                .expectedIntervalMicros(environment.getProperty("loadtest.expected-interval-micros", Long.class, 0L))
+                .mix(parseMix(environment.getProperty("loadtest.mix", "MATCH_BOOK:70,GET_BOOK:20,CREATE_BOOK:5,CREATE_PREFERENCE:5")))
+                .reportDirectory(environment.getProperty("loadtest.report-directory", "target/loadtest"))
+                .build();
+    }
+
+    /**
+     * @param mix comma separated {@code OPERATION:weight} pairs
+     */
+    static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] operationAndWeight = entry.trim().split(":");
+            if (operationAndWeight.length != 2) {
+                throw new IllegalArgumentException("Expected OPERATION:weight in the load test mix, got " + entry);
+            }
+            weights.put(Operation.valueOf(operationAndWeight[0].trim()), Integer.parseInt(operationAndWeight[1].trim()));
+        }
+        return weights;
+    }
+}
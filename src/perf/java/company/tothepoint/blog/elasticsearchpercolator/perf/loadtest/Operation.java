@@ -0,0 +1,31 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import org.springframework.http.HttpMethod;
+
+/**
+ * The requests the load driver sends, each drawn with the weight of the configured mix.
+ */
+enum Operation {
+
+    MATCH_BOOK(HttpMethod.GET, "/api/searchpreferences/find-matching-preferences/{bookId}"),
+    GET_BOOK(HttpMethod.GET, "/api/books/{bookId}"),
+    CREATE_BOOK(HttpMethod.POST, "/api/books"),
+    CREATE_PREFERENCE(HttpMethod.POST, "/api/searchpreferences");
+
+    private final HttpMethod method;
+
+    private final String path;
+
+    Operation(HttpMethod method, String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    HttpMethod getMethod() {
+        return method;
+    }
+
+    String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,92 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+
+import java.util.Random;
+
+/**
+ * Books and search preferences that look like production data. Authors follow a Zipf distribution, for the books
+ * as well as for the preferences that follow an author, and languages are skewed towards English.
+ * <p>
+ * The mix of criteria per preference: 40% follow an author, 70% want a language, 50% a type and 45% a price
+ * range, of which a third only has a maximum price. A preference without any of them matches every book.
+ */
+class SyntheticDataGenerator {
+
+    private static final BookLanguage[] LANGUAGES = {
+            BookLanguage.ENGLISH, BookLanguage.DUTCH, BookLanguage.FRENCH, BookLanguage.GERMAN, BookLanguage.DANISH};
+    private static final double[] LANGUAGE_CUMULATIVE_PROBABILITIES = {0.50, 0.70, 0.85, 0.95, 1.00};
+
+    private final ZipfDistribution authors;
+
+    private final Random random;
+
+    private long sequence;
+
+    SyntheticDataGenerator(int authors, double authorSkew, long seed) {
+        this.authors = new ZipfDistribution(authors, authorSkew);
+        this.random = new Random(seed);
+    }
+
+    synchronized Book book() {
+        long id = sequence++;
+        return Book.builder()
+                .title("Load test book " + id)
+                .isbn(Long.toString(9_780_000_000_000L + id))
+                .author(author())
+                .language(language())
+                .type(random.nextInt(10) < 7 ? BookType.FICTION : BookType.NONFICTION)
+                // Log-normal, most books cost between 10 and 30
+                .price(Math.min(200.00, Math.round(Math.exp(2.9 + 0.5 * random.nextGaussian()) * 100) / 100.0))
+                .build();
+    }
+
+    synchronized SearchPreference searchPreference() {
+        long id = sequence++;
+        SearchPreference.Criteria.CriteriaBuilder criteria = SearchPreference.Criteria.builder();
+        if (random.nextInt(100) < 40) {
+            criteria.author(author());
+        }
+        if (random.nextInt(100) < 70) {
+            criteria.language(language());
+        }
+        if (random.nextInt(100) < 50) {
+            criteria.types(random.nextInt(10) < 8
+                    ? new BookType[]{random.nextBoolean() ? BookType.FICTION : BookType.NONFICTION}
+                    : BookType.values());
+        }
+        if (random.nextInt(100) < 45) {
+            double maximumPrice = 10 + 5 * random.nextInt(9);
+            criteria.maximumPrice(maximumPrice);
+            if (random.nextInt(3) > 0) {
+                criteria.minimumPrice(Math.max(0, maximumPrice - 5 - 5 * random.nextInt(4)));
+            }
+        }
+        return SearchPreference.builder()
+                .title("Load test preference " + id)
+                .email("loadtest+" + id + "@tothepoint.company")
+                .criteria(criteria.build())
+                .build();
+    }
+
+    synchronized int nextInt(int bound) {
+        return random.nextInt(bound);
+    }
+
+    private String author() {
+        return "Author " + authors.sample(random);
+    }
+
+    private BookLanguage language() {
+        double value = random.nextDouble();
+        for (int i = 0; i < LANGUAGES.length; i++) {
+            if (value < LANGUAGE_CUMULATIVE_PROBABILITIES[i]) {
+                return LANGUAGES[i];
+            }
+        }
+        return LANGUAGES[LANGUAGES.length - 1];
+    }
+}
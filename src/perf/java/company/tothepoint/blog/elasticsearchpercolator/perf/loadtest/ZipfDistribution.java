@@ -0,0 +1,30 @@
+package company.tothepoint.blog.elasticsearchpercolator.perf.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Ranks 0 to n - 1 drawn with probability proportional to {@code 1 / (rank + 1)^exponent}, so a few ranks are
+ * drawn most of the time and the long tail rarely.
+ */
+class ZipfDistribution {
+
+    private final double[] cumulativeProbabilities;
+
+    ZipfDistribution(int n, double exponent) {
+        cumulativeProbabilities = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulativeProbabilities[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulativeProbabilities[rank] /= sum;
+        }
+    }
+
+    int sample(Random random) {
+        int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+        return Math.min(index < 0 ? -index - 1 : index, cumulativeProbabilities.length - 1);
+    }
+}
@@ -1,8 +1,16 @@
 package company.tothepoint.blog.elasticsearchpercolator;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookMatchRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.BookMatchesRepository;
 import company.tothepoint.blog.elasticsearchpercolator.repository.BookRepository;
 import company.tothepoint.blog.elasticsearchpercolator.repository.SearchPreferenceRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SharedQueryReferenceRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.SharedQueryRepository;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
@@ -21,6 +29,7 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
@@ -33,6 +42,7 @@ import java.util.Arrays;
 import java.util.Collections;
 
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
@@ -46,6 +56,18 @@ public class AbstractIntegrationTestCase {
     @Autowired
     protected SearchPreferenceRepository searchPreferenceRepository;
 
+    @Autowired
+    protected SharedQueryRepository sharedQueryRepository;
+
+    @Autowired
+    protected SharedQueryReferenceRepository sharedQueryReferenceRepository;
+
+    @Autowired
+    protected BookMatchesRepository bookMatchesRepository;
+
+    @Autowired
+    protected BookMatchRepository bookMatchRepository;
+
     @Autowired
     protected Client elasticSearchClient;
 
@@ -78,6 +100,10 @@ public class AbstractIntegrationTestCase {
     public final void clearDatabase() {
         bookRepository.deleteAll();
         searchPreferenceRepository.deleteAll();
+        sharedQueryRepository.deleteAll();
+        sharedQueryReferenceRepository.deleteAll();
+        bookMatchesRepository.deleteAll();
+        bookMatchRepository.deleteAll();
     }
 
     @Test
@@ -85,7 +111,7 @@ public class AbstractIntegrationTestCase {
 
     }
 
-    private static class LocalNode extends Node {
+    public static class LocalNode extends Node {
         private static final String ES_WORKING_DIR = "target/es";
 
         public LocalNode(Settings settings) {
@@ -112,4 +138,48 @@ public class AbstractIntegrationTestCase {
                 .andExpect(statusResultMatcher)
                 .andReturn();
     }
+
+    /**
+     * An English fiction book by Stieg Larson.
+     */
+    protected Book stiegLarsonBook(String isbn) {
+        return Book.builder()
+                .author("Stieg Larson")
+                .title("Some title")
+                .isbn(isbn)
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build();
+    }
+
+    protected SearchPreference stiegLarsonPreference() {
+        return SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build();
+    }
+
+    /**
+     * Create a preference through the API, so its query is indexed as well.
+     */
+    protected SearchPreference createPreference(SearchPreference preference) throws Exception {
+        MvcResult result = mockMvc.perform(post("/api/searchpreferences")
+                .content(mapper.writeValueAsString(preference))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        return mapper.readValue(result.getResponse().getContentAsString(), SearchPreference.class);
+    }
+
+    protected SearchPreference createPreference(String title, SearchPreference.Criteria criteria) throws Exception {
+        return createPreference(SearchPreference.builder()
+                .title(title)
+                .email("peter.ophals@tothepoint.company")
+                .criteria(criteria)
+                .build());
+    }
 }
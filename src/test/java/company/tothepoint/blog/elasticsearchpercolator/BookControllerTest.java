@@ -1,21 +1,46 @@
 package company.tothepoint.blog.elasticsearchpercolator;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookImport;
 import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
 import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CursorPage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.BookImporter;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.InMemoryMatchEventSink;
+import company.tothepoint.blog.elasticsearchpercolator.web.NdjsonWriter;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MvcResult;
 
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 public class BookControllerTest extends AbstractIntegrationTestCase {
 
+    @Autowired
+    private InMemoryMatchEventSink matchEventSink;
+
+    @Autowired
+    private BookImporter bookImporter;
+
     @Test
     public void testFindAll() throws Exception {
         Book jungleBook = Book.builder()
@@ -43,6 +68,62 @@ public class BookControllerTest extends AbstractIntegrationTestCase {
         assertThat(response.size()).isEqualTo(2);
     }
 
+    @Test
+    public void testFindPage() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            bookRepository.save(Book.builder()
+                    .author("Roald Dahl")
+                    .title("Book " + i)
+                    .isbn("098765432" + i)
+                    .language(BookLanguage.ENGLISH)
+                    .type(BookType.FICTION)
+                    .price(18.99)
+                    .build());
+        }
+
+        CursorPage<Book> firstPage = mapper.readValue(doGet("/api/books/page?size=2").getResponse().getContentAsString(),
+                new TypeReference<CursorPage<Book>>() {
+                });
+        CursorPage<Book> secondPage = mapper.readValue(
+                doGet("/api/books/page?size=2&cursor=" + firstPage.getNextCursor()).getResponse().getContentAsString(),
+                new TypeReference<CursorPage<Book>>() {
+                });
+
+        assertThat(firstPage.getItems()).extracting(Book::getTitle).containsExactly("Book 0", "Book 1");
+        assertThat(firstPage.getNextCursor()).isEqualTo(firstPage.getItems().get(1).getBookId());
+        assertThat(secondPage.getItems()).extracting(Book::getTitle).containsExactly("Book 2");
+        assertThat(secondPage.getNextCursor()).isNull();
+    }
+
+    @Test
+    public void testFindPageRejectsInvalidRequests() throws Exception {
+        doGetWithExpectedStatus("/api/books/page?cursor=not-an-id", status().isBadRequest());
+        doGetWithExpectedStatus("/api/books/page?size=0", status().isBadRequest());
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            bookRepository.save(Book.builder()
+                    .author("Roald Dahl")
+                    .title("Book " + i)
+                    .isbn("098765432" + i)
+                    .language(BookLanguage.ENGLISH)
+                    .type(BookType.FICTION)
+                    .price(18.99)
+                    .build());
+        }
+
+        MvcResult result = mockMvc.perform(get("/api/books/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        String[] lines = result.getResponse().getContentAsString().trim().split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(mapper.readValue(lines[2], Book.class).getTitle()).isEqualTo("Book 2");
+    }
+
     @Test
     public void testFindOne() throws Exception {
         Book jungleBook = Book.builder()
@@ -96,4 +177,222 @@ public class BookControllerTest extends AbstractIntegrationTestCase {
         assertThat(savedBook.getType()).isEqualTo(BookType.FICTION);
         assertThat(savedBook.getLanguage()).isEqualTo(BookLanguage.ENGLISH);
     }
+
+    @Test
+    public void testCreateBookWithAnIdThatIsNoObjectId() throws Exception {
+        Book newBook = Book.builder()
+                .bookId("my-book")
+                .author("Some author")
+                .title("Some title")
+                .isbn("549545465")
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build();
+
+        mockMvc.perform(post("/api/books")
+                .content(mapper.writeValueAsString(newBook))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        // Read back in lowercase, it would no longer be the id of the book
+        newBook.setBookId("5BD0C2A4E4B0F1A2C3D4E5F6");
+        mockMvc.perform(post("/api/books")
+                .content(mapper.writeValueAsString(newBook))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isBadRequest());
+
+        assertThat(bookRepository.count()).isZero();
+    }
+
+    @Test
+    public void testCreateBookIsPercolatedInTheBackground() throws Exception {
+        Book newBook = Book.builder()
+                .author("Some author")
+                .title("Some title")
+                .isbn("549545465")
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build();
+
+        MvcResult result = mockMvc.perform(post("/api/books")
+                .content(mapper.writeValueAsString(newBook))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        Book book = mapper.readValue(result.getResponse().getContentAsString(), Book.class);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (matchEventSink.getEvents().stream().noneMatch(event -> event.getBookId().equals(book.getBookId()))
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(matchEventSink.getEvents())
+                .extracting(MatchEvent::getBookId)
+                .contains(book.getBookId());
+    }
+
+    @Test
+    public void testUpdateBookPublishesTheChangedMatches() throws Exception {
+        MvcResult created = mockMvc.perform(post("/api/searchpreferences")
+                .content(mapper.writeValueAsString(SearchPreference.builder()
+                        .title("Cheap books")
+                        .email("peter.ophals@tothepoint.company")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .maximumPrice(20.00)
+                                .build())
+                        .build()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        String preferenceId = mapper.readValue(created.getResponse().getContentAsString(), SearchPreference.class).getSearchPreferenceId();
+        Book newBook = Book.builder()
+                .author("Some author")
+                .title("Some title")
+                .isbn("549545465")
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build();
+        MvcResult result = mockMvc.perform(post("/api/books")
+                .content(mapper.writeValueAsString(newBook))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        Book book = mapper.readValue(result.getResponse().getContentAsString(), Book.class);
+        awaitMatchEvents(book.getBookId(), 1);
+
+        book.setPrice(25.99);
+        mockMvc.perform(put("/api/books/" + book.getBookId())
+                .content(mapper.writeValueAsString(book))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        List<MatchEvent> events = awaitMatchEvents(book.getBookId(), 2);
+
+        assertThat(events.get(0).getSearchPreferenceIds()).containsExactly(preferenceId);
+        assertThat(events.get(0).getUnmatchedSearchPreferenceIds()).isEmpty();
+        assertThat(events.get(1).getSearchPreferenceIds()).isEmpty();
+        assertThat(events.get(1).getUnmatchedSearchPreferenceIds()).containsExactly(preferenceId);
+        assertThat(bookMatchesRepository.findMatches(book.getBookId()).getSearchPreferenceIds()).isEmpty();
+    }
+
+    @Test
+    public void testUpdateNotExistingBook() throws Exception {
+        mockMvc.perform(put("/api/books/-12")
+                .content(mapper.writeValueAsString(Book.builder()
+                        .author("Some author")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testImportBooks() throws Exception {
+        String upload = String.join("\n",
+                "{\"author\":\"Roald Dahl\",\"title\":\"Matilda\",\"isbn\":\"1\",\"price\":18.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}",
+                "{\"author\":\"Roald Dahl\",\"title\":",
+                "",
+                "{\"author\":\"Roald Dahl\",\"isbn\":\"2\",\"price\":18.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}",
+                "{\"author\":\"Roald Dahl\",\"title\":\"The BFG\",\"isbn\":\"3\",\"price\":15.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}");
+
+        MvcResult result = mockMvc.perform(post("/api/books/import")
+                .content(upload)
+                .contentType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn();
+        BookImport bookImport = mapper.readValue(result.getResponse().getContentAsString(), BookImport.class);
+
+        assertThat(bookImport.getStatus()).isEqualTo(BookImport.Status.COMPLETED);
+        assertThat(bookImport.getLines()).isEqualTo(5);
+        assertThat(bookImport.getImported()).isEqualTo(2);
+        assertThat(bookImport.getPercolated()).isEqualTo(2);
+        assertThat(bookImport.getFailed()).isEqualTo(2);
+        assertThat(bookImport.getFailures()).extracting(BookImport.LineFailure::getLine).containsExactly(2L, 4L);
+        assertThat(bookImport.getFailures().get(1).getReason()).contains("title");
+        assertThat(bookRepository.findAll()).extracting(Book::getTitle).containsExactlyInAnyOrder("Matilda", "The BFG");
+
+        MvcResult progress = doGet("/api/books/imports/" + bookImport.getImportId());
+        assertThat(mapper.readValue(progress.getResponse().getContentAsString(), BookImport.class).getImported()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCancelImport() throws Exception {
+        PipedOutputStream upload = new PipedOutputStream();
+        PipedInputStream input = new PipedInputStream(upload);
+        CompletableFuture<BookImport> running = CompletableFuture.supplyAsync(() -> bookImporter.importBooks(input));
+        String line = "{\"author\":\"Roald Dahl\",\"title\":\"Matilda\",\"isbn\":\"1\",\"price\":18.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}\n";
+        upload.write(line.getBytes(StandardCharsets.UTF_8));
+        upload.flush();
+        String importId = awaitImportedLines(1);
+
+        mockMvc.perform(delete("/api/books/imports/" + importId))
+                .andExpect(status().isNoContent());
+        // The import stops after the line it is waiting for
+        upload.write(line.getBytes(StandardCharsets.UTF_8));
+        upload.close();
+        BookImport bookImport = running.get(10, TimeUnit.SECONDS);
+
+        assertThat(bookImport.getStatus()).isEqualTo(BookImport.Status.CANCELLED);
+        assertThat(bookImport.getImported()).isZero();
+        assertThat(bookRepository.count()).isZero();
+        mockMvc.perform(delete("/api/books/imports/" + importId))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testImportFailsLinesThatAreTooLong() throws Exception {
+        StringBuilder longTitle = new StringBuilder();
+        for (int i = 0; i < 70_000; i++) {
+            longTitle.append('x');
+        }
+        String upload = String.join("\n",
+                "{\"author\":\"Roald Dahl\",\"title\":\"" + longTitle + "\",\"isbn\":\"1\",\"price\":18.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}",
+                "{\"author\":\"Roald Dahl\",\"title\":\"The BFG\",\"isbn\":\"3\",\"price\":15.99,\"type\":\"FICTION\",\"language\":\"ENGLISH\"}");
+
+        MvcResult result = mockMvc.perform(post("/api/books/import")
+                .content(upload)
+                .contentType(NdjsonWriter.APPLICATION_NDJSON_VALUE))
+                .andExpect(status().isOk())
+                .andReturn();
+        BookImport bookImport = mapper.readValue(result.getResponse().getContentAsString(), BookImport.class);
+
+        assertThat(bookImport.getImported()).isEqualTo(1);
+        assertThat(bookImport.getFailures()).extracting(BookImport.LineFailure::getLine).containsExactly(1L);
+        assertThat(bookImport.getFailures().get(0).getReason()).contains("longer than");
+    }
+
+    /**
+     * @return the id of the running import, once it read that many lines
+     */
+    private String awaitImportedLines(long lines) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            for (BookImport bookImport : bookImporter.findAll()) {
+                if (bookImport.getStatus() == BookImport.Status.RUNNING && bookImport.getLines() >= lines) {
+                    return bookImport.getImportId();
+                }
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("The import did not read " + lines + " lines in time");
+    }
+
+    private List<MatchEvent> awaitMatchEvents(String bookId, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        List<MatchEvent> events;
+        do {
+            Thread.sleep(50);
+            events = matchEventSink.getEvents().stream()
+                    .filter(event -> event.getBookId().equals(bookId))
+                    .collect(Collectors.toList());
+        } while (events.size() < count && System.currentTimeMillis() < deadline);
+        assertThat(events).hasSize(count);
+        return events;
+    }
 }
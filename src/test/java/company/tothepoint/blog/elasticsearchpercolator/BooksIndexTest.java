@@ -0,0 +1,191 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BooksIndexBackfill;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndex;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndexBackfiller;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX_MAPPING_TYPE;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {
+        "company.tothepoint.blog.percolator.books-index.enabled=true",
+        "company.tothepoint.blog.percolator.cache.enabled=false"})
+public class BooksIndexTest extends AbstractIntegrationTestCase {
+
+    @Autowired
+    private BooksIndex booksIndex;
+
+    @Autowired
+    private BooksIndexBackfiller booksIndexBackfiller;
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .get();
+        }
+    }
+
+    @Test
+    public void testSavedBooksArePercolatedByReference() throws Exception {
+        //GIVEN
+        createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        Book aBook = bookRepository.save(stiegLarsonBook("549545465"));
+
+        //WHEN
+        booksIndex.flush();
+
+        //THEN
+        assertThat(elasticSearchClient.prepareGet(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, aBook.getBookId()).get().isExists()).isTrue();
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + aBook.getBookId());
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(1);
+        // The book was not loaded from Mongo
+        assertThat(result.getResponse().getHeader("Server-Timing")).doesNotContain("book-load");
+    }
+
+    @Test
+    public void testBooksNotIndexedYetArePercolatedBySource() throws Exception {
+        //GIVEN
+        createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        Book indexedBook = bookRepository.save(stiegLarsonBook("549545465"));
+        booksIndex.flush();
+        Book pendingBook = bookRepository.save(stiegLarsonBook("549545466"));
+        elasticSearchClient.prepareDelete(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, pendingBook.getBookId()).get();
+
+        //WHEN
+        MvcResult result = mockMvc.perform(post("/api/searchpreferences/find-matching-preferences")
+                .content(mapper.writeValueAsString(Arrays.asList(indexedBook.getBookId(), pendingBook.getBookId(), "-12")))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        //THEN
+        Map<String, Collection<SearchPreference>> matches = mapper.readValue(result.getResponse().getContentAsString(),
+                new TypeReference<Map<String, Collection<SearchPreference>>>() {
+                });
+        assertThat(matches.get(indexedBook.getBookId())).hasSize(1);
+        assertThat(matches.get(pendingBook.getBookId())).hasSize(1);
+        assertThat(matches.get("-12")).isEmpty();
+    }
+
+    @Test
+    public void testBooksMatchingAPreferenceAreFoundInTheBooksIndex() throws Exception {
+        //GIVEN
+        Book firstBook = bookRepository.save(stiegLarsonBook("549545465"));
+        Book secondBook = bookRepository.save(stiegLarsonBook("549545466"));
+        Book otherBook = stiegLarsonBook("549545467");
+        otherBook.setAuthor("Roald Dahl");
+        bookRepository.save(otherBook);
+        SearchPreference preference = createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+
+        //WHEN
+        List<String> lines = Collections.emptyList();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (lines.size() < 2 && System.currentTimeMillis() < deadline) {
+            booksIndex.flush();
+            elasticSearchClient.admin().indices().prepareRefresh(BOOKS_INDEX).get();
+            MvcResult result = mockMvc.perform(get("/api/searchpreferences/" + preference.getSearchPreferenceId() + "/matching-books"))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            result.getAsyncResult();
+            String content = result.getResponse().getContentAsString().trim();
+            lines = content.isEmpty() ? Collections.emptyList() : Arrays.asList(content.split("\n"));
+        }
+
+        //THEN
+        assertThat(lines).hasSize(2);
+        List<String> bookIds = new ArrayList<>();
+        for (String line : lines) {
+            bookIds.add(mapper.readValue(line, Book.class).getBookId());
+        }
+        assertThat(bookIds).containsExactlyInAnyOrder(firstBook.getBookId(), secondBook.getBookId());
+    }
+
+    @Test
+    public void testBackfillWritesBooksMissingFromTheIndex() throws Exception {
+        //GIVEN
+        awaitBackfill(); // The one started with the application
+        Book indexedBook = bookRepository.save(stiegLarsonBook("549545465"));
+        Book missingBook = bookRepository.save(stiegLarsonBook("549545466"));
+        booksIndex.flush();
+        elasticSearchClient.prepareDelete(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, missingBook.getBookId()).get();
+
+        //WHEN
+        mockMvc.perform(post("/api/admin/books-index/backfill"))
+                .andExpect(status().isAccepted());
+        BooksIndexBackfill backfill = awaitBackfill();
+
+        //THEN
+        assertThat(backfill.getStatus()).isEqualTo(BooksIndexBackfill.Status.COMPLETED);
+        assertThat(backfill.getIndexed()).isEqualTo(2);
+        assertThat(booksIndexBackfiller.isBackfilled()).isTrue();
+        assertThat(elasticSearchClient.prepareGet(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, indexedBook.getBookId()).get().isExists()).isTrue();
+        assertThat(elasticSearchClient.prepareGet(BOOKS_INDEX, BOOKS_INDEX_MAPPING_TYPE, missingBook.getBookId()).get().isExists()).isTrue();
+    }
+
+    @Test
+    public void testBooksMatchingAnUnknownPreference() throws Exception {
+        doGetWithExpectedStatus("/api/searchpreferences/-12/matching-books", status().isNotFound());
+    }
+
+    private BooksIndexBackfill awaitBackfill() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            MvcResult result = doGet("/api/admin/books-index/backfill");
+            BooksIndexBackfill backfill = mapper.readValue(result.getResponse().getContentAsString(), BooksIndexBackfill.class);
+            if (backfill.getStatus() != BooksIndexBackfill.Status.RUNNING) {
+                return backfill;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("The backfill did not finish in time");
+    }
+}
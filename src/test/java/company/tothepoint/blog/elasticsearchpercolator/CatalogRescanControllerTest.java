@@ -0,0 +1,96 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CatalogRescan;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.CatalogRescanRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceRegistration;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {
+        "company.tothepoint.blog.rescan.ranges=3",
+        "company.tothepoint.blog.rescan.batch-size=2"})
+public class CatalogRescanControllerTest extends AbstractIntegrationTestCase {
+
+    @Autowired
+    private PreferenceRegistration preferenceRegistration;
+
+    @Autowired
+    private CatalogRescanRepository rescanRepository;
+
+    @Test
+    public void testRescanCatalog() throws Exception {
+        //GIVEN
+        rescanRepository.deleteAll();
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // Saved without going through the pipeline, so they were never matched
+            books.add(bookRepository.save(Book.builder()
+                    .author("Stieg Larson")
+                    .title("Some title " + i)
+                    .isbn("549545465")
+                    .language(BookLanguage.ENGLISH)
+                    .type(BookType.FICTION)
+                    .price(10.00 + i)
+                    .build()));
+        }
+        SearchPreference preference = preferenceRegistration.createSearchPreference(SearchPreference.builder()
+                .title("Cheap books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .maximumPrice(15.00)
+                        .build())
+                .build());
+
+        //WHEN
+        mockMvc.perform(post("/api/admin/catalog-rescan"))
+                .andExpect(status().isAccepted());
+        CatalogRescan rescan = awaitRescan();
+
+        //THEN
+        assertThat(rescan.getStatus()).isEqualTo(CatalogRescan.Status.COMPLETED);
+        assertThat(rescan.getTotal()).isEqualTo(10);
+        assertThat(rescan.getScanned()).isEqualTo(10);
+        assertThat(rescan.getRanges()).hasSize(3).extracting(CatalogRescan.Range::isCompleted).containsOnly(true);
+        for (Book book : books) {
+            BookMatches matches = bookMatchesRepository.findMatches(book.getBookId());
+            if (book.getPrice() <= 15.00) {
+                assertThat(matches.getSearchPreferenceIds()).containsExactly(preference.getSearchPreferenceId());
+            } else {
+                assertThat(matches.getSearchPreferenceIds()).isEmpty();
+            }
+        }
+    }
+
+    @Test
+    public void testNoRescanYet() throws Exception {
+        rescanRepository.deleteAll();
+
+        doGetWithExpectedStatus("/api/admin/catalog-rescan", status().isNotFound());
+    }
+
+    private CatalogRescan awaitRescan() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            MvcResult result = doGet("/api/admin/catalog-rescan");
+            CatalogRescan rescan = mapper.readValue(result.getResponse().getContentAsString(), CatalogRescan.class);
+            if (rescan.getStatus() != CatalogRescan.Status.RUNNING) {
+                return rescan;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("The rescan did not finish in time");
+    }
+}
@@ -0,0 +1,25 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchClusterHealthIndicator;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ElasticsearchClusterHealthIndicatorTest extends AbstractIntegrationTestCase {
+
+    @Autowired
+    private ElasticsearchClusterHealthIndicator healthIndicator;
+
+    @Test
+    public void testHealthIsUpWithConnectedNodesAndPercolatorIndex() {
+        Health health = healthIndicator.health();
+
+        assertThat(health.getStatus()).isEqualTo(Status.UP);
+        assertThat(health.getDetails().get("connectedNodes")).isEqualTo(1);
+        assertThat(health.getDetails().get("percolatorIndex")).isEqualTo(true);
+        assertThat(health.getDetails().get("clusterName")).isEqualTo("bookstore-test-cluster");
+    }
+}
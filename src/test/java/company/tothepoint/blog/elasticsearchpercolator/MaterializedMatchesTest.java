@@ -0,0 +1,197 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import company.tothepoint.blog.elasticsearchpercolator.domain.MatchEvent;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndex;
+import company.tothepoint.blog.elasticsearchpercolator.service.BooksIndexBackfiller;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.BookIngestPipeline;
+import company.tothepoint.blog.elasticsearchpercolator.service.pipeline.InMemoryMatchEventSink;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.BOOKS_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {
+        "company.tothepoint.blog.percolator.books-index.enabled=true",
+        "company.tothepoint.blog.percolator.materialized.enabled=true",
+        "company.tothepoint.blog.percolator.cache.enabled=false"})
+public class MaterializedMatchesTest extends AbstractIntegrationTestCase {
+
+    @Autowired
+    private BooksIndex booksIndex;
+
+    @Autowired
+    private BooksIndexBackfiller booksIndexBackfiller;
+
+    @Autowired
+    private BookIngestPipeline bookIngestPipeline;
+
+    @Autowired
+    private InMemoryMatchEventSink matchEventSink;
+
+    /**
+     * Matches are only read from the store once the backfill started with the application completed.
+     */
+    @Before
+    public void awaitBackfill() throws InterruptedException {
+        for (int attempt = 0; attempt < 100 && !booksIndexBackfiller.isBackfilled(); attempt++) {
+            Thread.sleep(100);
+        }
+        assertThat(booksIndexBackfiller.isBackfilled()).isTrue();
+    }
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .get();
+        }
+    }
+
+    @Test
+    public void testMaterializedMatchesFollowTheCreatedAndDeletedPreferences() throws Exception {
+        //GIVEN
+        Book aBook = percolatedBook("549545465");
+
+        //WHEN
+        SearchPreference preference = createPreference(stiegLarsonPreference());
+
+        //THEN
+        assertThat(bookMatchesRepository.findMatches(aBook.getBookId()).getSearchPreferenceIds())
+                .containsExactly(preference.getSearchPreferenceId());
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + aBook.getBookId() + "?mode=MATERIALIZED");
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class))
+                .extracting(SearchPreference::getSearchPreferenceId)
+                .containsExactly(preference.getSearchPreferenceId());
+        // The book was not percolated
+        assertThat(result.getResponse().getHeader("Server-Timing")).contains("materialized-lookup").doesNotContain("search");
+
+        //WHEN
+        mockMvc.perform(delete("/api/searchpreferences/" + preference.getSearchPreferenceId()))
+                .andExpect(status().isNoContent());
+
+        //THEN
+        assertThat(bookMatchesRepository.findMatches(aBook.getBookId()).getSearchPreferenceIds()).isEmpty();
+        result = doGet("/api/searchpreferences/find-matching-preferences/" + aBook.getBookId() + "?mode=MATERIALIZED");
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class)).isEmpty();
+    }
+
+    @Test
+    public void testMaterializedMatchesFollowTheBulkRegisteredPreferences() throws Exception {
+        //GIVEN
+        Book aBook = percolatedBook("549545465");
+        SearchPreference otherAuthor = stiegLarsonPreference();
+        otherAuthor.setCriteria(SearchPreference.Criteria.builder()
+                .author("Henning Mankell")
+                .build());
+
+        //WHEN
+        mockMvc.perform(post("/api/searchpreferences/bulk")
+                .content(mapper.writeValueAsString(Arrays.asList(stiegLarsonPreference(), otherAuthor)))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+
+        //THEN
+        BookMatches matches = bookMatchesRepository.findMatches(aBook.getBookId());
+        assertThat(matches.getSearchPreferenceIds()).hasSize(1);
+        assertThat(searchPreferenceRepository.findOne(matches.getSearchPreferenceIds().get(0)).getCriteria().getAuthor())
+                .isEqualTo("Stieg Larson");
+        assertThat(matches.getUnpublishedSearchPreferenceIds()).isEqualTo(matches.getSearchPreferenceIds());
+    }
+
+    @Test
+    public void testPreferencesAddedByTheStoreAreStillPublishedAsMatched() throws Exception {
+        //GIVEN
+        Book aBook = percolatedBook("549545465");
+        SearchPreference preference = createPreference(stiegLarsonPreference());
+        matchEventSink.clear();
+
+        //WHEN
+        bookIngestPipeline.percolate(Collections.singletonList(aBook));
+
+        //THEN
+        List<MatchEvent> events = matchEventSink.getEvents().stream()
+                .filter(event -> event.getBookId().equals(aBook.getBookId()))
+                .collect(Collectors.toList());
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getSearchPreferenceIds()).containsExactly(preference.getSearchPreferenceId());
+        BookMatches matches = bookMatchesRepository.findMatches(aBook.getBookId());
+        assertThat(matches.getSearchPreferenceIds()).containsExactly(preference.getSearchPreferenceId());
+        assertThat(matches.getUnpublishedSearchPreferenceIds()).isEmpty();
+    }
+
+    @Test
+    public void testBooksWithoutMaterializedMatchesAreMatchedLive() throws Exception {
+        //GIVEN
+        Book aBook = bookRepository.save(stiegLarsonBook("549545465"));
+        SearchPreference preference = createPreference(stiegLarsonPreference());
+
+        //WHEN
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + aBook.getBookId() + "?mode=MATERIALIZED");
+
+        //THEN
+        assertThat(bookMatchesRepository.findMatches(aBook.getBookId())).isNull();
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class))
+                .extracting(SearchPreference::getSearchPreferenceId)
+                .containsExactly(preference.getSearchPreferenceId());
+    }
+
+    @Test
+    public void testVerificationRepairsInconsistentMatches() throws Exception {
+        //GIVEN
+        Book aBook = percolatedBook("549545465");
+        SearchPreference preference = createPreference(stiegLarsonPreference());
+        bookMatchRepository.delete(BookMatch.matchId(aBook.getBookId(), preference.getSearchPreferenceId()));
+
+        //WHEN
+        MvcResult result = mockMvc.perform(post("/api/admin/materialized-matches/verification"))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        //THEN
+        JsonNode verification = mapper.readTree(result.getResponse().getContentAsString());
+        assertThat(verification.get("sampled").asInt()).isEqualTo(1);
+        assertThat(verification.get("inconsistentBookIds").get(0).asText()).isEqualTo(aBook.getBookId());
+        assertThat(bookMatchesRepository.findMatches(aBook.getBookId()).getSearchPreferenceIds())
+                .containsExactly(preference.getSearchPreferenceId());
+    }
+
+    /**
+     * A book percolated by the pipeline before any preference was created, and searchable in the books index.
+     */
+    private Book percolatedBook(String isbn) throws Exception {
+        Book aBook = bookRepository.save(stiegLarsonBook(isbn));
+        bookIngestPipeline.percolate(Collections.singletonList(aBook));
+        booksIndex.flush();
+        elasticSearchClient.admin().indices().prepareRefresh(BOOKS_INDEX).get();
+        return aBook;
+    }
+}
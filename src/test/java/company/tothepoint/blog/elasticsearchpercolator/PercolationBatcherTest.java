@@ -0,0 +1,136 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {
+        "company.tothepoint.blog.percolator.batcher.enabled=true",
+        "company.tothepoint.blog.percolator.batcher.max-in-flight=1",
+        "company.tothepoint.blog.percolator.cache.enabled=false"})
+public class PercolationBatcherTest extends AbstractIntegrationTestCase {
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .get();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsGetTheMatchesOfTheirOwnBook() throws Exception {
+        //GIVEN
+        for (SearchPreference.Criteria criteria : Arrays.asList(
+                SearchPreference.Criteria.builder().language(BookLanguage.ENGLISH).build(),
+                SearchPreference.Criteria.builder().language(BookLanguage.DUTCH).build(),
+                SearchPreference.Criteria.builder().types(new BookType[]{BookType.FICTION}).build())) {
+            mockMvc.perform(post("/api/searchpreferences")
+                    .content(mapper.writeValueAsString(SearchPreference.builder()
+                            .title("Preference on " + criteria)
+                            .email("peter.ophals@tothepoint.company")
+                            .criteria(criteria)
+                            .build()))
+                    .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+        }
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            books.add(bookRepository.save(Book.builder()
+                    .author("Stieg Larson")
+                    .title("Some title " + i)
+                    .isbn("549545465")
+                    .language(i % 2 == 0 ? BookLanguage.ENGLISH : BookLanguage.DUTCH)
+                    .type(i % 4 < 2 ? BookType.FICTION : BookType.NONFICTION)
+                    .price(15.99)
+                    .build()));
+        }
+
+        //WHEN
+        ExecutorService clients = Executors.newFixedThreadPool(books.size());
+        List<Future<SearchPreference[]>> responses = new ArrayList<>();
+        try {
+            for (Book book : books) {
+                responses.add(clients.submit(() -> mapper.readValue(doGet("/api/searchpreferences/find-matching-preferences/"
+                        + book.getBookId()).getResponse().getContentAsString(), SearchPreference[].class)));
+            }
+
+            //THEN
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                List<SearchPreference> matches = Arrays.asList(responses.get(i).get());
+                assertThat(matches).hasSize(book.getType() == BookType.FICTION ? 2 : 1);
+                assertThat(matches).extracting(preference -> preference.getCriteria().getLanguage())
+                        .contains(book.getLanguage())
+                        .doesNotContain(book.getLanguage() == BookLanguage.ENGLISH ? BookLanguage.DUTCH : BookLanguage.ENGLISH);
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAsyncRequestsArePercolatedThroughTheBatcher() throws Exception {
+        //GIVEN
+        mockMvc.perform(post("/api/searchpreferences")
+                .content(mapper.writeValueAsString(SearchPreference.builder()
+                        .title("English books")
+                        .email("peter.ophals@tothepoint.company")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .language(BookLanguage.ENGLISH)
+                                .build())
+                        .build()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk());
+        Book savedBook = bookRepository.save(Book.builder()
+                .author("Stieg Larson")
+                .title("Some title")
+                .isbn("549545465")
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build());
+
+        //WHEN
+        MvcResult started = mockMvc.perform(get("/api/searchpreferences/async/find-matching-preferences/" + savedBook.getBookId()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        //THEN
+        List<SearchPreference> response = Arrays.asList(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class));
+        assertThat(response).extracting(SearchPreference::getTitle).containsExactly("English books");
+    }
+}
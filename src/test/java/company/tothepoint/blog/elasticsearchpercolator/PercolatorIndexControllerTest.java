@@ -0,0 +1,99 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.PercolatorIndexRebuild;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.repository.CapturedWriteRepository;
+import company.tothepoint.blog.elasticsearchpercolator.repository.PercolatorIndexRebuildRepository;
+import company.tothepoint.blog.elasticsearchpercolator.service.PreferenceRegistration;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class PercolatorIndexControllerTest extends AbstractIntegrationTestCase {
+
+    @Autowired
+    private PreferenceRegistration preferenceRegistration;
+
+    @Autowired
+    private PercolatorIndexRebuildRepository rebuildRepository;
+
+    @Autowired
+    private CapturedWriteRepository capturedWriteRepository;
+
+    @Test
+    public void testRebuildPercolatorIndex() throws Exception {
+        //GIVEN
+        rebuildRepository.deleteAll();
+        List<String> indicesBefore = aliasedIndices();
+        for (int i = 0; i < 25; i++) {
+            createPreference(i);
+        }
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+
+        //WHEN
+        mockMvc.perform(post("/api/admin/percolator-index/rebuild"))
+                .andExpect(status().isAccepted());
+        // Captured while the rebuild runs, or indexed by it
+        createPreference(25);
+        PercolatorIndexRebuild rebuild = awaitRebuild();
+
+        //THEN
+        assertThat(rebuild.getStatus()).isEqualTo(PercolatorIndexRebuild.Status.COMPLETED);
+        assertThat(rebuild.getFinishedAt()).isNotNull();
+        assertThat(rebuild.getIndexed()).isGreaterThanOrEqualTo(25);
+        assertThat(capturedWriteRepository.count()).isZero();
+        assertThat(aliasedIndices()).containsExactly(rebuild.getTargetIndex());
+        assertThat(aliasedIndices()).doesNotContainAnyElementsOf(indicesBefore);
+
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(26);
+    }
+
+    private void createPreference(int number) throws Exception {
+        preferenceRegistration.createSearchPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books " + number)
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+    }
+
+    private PercolatorIndexRebuild awaitRebuild() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            MvcResult result = doGet("/api/admin/percolator-index/rebuild");
+            PercolatorIndexRebuild rebuild = mapper.readValue(result.getResponse().getContentAsString(), PercolatorIndexRebuild.class);
+            if (rebuild.getStatus() != PercolatorIndexRebuild.Status.RUNNING) {
+                return rebuild;
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError("The rebuild did not finish in time");
+    }
+
+    private List<String> aliasedIndices() {
+        List<String> indices = new ArrayList<>();
+        elasticSearchClient.admin().indices().prepareGetAliases(PERCOLATOR_INDEX).get().getAliases()
+                .keysIt().forEachRemaining(indices::add);
+        return indices;
+    }
+}
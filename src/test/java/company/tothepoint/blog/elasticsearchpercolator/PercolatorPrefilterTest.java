@@ -0,0 +1,114 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields;
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = {
+        "company.tothepoint.blog.percolator.prefilter.enabled=true",
+        "company.tothepoint.blog.percolator.cache.enabled=false"})
+public class PercolatorPrefilterTest extends AbstractIntegrationTestCase {
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .get();
+        }
+    }
+
+    @Test
+    public void testMatchingPreferencesOnTheMetadataOfTheirCriteria() throws Exception {
+        //GIVEN
+        for (SearchPreference.Criteria criteria : Arrays.asList(
+                SearchPreference.Criteria.builder().language(BookLanguage.ENGLISH).types(new BookType[]{BookType.FICTION}).build(),
+                SearchPreference.Criteria.builder().maximumPrice(19.99).build(),
+                SearchPreference.Criteria.builder().language(BookLanguage.DUTCH).build(),
+                SearchPreference.Criteria.builder().types(new BookType[]{BookType.NONFICTION}).build(),
+                SearchPreference.Criteria.builder().minimumPrice(20.00).build())) {
+            mockMvc.perform(post("/api/searchpreferences")
+                    .content(mapper.writeValueAsString(SearchPreference.builder()
+                            .title("Preference on " + criteria)
+                            .email("peter.ophals@tothepoint.company")
+                            .criteria(criteria)
+                            .build()))
+                    .contentType(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk());
+        }
+        Book savedBook = bookRepository.save(englishFiction());
+
+        //WHEN
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+        List<SearchPreference> response = Arrays.asList(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class));
+
+        //THEN
+        assertThat(response).extracting(preference -> preference.getCriteria().getLanguage())
+                .containsExactlyInAnyOrder(BookLanguage.ENGLISH, null);
+    }
+
+    @Test
+    public void testQueriesWithoutMetadataAreStillPercolated() throws Exception {
+        //GIVEN
+        SearchPreference stiegLarsonBooks = searchPreferenceRepository.save(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        // Registered before the metadata of the criteria was stored next to the query
+        elasticSearchClient.prepareIndex(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, stiegLarsonBooks.getSearchPreferenceId())
+                .setSource(jsonBuilder()
+                        .startObject()
+                        .field(PercolatorIndexFields.PERCOLATOR_QUERY.getFieldName(), QueryBuilders.boolQuery()
+                                .filter(QueryBuilders.termsQuery(PercolatorIndexFields.AUTHOR.getFieldName(), "Stieg Larson")))
+                        .endObject())
+                .setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE)
+                .get();
+        Book savedBook = bookRepository.save(englishFiction());
+
+        //WHEN
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+
+        //THEN
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(1);
+    }
+
+    private Book englishFiction() {
+        return Book.builder()
+                .author("Stieg Larson")
+                .title("Some title")
+                .isbn("549545465")
+                .language(BookLanguage.ENGLISH)
+                .type(BookType.FICTION)
+                .price(15.99)
+                .build();
+    }
+}
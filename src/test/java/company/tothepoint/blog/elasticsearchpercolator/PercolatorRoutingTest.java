@@ -0,0 +1,84 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.service.PercolatorRouting;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = "company.tothepoint.blog.percolator.routing.enabled=true")
+public class PercolatorRoutingTest extends AbstractIntegrationTestCase {
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            DocumentField routing = hit.field("_routing");
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .setRouting(routing == null ? null : routing.getValue())
+                    .get();
+        }
+    }
+
+    @Test
+    public void testPreferencesAreRoutedByLanguage() throws Exception {
+        //GIVEN
+        SearchPreference english = createPreference("English books", SearchPreference.Criteria.builder()
+                .language(BookLanguage.ENGLISH)
+                .build());
+        SearchPreference dutch = createPreference("Dutch books", SearchPreference.Criteria.builder()
+                .language(BookLanguage.DUTCH)
+                .build());
+        SearchPreference anyLanguage = createPreference("Find me some Stieg Larson' books", SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .build());
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+
+        //THEN
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, english.getSearchPreferenceId())
+                .setRouting(BookLanguage.ENGLISH.name()).get().isExists()).isTrue();
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, dutch.getSearchPreferenceId())
+                .setRouting(BookLanguage.DUTCH.name()).get().isExists()).isTrue();
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, anyLanguage.getSearchPreferenceId())
+                .setRouting(PercolatorRouting.SHARED_ROUTING).get().isExists()).isTrue();
+
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class))
+                .extracting(SearchPreference::getTitle)
+                .containsExactlyInAnyOrder("English books", "Find me some Stieg Larson' books");
+
+        //WHEN
+        mockMvc.perform(delete("/api/searchpreferences/" + english.getSearchPreferenceId()))
+                .andExpect(status().isNoContent());
+
+        //THEN
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, english.getSearchPreferenceId())
+                .setRouting(BookLanguage.ENGLISH.name()).get().isExists()).isFalse();
+    }
+}
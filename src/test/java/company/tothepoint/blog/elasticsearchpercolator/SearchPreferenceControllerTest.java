@@ -1,10 +1,14 @@
 package company.tothepoint.blog.elasticsearchpercolator;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields;
 import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
 import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
 import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BulkRegistrationResult;
+import company.tothepoint.blog.elasticsearchpercolator.domain.CursorPage;
 import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
@@ -13,7 +17,9 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.junit.After;
 import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.Arrays;
@@ -25,11 +31,19 @@ import static company.tothepoint.blog.elasticsearchpercolator.config.Elasticsear
 import static company.tothepoint.blog.elasticsearchpercolator.config.PercolatorIndexFields.PERCOLATOR_QUERY;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+@TestPropertySource(properties = "company.tothepoint.blog.percolator.cache.enabled=true")
 public class SearchPreferenceControllerTest extends AbstractIntegrationTestCase {
 
+    @Autowired
+    private MeterRegistry meterRegistry;
+
     @After
     public void cleanup() {
         SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
@@ -70,6 +84,54 @@ public class SearchPreferenceControllerTest extends AbstractIntegrationTestCase
         assertThat(response.size()).isEqualTo(2);
     }
 
+    @Test
+    public void testFindPage() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            searchPreferenceRepository.save(SearchPreference.builder()
+                    .title("Preference " + i)
+                    .email("peter.ophals@tothepoint.company")
+                    .criteria(SearchPreference.Criteria.builder()
+                            .maximumPrice(9.99)
+                            .build())
+                    .build());
+        }
+
+        CursorPage<SearchPreference> firstPage = mapper.readValue(
+                doGet("/api/searchpreferences/page?size=2").getResponse().getContentAsString(),
+                new TypeReference<CursorPage<SearchPreference>>() {
+                });
+        CursorPage<SearchPreference> secondPage = mapper.readValue(
+                doGet("/api/searchpreferences/page?size=2&cursor=" + firstPage.getNextCursor()).getResponse().getContentAsString(),
+                new TypeReference<CursorPage<SearchPreference>>() {
+                });
+
+        assertThat(firstPage.getItems()).extracting(SearchPreference::getTitle).containsExactly("Preference 0", "Preference 1");
+        assertThat(secondPage.getItems()).extracting(SearchPreference::getTitle).containsExactly("Preference 2");
+        assertThat(secondPage.getNextCursor()).isNull();
+    }
+
+    @Test
+    public void testExport() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            searchPreferenceRepository.save(SearchPreference.builder()
+                    .title("Preference " + i)
+                    .email("peter.ophals@tothepoint.company")
+                    .criteria(SearchPreference.Criteria.builder()
+                            .maximumPrice(9.99)
+                            .build())
+                    .build());
+        }
+
+        MvcResult result = mockMvc.perform(get("/api/searchpreferences/export"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        String[] lines = result.getResponse().getContentAsString().trim().split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(mapper.readValue(lines[0], SearchPreference.class).getTitle()).isEqualTo("Preference 0");
+    }
+
     @Test
     public void testFindOne() throws Exception {
         SearchPreference cheapBooks = SearchPreference.builder()
@@ -134,6 +196,63 @@ public class SearchPreferenceControllerTest extends AbstractIntegrationTestCase
         Map<String, Object> indexSource = elasticSearchData.getSource();
         assertThat(indexSource).isNotNull();
         assertThat(indexSource).containsKeys("query");
+        assertThat(indexSource).containsKeys("preference");
+        assertThat(indexSource.get(PercolatorIndexFields.FILTER_LANGUAGE.getFieldName())).isEqualTo("ENGLISH");
+        assertThat(indexSource.get(PercolatorIndexFields.FILTER_TYPES.getFieldName())).isEqualTo(Arrays.asList("NONFICTION"));
+        assertThat(indexSource.get(PercolatorIndexFields.FILTER_MINIMUM_PRICE.getFieldName())).isEqualTo(10.00);
+        assertThat(indexSource.get(PercolatorIndexFields.FILTER_MAXIMUM_PRICE.getFieldName())).isEqualTo(100.00);
+    }
+
+    @Test
+    public void testCreateSearchPreferencesInBulk() throws Exception {
+        //GIVEN
+        List<SearchPreference> preferences = Arrays.asList(
+                SearchPreference.builder()
+                        .title("Find me some cheap books")
+                        .email("peter.ophals@tothepoint.company")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .maximumPrice(9.99)
+                                .build())
+                        .build(),
+                SearchPreference.builder()
+                        .title("Find me some Stieg Larson' books")
+                        .email("peter.ophals@tothepoint.company")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .author("Stieg Larson")
+                                .build())
+                        .build(),
+                SearchPreference.builder()
+                        .title("Find me some books without an email")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .author("Stieg Larson")
+                                .build())
+                        .build());
+
+        //WHEN
+        MvcResult result = mockMvc.perform(post("/api/searchpreferences/bulk?refresh=IMMEDIATE")
+                .content(mapper.writeValueAsString(preferences))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        BulkRegistrationResult response = mapper.readValue(result.getResponse().getContentAsString(), BulkRegistrationResult.class);
+
+        //THEN
+        assertThat(response.getRegistered()).isEqualTo(2);
+        assertThat(response.getFailures()).hasSize(1);
+        assertThat(response.getFailures().get(0).getPosition()).isEqualTo(2);
+        assertThat(searchPreferenceRepository.count()).isEqualTo(2);
+
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some cheap title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(5.99)
+                        .build());
+        MvcResult matches = doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+        assertThat(mapper.readValue(matches.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(2);
     }
 
     @Test
@@ -201,6 +320,313 @@ public class SearchPreferenceControllerTest extends AbstractIntegrationTestCase
 
     }
 
+    @Test
+    public void testMatchingPreferencesForBooks() throws Exception {
+        //GIVEN
+        createPreference(SearchPreference.builder()
+                .title("Find me some cheap books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .maximumPrice(9.99)
+                        .build())
+                .build());
+        createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+
+        Book cheapStiegLarsonBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some cheap title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(5.99)
+                        .build());
+        Book expensiveStiegLarsonBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some expensive title")
+                        .isbn("549545466")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(25.99)
+                        .build());
+        Book expensiveOtherBook = bookRepository.save(
+                Book.builder()
+                        .author("Roald Dahl")
+                        .title("Matilda")
+                        .isbn("0987654321")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(18.99)
+                        .build());
+
+        //WHEN
+        MvcResult result = mockMvc.perform(post("/api/searchpreferences/find-matching-preferences")
+                .content(mapper.writeValueAsString(Arrays.asList(
+                        cheapStiegLarsonBook.getBookId(),
+                        expensiveStiegLarsonBook.getBookId(),
+                        expensiveOtherBook.getBookId(),
+                        "-12")))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn();
+        Map<String, List<SearchPreference>> response = mapper.readValue(result.getResponse().getContentAsString(),
+                new TypeReference<Map<String, List<SearchPreference>>>() {
+                });
+
+        //THEN
+        assertThat(response).hasSize(4);
+        assertThat(response.get(cheapStiegLarsonBook.getBookId())).hasSize(2);
+        assertThat(response.get(expensiveStiegLarsonBook.getBookId()))
+                .extracting(SearchPreference::getTitle)
+                .containsExactly("Find me some Stieg Larson' books");
+        assertThat(response.get(expensiveOtherBook.getBookId())).isEmpty();
+        assertThat(response.get("-12")).isEmpty();
+    }
+
+    @Test
+    public void testMatchingPreferencesForBookPerPage() throws Exception {
+        //GIVEN
+        for (int i = 0; i < 3; i++) {
+            createPreference(SearchPreference.builder()
+                    .title("Find me some Stieg Larson' books " + i)
+                    .email("peter.ophals@tothepoint.company")
+                    .criteria(SearchPreference.Criteria.builder()
+                            .author("Stieg Larson")
+                            .build())
+                    .build());
+        }
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        String url = "/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId() + "/page?size=2";
+
+        //WHEN
+        CursorPage<SearchPreference> firstPage = mapper.readValue(doGet(url).getResponse().getContentAsString(),
+                new TypeReference<CursorPage<SearchPreference>>() {
+                });
+        CursorPage<SearchPreference> secondPage = mapper.readValue(
+                doGet(url + "&cursor=" + firstPage.getNextCursor()).getResponse().getContentAsString(),
+                new TypeReference<CursorPage<SearchPreference>>() {
+                });
+
+        //THEN
+        assertThat(firstPage.getItems()).hasSize(2);
+        assertThat(firstPage.getNextCursor()).isNotNull();
+        assertThat(secondPage.getItems()).hasSize(1);
+        assertThat(secondPage.getNextCursor()).isNull();
+        assertThat(secondPage.getItems()).doesNotContainAnyElementsOf(firstPage.getItems());
+    }
+
+    @Test
+    public void testStreamMatchingPreferencesForBook() throws Exception {
+        //GIVEN
+        for (int i = 0; i < 3; i++) {
+            createPreference(SearchPreference.builder()
+                    .title("Find me some Stieg Larson' books " + i)
+                    .email("peter.ophals@tothepoint.company")
+                    .criteria(SearchPreference.Criteria.builder()
+                            .author("Stieg Larson")
+                            .build())
+                    .build());
+        }
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+
+        //WHEN
+        MvcResult result = mockMvc.perform(get("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId() + "/stream"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result.getAsyncResult();
+
+        //THEN
+        String[] lines = result.getResponse().getContentAsString().trim().split("\n");
+        assertThat(lines).hasSize(3);
+        for (String line : lines) {
+            assertThat(mapper.readValue(line, SearchPreference.class).getCriteria().getAuthor()).isEqualTo("Stieg Larson");
+        }
+    }
+
+    @Test
+    public void testMatchingPreferencesForBookAsync() throws Exception {
+        //GIVEN
+        MvcResult created = mockMvc.perform(post("/api/searchpreferences/async")
+                .content(mapper.writeValueAsString(SearchPreference.builder()
+                        .title("Find me some Stieg Larson' books")
+                        .email("peter.ophals@tothepoint.company")
+                        .criteria(SearchPreference.Criteria.builder()
+                                .author("Stieg Larson")
+                                .build())
+                        .build()))
+                .contentType(MediaType.APPLICATION_JSON))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        mockMvc.perform(asyncDispatch(created))
+                .andExpect(status().isOk());
+
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        double matchedBefore = meterRegistry.find("percolation.matches").summary().totalAmount();
+
+        //WHEN
+        MvcResult started = mockMvc.perform(get("/api/searchpreferences/async/find-matching-preferences/" + savedBook.getBookId()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+        List<SearchPreference> response = Arrays.asList(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class));
+
+        //THEN
+        assertThat(response.size()).isEqualTo(1);
+        assertThat(response.get(0).getTitle()).isEqualTo("Find me some Stieg Larson' books");
+        assertThat(meterRegistry.find("percolation.matches").summary().totalAmount()).isEqualTo(matchedBefore + 1);
+        assertThat(result.getResponse().getHeader("Server-Timing")).startsWith("total;dur=");
+    }
+
+    @Test
+    public void testAsyncMatchingReadsThePercolationResultCache() throws Exception {
+        //GIVEN
+        createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        doGet("/api/searchpreferences/find-matching-preferences/" + savedBook.getBookId());
+        double hitsBefore = meterRegistry.find("cache.gets").tags("cache", "percolation-results", "result", "hit")
+                .functionCounter().count();
+
+        //WHEN
+        MvcResult started = mockMvc.perform(get("/api/searchpreferences/async/find-matching-preferences/" + savedBook.getBookId()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started))
+                .andExpect(status().isOk())
+                .andReturn();
+
+        //THEN
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(1);
+        assertThat(meterRegistry.find("cache.gets").tags("cache", "percolation-results", "result", "hit")
+                .functionCounter().count()).isEqualTo(hitsBefore + 1);
+    }
+
+    @Test
+    public void testDeletedPreferenceNoLongerMatches() throws Exception {
+        //GIVEN
+        SearchPreference preference = createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        Book hardcover = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        // Another edition percolates to the same document, and so to the same cached result
+        Book paperback = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545466")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        MvcResult beforeDelete = doGet("/api/searchpreferences/find-matching-preferences/" + hardcover.getBookId());
+        assertThat(mapper.readValue(beforeDelete.getResponse().getContentAsString(), SearchPreference[].class)).hasSize(1);
+
+        //WHEN
+        mockMvc.perform(delete("/api/searchpreferences/" + preference.getSearchPreferenceId()))
+                .andExpect(status().isNoContent());
+
+        //THEN
+        MvcResult afterDelete = doGet("/api/searchpreferences/find-matching-preferences/" + paperback.getBookId());
+        assertThat(mapper.readValue(afterDelete.getResponse().getContentAsString(), SearchPreference[].class)).isEmpty();
+        assertThat(searchPreferenceRepository.findOne(preference.getSearchPreferenceId())).isNull();
+        mockMvc.perform(delete("/api/searchpreferences/" + preference.getSearchPreferenceId()))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testMatchingReportsStageTimingsAndMetrics() throws Exception {
+        //GIVEN
+        createPreference(SearchPreference.builder()
+                .title("Find me some Stieg Larson' books")
+                .email("peter.ophals@tothepoint.company")
+                .criteria(SearchPreference.Criteria.builder()
+                        .author("Stieg Larson")
+                        .build())
+                .build());
+        Book aBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+        double matchedBefore = meterRegistry.find("percolation.matches").summary().totalAmount();
+
+        //WHEN
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + aBook.getBookId());
+
+        //THEN
+        assertThat(result.getResponse().getHeader("Server-Timing"))
+                .contains("book-load;dur=")
+                .contains("search;dur=")
+                .contains("hydration;dur=")
+                .contains("total;dur=");
+        assertThat(meterRegistry.find("percolation.matches").summary().totalAmount()).isEqualTo(matchedBefore + 1);
+        assertThat(meterRegistry.find("percolation.stage").tags("stage", "search").timer().count()).isPositive();
+        assertThat(meterRegistry.find("searchpreference.create").tags("mode", "sync").timer().count()).isPositive();
+        assertThat(meterRegistry.find("percolator.index.write").tags("request", "index").timer().count()).isPositive();
+    }
+
     @Test
     public void testMatchingPreferencesForNotExistingBookId() throws Exception {
         MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/-12");
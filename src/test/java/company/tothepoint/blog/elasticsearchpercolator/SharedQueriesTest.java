@@ -0,0 +1,108 @@
+package company.tothepoint.blog.elasticsearchpercolator;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQuery;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SharedQueryReference;
+import company.tothepoint.blog.elasticsearchpercolator.service.CriteriaSignatures;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.util.Collections;
+
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX;
+import static company.tothepoint.blog.elasticsearchpercolator.config.ElasticsearchConfig.PERCOLATOR_INDEX_MAPPING_TYPE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@TestPropertySource(properties = "company.tothepoint.blog.percolator.shared-queries.enabled=true")
+public class SharedQueriesTest extends AbstractIntegrationTestCase {
+
+    @After
+    public void cleanup() {
+        SearchResponse searchResponse = elasticSearchClient.prepareSearch(PERCOLATOR_INDEX)
+                .get();
+
+        for (SearchHit hit : searchResponse.getHits()) {
+            elasticSearchClient.prepareDelete()
+                    .setId(hit.getId())
+                    .setType(PERCOLATOR_INDEX_MAPPING_TYPE)
+                    .setIndex(PERCOLATOR_INDEX)
+                    .get();
+        }
+    }
+
+    @Test
+    public void testPreferencesWithTheSameCriteriaShareOneQuery() throws Exception {
+        //GIVEN
+        SearchPreference first = createPreference("English fiction under 20", SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .language(BookLanguage.ENGLISH)
+                .types(new BookType[]{BookType.NONFICTION, BookType.FICTION})
+                .maximumPrice(20.00)
+                .build());
+        SearchPreference second = createPreference("Same criteria, written differently", SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .language(BookLanguage.ENGLISH)
+                .types(new BookType[]{BookType.FICTION, BookType.NONFICTION, BookType.FICTION})
+                .minimumPrice(0.00)
+                .maximumPrice(20.00)
+                .build());
+        Book savedBook = bookRepository.save(
+                Book.builder()
+                        .author("Stieg Larson")
+                        .title("Some title")
+                        .isbn("549545465")
+                        .language(BookLanguage.ENGLISH)
+                        .type(BookType.FICTION)
+                        .price(15.99)
+                        .build());
+
+        //THEN
+        String signature = CriteriaSignatures.signature(first.getCriteria());
+        assertThat(CriteriaSignatures.signature(second.getCriteria())).isEqualTo(signature);
+        assertThat(elasticSearchClient.prepareSearch(PERCOLATOR_INDEX).get().getHits().getTotalHits()).isEqualTo(1);
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, signature).get().isExists()).isTrue();
+        SharedQuery sharedQuery = sharedQueryRepository.findOne(signature);
+        assertThat(sharedQuery.getReferenceCount()).isEqualTo(2);
+        assertThat(sharedQueryReferenceRepository.findBySignatureIn(Collections.singleton(signature)))
+                .extracting(SharedQueryReference::getSearchPreferenceId)
+                .containsExactlyInAnyOrder(first.getSearchPreferenceId(), second.getSearchPreferenceId());
+        assertThat(findMatchingPreferences(savedBook)).extracting(SearchPreference::getTitle)
+                .containsExactlyInAnyOrder("English fiction under 20", "Same criteria, written differently");
+
+        //WHEN
+        mockMvc.perform(delete("/api/searchpreferences/" + first.getSearchPreferenceId()))
+                .andExpect(status().isNoContent());
+
+        //THEN
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, signature).get().isExists()).isTrue();
+        assertThat(sharedQueryRepository.findOne(signature).getReferenceCount()).isEqualTo(1);
+        assertThat(sharedQueryReferenceRepository.findBySignatureIn(Collections.singleton(signature)))
+                .extracting(SharedQueryReference::getSearchPreferenceId)
+                .containsExactly(second.getSearchPreferenceId());
+        assertThat(findMatchingPreferences(savedBook)).extracting(SearchPreference::getTitle)
+                .containsExactly("Same criteria, written differently");
+
+        //WHEN
+        mockMvc.perform(delete("/api/searchpreferences/" + second.getSearchPreferenceId()))
+                .andExpect(status().isNoContent());
+
+        //THEN
+        assertThat(elasticSearchClient.prepareGet(PERCOLATOR_INDEX, PERCOLATOR_INDEX_MAPPING_TYPE, signature).get().isExists()).isFalse();
+        assertThat(sharedQueryRepository.findOne(signature)).isNull();
+        assertThat(findMatchingPreferences(savedBook)).isEmpty();
+    }
+
+    private SearchPreference[] findMatchingPreferences(Book book) throws Exception {
+        MvcResult result = doGet("/api/searchpreferences/find-matching-preferences/" + book.getBookId());
+        return mapper.readValue(result.getResponse().getContentAsString(), SearchPreference[].class);
+    }
+}
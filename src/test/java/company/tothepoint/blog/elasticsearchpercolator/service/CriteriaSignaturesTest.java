@@ -0,0 +1,71 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CriteriaSignaturesTest {
+
+    @Test
+    public void testCanonicalize() {
+        SearchPreference.Criteria canonical = CriteriaSignatures.canonicalize(SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .types(new BookType[]{BookType.NONFICTION, BookType.FICTION, BookType.NONFICTION})
+                .minimumPrice(0.00)
+                .maximumPrice(Double.POSITIVE_INFINITY)
+                .build());
+
+        assertThat(canonical.getAuthor()).isEqualTo("Stieg Larson");
+        assertThat(canonical.getTypes()).containsExactly(BookType.FICTION, BookType.NONFICTION);
+        assertThat(canonical.getMinimumPrice()).isNull();
+        assertThat(canonical.getMaximumPrice()).isNull();
+        assertThat(canonical.getLanguage()).isNull();
+    }
+
+    @Test
+    public void testEquivalentCriteriaHaveTheSameSignature() {
+        String signature = CriteriaSignatures.signature(SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .language(BookLanguage.ENGLISH)
+                .types(new BookType[]{BookType.FICTION})
+                .maximumPrice(20.00)
+                .build());
+
+        assertThat(CriteriaSignatures.signature(SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .language(BookLanguage.ENGLISH)
+                .types(new BookType[]{BookType.FICTION, BookType.FICTION})
+                .minimumPrice(-1.00)
+                .maximumPrice(20.0)
+                .build())).isEqualTo(signature);
+    }
+
+    @Test
+    public void testDifferentCriteriaHaveDifferentSignatures() {
+        SearchPreference.Criteria english = SearchPreference.Criteria.builder()
+                .language(BookLanguage.ENGLISH)
+                .maximumPrice(20.00)
+                .build();
+
+        assertThat(CriteriaSignatures.signature(english)).isNotEqualTo(CriteriaSignatures.signature(SearchPreference.Criteria.builder()
+                .language(BookLanguage.ENGLISH)
+                .minimumPrice(20.00)
+                .build()));
+        assertThat(CriteriaSignatures.signature(english)).isNotEqualTo(CriteriaSignatures.signature(SearchPreference.Criteria.builder()
+                .language(BookLanguage.DUTCH)
+                .maximumPrice(20.00)
+                .build()));
+        // The author is matched exactly, whitespace included
+        assertThat(CriteriaSignatures.signature(SearchPreference.Criteria.builder().author("Stieg  Larson").build()))
+                .isNotEqualTo(CriteriaSignatures.signature(SearchPreference.Criteria.builder().author("Stieg Larson").build()));
+        // No types match no book, unlike criteria without types
+        assertThat(CriteriaSignatures.signature(SearchPreference.Criteria.builder().types(new BookType[0]).build()))
+                .isNotEqualTo(CriteriaSignatures.signature(SearchPreference.Criteria.builder().build()));
+        // The author is length prefixed, it can not be confused with other values
+        assertThat(CriteriaSignatures.signature(SearchPreference.Criteria.builder().author("-;").build()))
+                .isNotEqualTo(CriteriaSignatures.signature(SearchPreference.Criteria.builder().build()));
+    }
+}
@@ -0,0 +1,161 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class MicroBatcherTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRequestsQueuedWhileABatchRunsAreHandledTogether() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (MicroBatcher<Integer, String> batcher = new MicroBatcher<>("test-batcher", requests -> {
+            if (requests.contains(0)) {
+                blocked.countDown();
+                release.await();
+            }
+            return requests.stream().map(request -> "result-" + request).collect(Collectors.toList());
+        }, executor, 100, 1, 0, batchSizes::add)) {
+
+            CompletableFuture<String> first = batcher.submit(0);
+            blocked.await(5, TimeUnit.SECONDS);
+            List<CompletableFuture<String>> queued = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                queued.add(batcher.submit(i));
+            }
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("result-0");
+            for (int i = 1; i <= 10; i++) {
+                assertThat(queued.get(i - 1).get(5, TimeUnit.SECONDS)).isEqualTo("result-" + i);
+            }
+            assertThat(batchSizes).containsExactly(1, 10);
+        }
+    }
+
+    @Test
+    public void testBatchesAreLimitedInSize() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test-batcher", requests -> {
+            if (requests.contains(0)) {
+                blocked.countDown();
+                release.await();
+            }
+            return requests;
+        }, executor, 4, 1, 0, batchSizes::add)) {
+
+            batcher.submit(0);
+            blocked.await(5, TimeUnit.SECONDS);
+            List<CompletableFuture<Integer>> queued = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                queued.add(batcher.submit(i));
+            }
+            release.countDown();
+
+            CompletableFuture.allOf(queued.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+            assertThat(batchSizes).containsExactly(1, 4, 4, 2);
+        }
+    }
+
+    @Test
+    public void testTheWindowOpensUnderLoadAndClosesWithoutConcurrentRequests() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try (MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test-batcher", requests -> {
+            if (requests.contains(0)) {
+                blocked.countDown();
+                release.await();
+            }
+            return requests;
+        }, executor, 100, 1, 2000, batchSizes::add)) {
+
+            batcher.submit(0);
+            blocked.await(5, TimeUnit.SECONDS);
+            List<CompletableFuture<Integer>> queued = new ArrayList<>();
+            for (int i = 1; i <= 10; i++) {
+                queued.add(batcher.submit(i));
+            }
+            release.countDown();
+            CompletableFuture.allOf(queued.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+            assertThat(batcher.getWindowMicros()).isPositive();
+
+            for (int i = 11; i <= 15; i++) {
+                assertThat(batcher.submit(i).get(5, TimeUnit.SECONDS)).isEqualTo(i);
+            }
+            assertThat(batcher.getWindowMicros()).isZero();
+        }
+    }
+
+    @Test
+    public void testAFailedBatchFailsAllItsRequests() throws Exception {
+        try (MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test-batcher", requests -> {
+            throw new IllegalStateException("Percolation failed");
+        }, executor, 100, 1, 0, batchSizes::add)) {
+
+            Throwable failure = catchThrowable(() -> batcher.submit(1).get(5, TimeUnit.SECONDS));
+            assertThat(failure).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void testRequestsQueuedWhenClosingAreRejected() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test-batcher", requests -> {
+            blocked.countDown();
+            release.await();
+            return requests;
+        }, executor, 100, 1, 0, batchSizes::add);
+        CompletableFuture<Integer> inFlight = batcher.submit(0);
+        blocked.await(5, TimeUnit.SECONDS);
+        List<CompletableFuture<Integer>> queued = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            queued.add(batcher.submit(i));
+        }
+
+        batcher.close();
+        release.countDown();
+
+        assertThat(inFlight.get(5, TimeUnit.SECONDS)).isEqualTo(0);
+        for (CompletableFuture<Integer> future : queued) {
+            Throwable failure = catchThrowable(() -> future.get(5, TimeUnit.SECONDS));
+            assertThat(failure).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(RejectedExecutionException.class);
+        }
+    }
+
+    @Test
+    public void testRequestsAfterCloseAreRejected() {
+        MicroBatcher<Integer, Integer> batcher = new MicroBatcher<>("test-batcher", requests -> requests,
+                executor, 100, 1, 0, batchSizes::add);
+        batcher.close();
+
+        assertThat(batcher.submit(1).isCompletedExceptionally()).isTrue();
+    }
+}
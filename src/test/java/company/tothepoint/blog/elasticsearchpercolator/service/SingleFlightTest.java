@@ -0,0 +1,148 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+public class SingleFlightTest {
+
+    private final ExecutorService callers = Executors.newFixedThreadPool(5);
+
+    private final AtomicInteger leaders = new AtomicInteger();
+
+    private final AtomicInteger followers = new AtomicInteger();
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>(leaders::incrementAndGet, followers::incrementAndGet);
+
+    @After
+    public void shutdown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentCallsShareOneComputation() throws Exception {
+        CountDownLatch computing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computations = new AtomicInteger();
+
+        Future<String> leader = callers.submit(() -> singleFlight.execute("book", () -> {
+            computations.incrementAndGet();
+            computing.countDown();
+            await(release);
+            return "matches";
+        }));
+        computing.await(5, TimeUnit.SECONDS);
+        List<Future<String>> waiting = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            waiting.add(callers.submit(() -> singleFlight.execute("book", () -> {
+                computations.incrementAndGet();
+                return "other matches";
+            })));
+        }
+        while (followers.get() < 4) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        assertThat(leader.get(5, TimeUnit.SECONDS)).isEqualTo("matches");
+        for (Future<String> follower : waiting) {
+            assertThat(follower.get(5, TimeUnit.SECONDS)).isEqualTo("matches");
+        }
+        assertThat(computations.get()).isEqualTo(1);
+        assertThat(leaders.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testAFailureIsHandedToAllWaiters() throws Exception {
+        CountDownLatch computing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        Future<String> leader = callers.submit(() -> singleFlight.execute("book", () -> {
+            computing.countDown();
+            await(release);
+            throw new IOException("Percolation failed");
+        }));
+        computing.await(5, TimeUnit.SECONDS);
+        Future<String> follower = callers.submit(() -> singleFlight.execute("book", () -> "matches"));
+        while (followers.get() < 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        assertThat(catchThrowable(() -> leader.get(5, TimeUnit.SECONDS))).hasCauseInstanceOf(IOException.class);
+        assertThat(catchThrowable(() -> follower.get(5, TimeUnit.SECONDS))).hasCauseInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void testCompletedComputationsAreNotReused() throws Exception {
+        assertThat(singleFlight.execute("book", () -> "first")).isEqualTo("first");
+        assertThat(singleFlight.execute("book", () -> "second")).isEqualTo("second");
+        assertThat(leaders.get()).isEqualTo(2);
+        assertThat(followers.get()).isZero();
+    }
+
+    @Test
+    public void testAsyncCallsShareOneComputation() throws Exception {
+        CompletableFuture<String> computation = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeAsync("book", () -> computation);
+        CompletableFuture<String> second = singleFlight.executeAsync("book", () -> CompletableFuture.completedFuture("other matches"));
+        computation.complete("matches");
+
+        assertThat(first.get()).isEqualTo("matches");
+        assertThat(second.get()).isEqualTo("matches");
+        assertThat(followers.get()).isEqualTo(1);
+        assertThat(singleFlight.executeAsync("book", () -> CompletableFuture.completedFuture("next matches")).get())
+                .isEqualTo("next matches");
+    }
+
+    @Test
+    public void testAsyncFailureIsHandedToAllWaiters() {
+        CompletableFuture<String> computation = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeAsync("book", () -> computation);
+        CompletableFuture<String> second = singleFlight.executeAsync("book", () -> CompletableFuture.completedFuture("matches"));
+        computation.completeExceptionally(new IllegalStateException("Percolation failed"));
+
+        assertThat(catchThrowable(first::get)).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(catchThrowable(second::get)).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void testCompletingAnAsyncCallLeavesTheOthersWaiting() throws Exception {
+        CompletableFuture<String> computation = new CompletableFuture<>();
+
+        CompletableFuture<String> first = singleFlight.executeAsync("book", () -> computation);
+        CompletableFuture<String> second = singleFlight.executeAsync("book", () -> CompletableFuture.completedFuture("other matches"));
+        first.complete("not the matches");
+        second.cancel(false);
+        CompletableFuture<String> third = singleFlight.executeAsync("book", () -> CompletableFuture.completedFuture("other matches"));
+        computation.complete("matches");
+
+        assertThat(first.get()).isEqualTo("not the matches");
+        assertThat(second.isCancelled()).isTrue();
+        assertThat(third.get()).isEqualTo("matches");
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package company.tothepoint.blog.elasticsearchpercolator.service;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StageTimingsTest {
+
+    private final Locale defaultLocale = Locale.getDefault();
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void testDurationsUseAPointWhateverTheDefaultLocale() {
+        Locale.setDefault(Locale.GERMANY);
+        try (StageTimings timings = new StageTimings(() -> {
+        })) {
+            timings.add(PercolationMetrics.Stage.SEARCH, 812_345);
+
+            assertThat(timings.toServerTiming()).startsWith("search;dur=0.812, total;dur=").doesNotContain(",8");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.matching;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.Book;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookLanguage;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookType;
+import company.tothepoint.blog.elasticsearchpercolator.domain.SearchPreference;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BitmapMatchingEngineTest {
+
+    private BitmapMatchingEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new BitmapMatchingEngine();
+        engine.add(preference("cheap", SearchPreference.Criteria.builder()
+                .maximumPrice(9.99)
+                .build()));
+        engine.add(preference("stieg-larson", SearchPreference.Criteria.builder()
+                .author("Stieg Larson")
+                .minimumPrice(10.99)
+                .build()));
+        engine.add(preference("english-fiction", SearchPreference.Criteria.builder()
+                .language(BookLanguage.ENGLISH)
+                .types(new BookType[]{BookType.FICTION})
+                .minimumPrice(10.00)
+                .maximumPrice(20.00)
+                .build()));
+        engine.add(preference("dutch", SearchPreference.Criteria.builder()
+                .language(BookLanguage.DUTCH)
+                .build()));
+    }
+
+    @Test
+    public void testMatchOnAllCriteria() {
+        assertThat(engine.match(book("Stieg Larson", BookType.FICTION, BookLanguage.ENGLISH, 15.99)))
+                .containsExactlyInAnyOrder("stieg-larson", "english-fiction");
+        assertThat(engine.match(book("Roald Dahl", BookType.FICTION, BookLanguage.ENGLISH, 5.99)))
+                .containsExactly("cheap");
+        assertThat(engine.match(book("Roald Dahl", BookType.NONFICTION, BookLanguage.DUTCH, 25.00)))
+                .containsExactly("dutch");
+    }
+
+    @Test
+    public void testPriceBoundsAreInclusive() {
+        assertThat(engine.match(book("Roald Dahl", BookType.FICTION, BookLanguage.ENGLISH, 9.99)))
+                .containsExactly("cheap");
+        assertThat(engine.match(book("Roald Dahl", BookType.FICTION, BookLanguage.ENGLISH, 20.00)))
+                .containsExactly("english-fiction");
+        assertThat(engine.match(book("Roald Dahl", BookType.FICTION, BookLanguage.ENGLISH, 20.01)))
+                .isEmpty();
+    }
+
+    @Test
+    public void testRemoveAndReplace() {
+        engine.remove("cheap");
+        assertThat(engine.match(book("Roald Dahl", BookType.FICTION, BookLanguage.ENGLISH, 5.99))).isEmpty();
+
+        engine.add(preference("dutch", SearchPreference.Criteria.builder()
+                .language(BookLanguage.FRENCH)
+                .build()));
+        assertThat(engine.match(book("Roald Dahl", BookType.NONFICTION, BookLanguage.DUTCH, 25.00))).isEmpty();
+        assertThat(engine.match(book("Roald Dahl", BookType.NONFICTION, BookLanguage.FRENCH, 25.00))).containsExactly("dutch");
+        assertThat(engine.size()).isEqualTo(3);
+    }
+
+    private static SearchPreference preference(String id, SearchPreference.Criteria criteria) {
+        return SearchPreference.builder()
+                .searchPreferenceId(id)
+                .title(id)
+                .email("peter.ophals@tothepoint.company")
+                .criteria(criteria)
+                .build();
+    }
+
+    private static Book book(String author, BookType type, BookLanguage language, double price) {
+        return Book.builder()
+                .author(author)
+                .title("Some title")
+                .isbn("549545465")
+                .type(type)
+                .language(language)
+                .price(price)
+                .build();
+    }
+}
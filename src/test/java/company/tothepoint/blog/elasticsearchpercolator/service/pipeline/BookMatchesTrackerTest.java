@@ -0,0 +1,65 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatch;
+import company.tothepoint.blog.elasticsearchpercolator.domain.BookMatches;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BookMatchesTrackerTest {
+
+    @Test
+    public void testDiff() {
+        List<String> matched = new ArrayList<>();
+        List<String> unmatched = new ArrayList<>();
+
+        BookMatchesTracker.diff(Arrays.asList("a", "c", "d", "f"), Arrays.asList("b", "c", "f", "g", "h"), matched, unmatched);
+
+        assertThat(matched).containsExactly("b", "g", "h");
+        assertThat(unmatched).containsExactly("a", "d");
+    }
+
+    @Test
+    public void testDiffWithoutMatchesBefore() {
+        List<String> matched = new ArrayList<>();
+        List<String> unmatched = new ArrayList<>();
+
+        BookMatchesTracker.diff(Collections.emptyList(), Arrays.asList("a", "b"), matched, unmatched);
+
+        assertThat(matched).containsExactly("a", "b");
+        assertThat(unmatched).isEmpty();
+    }
+
+    @Test
+    public void testUnpublishedMatchesAreNotMatchesBefore() {
+        BookMatches previous = BookMatches.builder()
+                .bookId("book")
+                .searchPreferenceIds(Arrays.asList("a", "b", "c"))
+                .unpublishedSearchPreferenceIds(Collections.singletonList("b"))
+                .build();
+
+        assertThat(BookMatchesTracker.published(previous)).containsExactly("a", "c");
+        assertThat(BookMatchesTracker.published(null)).isEmpty();
+    }
+
+    @Test
+    public void testOnlyChangedMatchesAreStored() {
+        BookMatches previous = BookMatches.builder()
+                .bookId("book")
+                .searchPreferenceIds(Arrays.asList("a", "b", "c"))
+                .unpublishedSearchPreferenceIds(Collections.singletonList("b"))
+                .build();
+        List<BookMatch> stored = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+
+        BookMatchesTracker.storedChanges("book", previous, Arrays.asList("b", "c", "d"), stored, removed);
+
+        assertThat(stored).extracting(BookMatch::getMatchId).containsExactly("book:d", "book:b");
+        assertThat(removed).containsExactly("book:a");
+    }
+}
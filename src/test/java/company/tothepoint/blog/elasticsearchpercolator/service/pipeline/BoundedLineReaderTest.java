@@ -0,0 +1,36 @@
+package company.tothepoint.blog.elasticsearchpercolator.service.pipeline;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedLineReaderTest {
+
+    @Test
+    public void testReadsLinesLikeABufferedReader() throws Exception {
+        BoundedLineReader reader = new BoundedLineReader(new StringReader("first\r\n\nlast"), 5);
+
+        assertThat(reader.readLine()).isEqualTo("first");
+        assertThat(reader.isTruncated()).isFalse();
+        assertThat(reader.readLine()).isEmpty();
+        assertThat(reader.readLine()).isEqualTo("last");
+        assertThat(reader.readLine()).isNull();
+    }
+
+    @Test
+    public void testSkipsTheRestOfALongLine() throws Exception {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            longLine.append('x');
+        }
+        BoundedLineReader reader = new BoundedLineReader(new StringReader(longLine + "\nnext\n"), 100);
+
+        assertThat(reader.readLine()).hasSize(100);
+        assertThat(reader.isTruncated()).isTrue();
+        assertThat(reader.readLine()).isEqualTo("next");
+        assertThat(reader.isTruncated()).isFalse();
+        assertThat(reader.readLine()).isNull();
+    }
+}